@@ -0,0 +1,115 @@
+package org.manolin.ftpblost.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.manolin.ftpblost.managers.ConfigFile;
+
+/**
+ * Test data for the benchmarks. Contents are seeded random bytes, so every run sees the
+ * same files and compression never flatters the numbers.
+ */
+public final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * Points the sync index and checkpoints at a throwaway directory. Must run before
+     * anything touches {@code ConfigManager}, whose settings are read once.
+     */
+    public static Path isolateState() throws IOException {
+        Path home = Files.createTempDirectory("ftpblost-bench-home");
+        System.setProperty("user.home", home.toString());
+        return home;
+    }
+
+    /**
+     * Writes {@code settings} to a config file in {@code home} and points {@code ConfigManager}
+     * at it. Like {@link #isolateState()}, only works before {@code ConfigManager} is loaded.
+     */
+    public static void configure(Path home, Map<String, String> settings) throws IOException {
+        Path file = home.resolve("ftpblost.properties");
+        List<String> lines = new ArrayList<>();
+        settings.forEach((key, value) -> lines.add(key + "=" + value));
+        Files.write(file, lines);
+        System.setProperty(ConfigFile.PATH_PROPERTY, file.toString());
+    }
+
+    /**
+     * Writes a file set: {@code small} is 2,000 files of 4 KB, {@code large} is 4 files of
+     * 64 MB, {@code mixed} is 500 files with sizes spread log-uniformly from 1 KB to 8 MB.
+     */
+    public static List<Path> generate(Path root, String distribution, String extension) throws IOException {
+        Random random = new Random(42);
+        List<Path> files = new ArrayList<>();
+        switch (distribution) {
+            case "small" -> {
+                for (int i = 0; i < 2_000; i++) {
+                    files.add(write(root, i, extension, 4 * 1024, random));
+                }
+            }
+            case "large" -> {
+                for (int i = 0; i < 4; i++) {
+                    files.add(write(root, i, extension, 64 * 1024 * 1024, random));
+                }
+            }
+            case "mixed" -> {
+                double min = Math.log(1024);
+                double max = Math.log(8 * 1024 * 1024);
+                for (int i = 0; i < 500; i++) {
+                    int size = (int) Math.exp(min + random.nextDouble() * (max - min));
+                    files.add(write(root, i, extension, size, random));
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown distribution: " + distribution);
+        }
+        return files;
+    }
+
+    public static long totalSize(List<Path> files) throws IOException {
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        return total;
+    }
+
+    public static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    public static void deleteTree(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    private static Path write(Path root, int index, String extension, int size, Random random) throws IOException {
+        // Spread over 20 directories, like a real tree
+        Path dir = root.resolve("dir" + (index % 20));
+        Files.createDirectories(dir);
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        return Files.write(dir.resolve("file" + index + extension), content);
+    }
+}
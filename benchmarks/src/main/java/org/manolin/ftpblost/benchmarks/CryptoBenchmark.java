@@ -0,0 +1,95 @@
+package org.manolin.ftpblost.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.manolin.ftpblost.managers.CryptoManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * String-based encryptText/decryptText against the streaming chunked format used for uploads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CryptoBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int payloadBytes;
+
+    private String key;
+    private String plainText;
+    private String cipherText;
+    private byte[] plainBytes;
+    private byte[] streamCipherBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        key = CryptoManager.generateAES(256);
+        // Printable ASCII, so the String API sees one byte per character
+        Random random = new Random(42);
+        char[] chars = new char[payloadBytes];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (' ' + random.nextInt(95));
+        }
+        plainText = new String(chars);
+        plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
+        cipherText = CryptoManager.encryptText(plainText, key);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (OutputStream out = CryptoManager.encryptStream(encrypted, key)) {
+            out.write(plainBytes);
+        }
+        streamCipherBytes = encrypted.toByteArray();
+    }
+
+    @Benchmark
+    public String encryptText(ThroughputCounters counters) throws Exception {
+        String result = CryptoManager.encryptText(plainText, key);
+        counters.add(1, payloadBytes);
+        return result;
+    }
+
+    @Benchmark
+    public String decryptText(ThroughputCounters counters) throws Exception {
+        String result = CryptoManager.decryptText(cipherText, key);
+        counters.add(1, payloadBytes);
+        return result;
+    }
+
+    @Benchmark
+    public void encryptStream(ThroughputCounters counters) throws IOException {
+        try (OutputStream out = CryptoManager.encryptStream(OutputStream.nullOutputStream(), key)) {
+            out.write(plainBytes);
+        }
+        counters.add(1, payloadBytes);
+    }
+
+    @Benchmark
+    public long decryptStream(ThroughputCounters counters) throws IOException {
+        long read;
+        try (InputStream in = CryptoManager.decryptStream(new ByteArrayInputStream(streamCipherBytes), key)) {
+            read = in.transferTo(OutputStream.nullOutputStream());
+        }
+        counters.add(1, payloadBytes);
+        return read;
+    }
+}
@@ -0,0 +1,80 @@
+package org.manolin.ftpblost.benchmarks;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ftpserver.ConnectionConfigFactory;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.UserManager;
+import org.apache.ftpserver.listener.Listener;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.usermanager.ClearTextPasswordEncryptor;
+import org.apache.ftpserver.usermanager.PropertiesUserManagerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+
+/**
+ * In-process FTP server on a free loopback port, with an optional per-command delay.
+ */
+public final class EmbeddedFtpServer {
+
+    public static final String USER = "bench";
+    public static final String PASSWORD = "bench";
+
+    private final FtpServer server;
+    private final int port;
+
+    private EmbeddedFtpServer(FtpServer server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    public static EmbeddedFtpServer start(Path home, long latencyMillis, int maxSessions) throws FtpException {
+        FtpServerFactory serverFactory = new FtpServerFactory();
+
+        ListenerFactory listenerFactory = new ListenerFactory();
+        listenerFactory.setServerAddress("127.0.0.1");
+        listenerFactory.setPort(0);
+        Listener listener = listenerFactory.createListener();
+        serverFactory.addListener("default", listener);
+
+        // Leave room for the connection test and sessions being replaced
+        int maxLogins = maxSessions + 4;
+        ConnectionConfigFactory connectionConfig = new ConnectionConfigFactory();
+        connectionConfig.setMaxLogins(maxLogins);
+        connectionConfig.setMaxThreads(maxLogins * 2);
+        serverFactory.setConnectionConfig(connectionConfig.createConnectionConfig());
+
+        PropertiesUserManagerFactory userManagerFactory = new PropertiesUserManagerFactory();
+        userManagerFactory.setPasswordEncryptor(new ClearTextPasswordEncryptor());
+        UserManager userManager = userManagerFactory.createUserManager();
+        BaseUser user = new BaseUser();
+        user.setName(USER);
+        user.setPassword(PASSWORD);
+        user.setHomeDirectory(home.toString());
+        user.setAuthorities(List.of(new WritePermission(), new ConcurrentLoginPermission(maxLogins, maxLogins)));
+        userManager.save(user);
+        serverFactory.setUserManager(userManager);
+
+        if (latencyMillis > 0) {
+            serverFactory.setFtplets(Map.of("latency", new LatencyFtplet(latencyMillis)));
+        }
+
+        FtpServer server = serverFactory.createServer();
+        server.start();
+        // With port 0 the listener reports the port it actually bound once started
+        return new EmbeddedFtpServer(server, listener.getPort());
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void stop() {
+        server.stop();
+    }
+}
@@ -0,0 +1,114 @@
+package org.manolin.ftpblost.benchmarks;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.manolin.ftpblost.managers.FTPManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw {@link FTPManager} uploads and downloads against the embedded server, with as many
+ * concurrent transfers as sessions. One operation moves a batch of files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class FtpTransferBenchmark {
+
+    @Param({"1", "4", "8"})
+    public int sessions;
+
+    @Param({"4096", "1048576", "16777216"})
+    public int fileBytes;
+
+    @Param({"0", "2", "10"})
+    public long latencyMillis;
+
+    private Path stateHome;
+    private Path remoteRoot;
+    private EmbeddedFtpServer server;
+    private FTPManager ftpManager;
+    private ExecutorService executor;
+    private byte[] payload;
+    private int batchSize;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        stateHome = BenchmarkFiles.isolateState();
+        remoteRoot = Files.createTempDirectory("ftpblost-bench-remote");
+        server = EmbeddedFtpServer.start(remoteRoot, latencyMillis, sessions);
+        ftpManager = new FTPManager("127.0.0.1", server.getPort(), EmbeddedFtpServer.USER, EmbeddedFtpServer.PASSWORD, sessions);
+        ftpManager.connect();
+        executor = Executors.newFixedThreadPool(sessions);
+        payload = BenchmarkFiles.randomBytes(fileBytes);
+        // Enough files per operation to keep every session busy
+        batchSize = Math.max(sessions * 4, fileBytes <= 64 * 1024 ? 256 : 16);
+        // Downloads read back the files a first upload batch leaves behind
+        upload(new ThroughputCounters());
+    }
+
+    @Benchmark
+    public void upload(ThroughputCounters counters) throws Exception {
+        runBatch(i -> () -> {
+            ftpManager.uploadStream("bench/file" + i, out -> out.write(payload));
+            return null;
+        });
+        counters.add(batchSize, (long) batchSize * fileBytes);
+    }
+
+    @Benchmark
+    public void download(ThroughputCounters counters) throws Exception {
+        runBatch(i -> () -> {
+            ftpManager.downloadStream("/bench/file" + i, in -> in.transferTo(OutputStream.nullOutputStream()));
+            return null;
+        });
+        counters.add(batchSize, (long) batchSize * fileBytes);
+    }
+
+    private void runBatch(TransferFactory factory) throws Exception {
+        List<Future<Void>> results = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            results.add(executor.submit(factory.create(i)));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        ftpManager.disconnect();
+        server.stop();
+        BenchmarkFiles.deleteTree(remoteRoot);
+        BenchmarkFiles.deleteTree(stateHome);
+    }
+
+    @FunctionalInterface
+    private interface TransferFactory {
+        Callable<Void> create(int index);
+    }
+}
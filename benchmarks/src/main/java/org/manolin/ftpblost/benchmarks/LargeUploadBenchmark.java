@@ -0,0 +1,78 @@
+package org.manolin.ftpblost.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.manolin.ftpblost.managers.FTPManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resumable upload of one large binary file, through the buffered stream copy or through
+ * {@code transferTo} into the data socket. Every trial runs in its own fork, so each one
+ * starts {@code ConfigManager} with its own settings. Compare the {@code megabytes} column.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class LargeUploadBenchmark {
+
+    @Param({"stream", "zerocopy"})
+    public String path;
+
+    @Param({"67108864", "268435456"})
+    public int fileBytes;
+
+    @Param({"0", "4194304"})
+    public int socketBufferBytes;
+
+    private Path stateHome;
+    private Path localFile;
+    private Path remoteRoot;
+    private EmbeddedFtpServer server;
+    private FTPManager ftpManager;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        stateHome = BenchmarkFiles.isolateState();
+        BenchmarkFiles.configure(stateHome, Map.of(
+                "ZERO_COPY_MIN_FILE_BYTES", path.equals("zerocopy") ? "0" : "-1",
+                "FTP_DATA_SOCKET_BUFFER_BYTES", String.valueOf(socketBufferBytes)));
+        localFile = stateHome.resolve("large.bin");
+        Files.write(localFile, BenchmarkFiles.randomBytes(fileBytes));
+        remoteRoot = Files.createTempDirectory("ftpblost-bench-remote");
+        server = EmbeddedFtpServer.start(remoteRoot, 0, 1);
+        ftpManager = new FTPManager("127.0.0.1", server.getPort(), EmbeddedFtpServer.USER, EmbeddedFtpServer.PASSWORD, 1);
+        ftpManager.connect();
+    }
+
+    @Benchmark
+    public void upload(ThroughputCounters counters) throws Exception {
+        ftpManager.uploadFileResumable(localFile.toFile(), "bench/large.bin");
+        counters.add(1, fileBytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ftpManager.disconnect();
+        server.stop();
+        BenchmarkFiles.deleteTree(remoteRoot);
+        BenchmarkFiles.deleteTree(stateHome);
+    }
+}
@@ -0,0 +1,32 @@
+package org.manolin.ftpblost.benchmarks;
+
+import java.io.IOException;
+
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.FtpletResult;
+
+/**
+ * Delays every command by a fixed time, standing in for the round trip to a remote server.
+ */
+public class LatencyFtplet extends DefaultFtplet {
+
+    private final long latencyMillis;
+
+    public LatencyFtplet(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FtpException("Interrupted while injecting latency", e);
+        }
+        return super.beforeCommand(session, request);
+    }
+}
@@ -0,0 +1,99 @@
+package org.manolin.ftpblost.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.manolin.ftpblost.FileMonitor;
+import org.manolin.ftpblost.managers.FTPManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole upload path of {@link FileMonitor}: read, hash, compress, encrypt, schedule and
+ * STOR, for every file of a set. One operation syncs the full set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class SyncPathBenchmark {
+
+    @Param({"1", "4"})
+    public int sessions;
+
+    @Param({"small", "mixed", "large"})
+    public String distribution;
+
+    @Param({"false", "true"})
+    public boolean encrypted;
+
+    @Param({"0", "5"})
+    public long latencyMillis;
+
+    private Path stateHome;
+    private Path localRoot;
+    private Path remoteRoot;
+    private EmbeddedFtpServer server;
+    private FTPManager ftpManager;
+    private FileMonitor fileMonitor;
+    private List<Path> files;
+    private long totalBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        stateHome = BenchmarkFiles.isolateState();
+        localRoot = Files.createTempDirectory("ftpblost-bench-local");
+        remoteRoot = Files.createTempDirectory("ftpblost-bench-remote");
+        // .txt files take the encrypted path, anything else is sent as it is
+        files = BenchmarkFiles.generate(localRoot, distribution, encrypted ? ".txt" : ".dat");
+        totalBytes = BenchmarkFiles.totalSize(files);
+        server = EmbeddedFtpServer.start(remoteRoot, latencyMillis, sessions);
+        ftpManager = new FTPManager("127.0.0.1", server.getPort(), EmbeddedFtpServer.USER, EmbeddedFtpServer.PASSWORD, sessions);
+        ftpManager.connect();
+        fileMonitor = new FileMonitor(localRoot.toString(), ftpManager, "bench");
+    }
+
+    @Benchmark
+    public int syncAll(ThroughputCounters counters) throws Exception {
+        List<Future<Boolean>> results = new ArrayList<>(files.size());
+        for (Path file : files) {
+            results.add(fileMonitor.submitSync(file));
+        }
+        int synced = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get()) {
+                synced++;
+            }
+        }
+        // Small files may still be waiting for their bundle window
+        fileMonitor.flushBundles();
+        counters.add(files.size(), totalBytes);
+        return synced;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ftpManager.disconnect();
+        server.stop();
+        BenchmarkFiles.deleteTree(localRoot);
+        BenchmarkFiles.deleteTree(remoteRoot);
+        BenchmarkFiles.deleteTree(stateHome);
+    }
+}
@@ -0,0 +1,30 @@
+package org.manolin.ftpblost.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary results reported next to ops/s: JMH prints {@code files} as files per second
+ * and {@code megabytes} as MB per second.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ThroughputCounters {
+
+    public long files;
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        files = 0;
+        megabytes = 0;
+    }
+
+    public void add(long fileCount, long bytes) {
+        files += fileCount;
+        megabytes += bytes / (1024.0 * 1024.0);
+    }
+}
@@ -2,145 +2,1108 @@ package org.manolin.ftpblost;
 
 import org.manolin.ftpblost.exceptions.FTPException;
 import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.managers.BandwidthLimiter;
+import org.manolin.ftpblost.managers.CompressionManager;
 import org.manolin.ftpblost.managers.ConfigManager;
 import org.manolin.ftpblost.managers.CryptoManager;
 import org.manolin.ftpblost.managers.FTPManager;
-import java.io.File;
+import org.manolin.ftpblost.managers.OutboxJournal;
+import org.manolin.ftpblost.managers.SyncIndex;
+import org.manolin.ftpblost.managers.TransferScheduler;
+import org.manolin.ftpblost.metrics.SyncMetrics;
+import org.manolin.ftpblost.monitor.ContentHasher;
+import org.manolin.ftpblost.monitor.EventCoalescer;
+import org.manolin.ftpblost.monitor.PollingScanner;
+import org.manolin.ftpblost.monitor.RenameDetector;
+import org.manolin.ftpblost.monitor.TreeWalker;
+import org.manolin.ftpblost.monitor.WatchRegistry;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 
 public class FileMonitor {
 
     private final Path directoryToWatch;
     private final FTPManager ftpManager;
     private final String remoteBasePath;
-    private final ExecutorService executorService = Executors.newFixedThreadPool(ConfigManager.THREAD_POOL_SIZE);
+    private final PollingScanner.ScanMode scanMode;
+    private final String rootName;
+    private final Map<String, LongSupplier> registeredGauges = new ConcurrentHashMap<>();
+    private final TransferScheduler transferScheduler = new TransferScheduler("transfer", ConfigManager.EXECUTION_MODE,
+            ConfigManager.EXECUTION_MODE == TransferScheduler.ExecutionMode.VIRTUAL
+                    ? ConfigManager.VIRTUAL_MAX_CONCURRENT_TRANSFERS
+                    : Math.max(ConfigManager.THREAD_POOL_SIZE, ConfigManager.FTP_MAX_SESSIONS),
+            ConfigManager.TRANSFER_QUEUE_CAPACITY);
 
-    private final Map<Path, Long> lastModifiedTimes = new HashMap<>();
+    private WatchRegistry watchRegistry;
+    private final CompletableFuture<Void> initialScan = new CompletableFuture<>();
+    private volatile Thread monitorThread;
+    private volatile boolean stopping;
+    private final Set<Path> overflowedDirectories = ConcurrentHashMap.newKeySet();
+    // Paths with a transfer running, mapped to the change that arrived meanwhile (null if none)
+    private final Map<Path, EventCoalescer.ChangeType> inFlight = new HashMap<>();
+    private final ScheduledExecutorService rescanExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "overflow-rescan");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final RenameDetector renameDetector = new RenameDetector(ConfigManager.RENAME_WINDOW_MS, this::releaseRemoval);
+    private final Runnable replayOnRecovery = this::replayOutbox;
+    // The token bucket works for any unit, here it hands out files to compare
+    private final BandwidthLimiter rescanLimiter = new BandwidthLimiter(() -> ConfigManager.RESCAN_FILES_PER_SEC);
+
+    private volatile SyncIndex syncIndex;
+    private volatile OutboxJournal outbox;
+    private final SmallFileBundler bundler;
+    private final EventCoalescer eventCoalescer = new EventCoalescer(
+            ConfigManager.COALESCE_QUIET_PERIOD_MS,
+            ConfigManager.COALESCE_MAX_DELAY_MS,
+            this::onSettledChange);
 
     public FileMonitor(String directoryToWatch, FTPManager ftpManager, String remoteBasePath) {
-        this.directoryToWatch = Paths.get(directoryToWatch);
+        this(directoryToWatch, ftpManager, remoteBasePath, ConfigManager.SCAN_MODE);
+    }
+
+    public FileMonitor(String directoryToWatch, FTPManager ftpManager, String remoteBasePath, PollingScanner.ScanMode scanMode) {
+        this(directoryToWatch, ftpManager, remoteBasePath, scanMode, null);
+    }
+
+    /**
+     * @param scanMode how changes are found under this root: watch events, polling, or picked by filesystem type
+     * @param rootName tells this root's gauges apart from those of other roots; null when it is the only one
+     */
+    public FileMonitor(String directoryToWatch, FTPManager ftpManager, String remoteBasePath, PollingScanner.ScanMode scanMode,
+                       String rootName) {
+        this.directoryToWatch = Paths.get(directoryToWatch).toAbsolutePath();
         this.ftpManager = ftpManager;
         this.remoteBasePath = remoteBasePath;
+        this.scanMode = scanMode;
+        this.rootName = rootName;
+        registerGauge(SyncMetrics.QUEUE_DEPTH, transferScheduler::getQueuedCount);
+        registerGauge("coalescer_pending", eventCoalescer::getPendingCount);
+        this.bundler = ConfigManager.BUNDLE_MAX_FILE_BYTES >= 0
+                ? new SmallFileBundler(ftpManager, toRemotePath(ConfigManager.BUNDLE_DIRECTORY), new SmallFileBundler.Listener() {
+                    @Override
+                    public void onUploaded(List<SmallFileBundler.BundledFile> files) {
+                        for (SmallFileBundler.BundledFile file : files) {
+                            SyncIndex.Entry previous = syncIndex.get(file.relativePath());
+                            if (previous != null && previous.flags() != SyncIndex.FLAG_BUNDLED) {
+                                // Only now that bundle and manifest are stored can the file's own copy go
+                                deleteFileFromFTP(file.relativePath(), previous);
+                            }
+                            syncIndex.put(file.relativePath(), new SyncIndex.Entry(file.size(), file.lastModified(),
+                                    file.hash(), SyncIndex.FLAG_BUNDLED, SyncIndex.Status.SYNCED));
+                        }
+                    }
+
+                    @Override
+                    public void onFailed(Collection<String> relativePaths) {
+                        boolean serverDown = !ftpManager.isServerAvailable() || !ftpManager.probeServer();
+                        for (String relativePath : relativePaths) {
+                            if (serverDown) {
+                                journal(FileMonitor.this.directoryToWatch.resolve(relativePath), EventCoalescer.ChangeType.UPSERT);
+                            }
+                            SyncIndex.Entry entry = syncIndex.get(relativePath);
+                            if (entry != null) {
+                                syncIndex.put(relativePath, entry.withStatus(SyncIndex.Status.FAILED));
+                            }
+                            SyncMetrics.FAILURES.increment();
+                        }
+                    }
+                })
+                : null;
+    }
+
+    public Path getDirectoryToWatch() {
+        return directoryToWatch;
+    }
+
+    public String getRemoteBasePath() {
+        return remoteBasePath;
+    }
+
+    /**
+     * Completes once the tree has been walked and diffed against the index. In watch mode
+     * events are already handled while this runs.
+     */
+    public CompletableFuture<Void> getInitialScan() {
+        return initialScan;
+    }
+
+    /**
+     * Stops watching and gives the transfers already queued up to
+     * {@link ConfigManager#SHUTDOWN_DRAIN_TIMEOUT_MS} to finish. Whatever does not make it
+     * stays in the outbox, and changes not settled yet are found again by the next start.
+     */
+    public void stop() throws InterruptedException {
+        stopping = true;
+        // The FTPManager outlives this monitor, which must not replay into a closed index
+        ftpManager.removeRecoveryListener(replayOnRecovery);
+        Thread thread = monitorThread;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(2 * ConfigManager.SHUTDOWN_DRAIN_TIMEOUT_MS);
+        }
     }
 
     public void startMonitoring() throws IOException, InterruptedException, FTPException {
-        WatchService watchService = FileSystems.getDefault().newWatchService();
-        directoryToWatch.register(watchService,
-                StandardWatchEventKinds.ENTRY_CREATE,
-                StandardWatchEventKinds.ENTRY_MODIFY,
-                StandardWatchEventKinds.ENTRY_DELETE);
-        LogsManager.logInfo("Monitoring local directory: " + directoryToWatch);
-        Files.walkFileTree(directoryToWatch, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (!Files.isDirectory(file)) {
-                    lastModifiedTimes.put(file.toAbsolutePath(), Files.getLastModifiedTime(file).toMillis());
+        monitorThread = Thread.currentThread();
+        if (stopping) {
+            return;
+        }
+        openIndex();
+        registerGauge("outbox_pending", outbox::size);
+        ftpManager.addRecoveryListener(replayOnRecovery);
+        boolean polling = PollingScanner.shouldPoll(directoryToWatch, scanMode);
+        LogsManager.logInfo("{} local directory: {}", polling ? "Polling" : "Monitoring", directoryToWatch);
+        long start = System.currentTimeMillis();
+        // Anything that changed while we were not running is diffed against the index and queued
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        AtomicInteger changed = new AtomicInteger();
+        TreeWalker.FileCallback diff = (file, attrs) -> {
+            String relativePath = toRelativePath(file);
+            seen.add(relativePath);
+            SyncIndex.Entry entry = syncIndex.get(relativePath);
+            if (entry == null || entry.status() != SyncIndex.Status.SYNCED
+                    || !entry.matches(attrs.size(), attrs.lastModifiedTime().toMillis())) {
+                changed.incrementAndGet();
+                eventCoalescer.record(file, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        };
+        if (polling) {
+            PollingScanner scanner = new PollingScanner(directoryToWatch, ConfigManager.SCAN_PARALLELISM,
+                    ConfigManager.POLL_MIN_INTERVAL_MS, ConfigManager.POLL_MAX_INTERVAL_MS, this::onPolledChange);
+            finishInitialScan(scanner.baseline(diff), seen, changed.get(), start, "Polling");
+            pollChanges(scanner);
+        } else {
+            WatchService watchService = FileSystems.getDefault().newWatchService();
+            watchRegistry = new WatchRegistry(watchService, ConfigManager.SCAN_PARALLELISM, ConfigManager.RESCAN_PARALLELISM);
+            // Events are handled right away; registering and diffing a huge tree goes on in the background
+            Thread scan = new Thread(() -> {
+                try {
+                    finishInitialScan(watchRegistry.registerTree(directoryToWatch, diff), seen, changed.get(), start, "Watching");
+                } catch (RuntimeException e) {
+                    if (!stopping) {
+                        LogsManager.logError("Initial scan of {} failed: {}", directoryToWatch, e.getMessage(), e);
+                    }
+                    initialScan.completeExceptionally(e);
                 }
-                return FileVisitResult.CONTINUE;
+            }, "initial-scan");
+            scan.setDaemon(true);
+            scan.start();
+            processEvents(watchService);
+        }
+    }
+
+    private void finishInitialScan(int directories, Set<String> seen, int changed, long start, String verb) {
+        List<String> removed = new ArrayList<>();
+        syncIndex.forEach((relativePath, entry) -> {
+            if (!seen.contains(relativePath)) {
+                removed.add(relativePath);
             }
         });
-        processEvents(watchService);
+        for (String relativePath : removed) {
+            eventCoalescer.record(directoryToWatch.resolve(relativePath), StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        LogsManager.logInfo("{} {} directories ({} files) in {} ms; {} changed and {} deleted since last run",
+                verb, directories, seen.size(), System.currentTimeMillis() - start, changed, removed.size());
+        replayOutbox();
+        initialScan.complete(null);
+    }
+
+    private void pollChanges(PollingScanner scanner) throws InterruptedException {
+        try {
+            while (true) {
+                // Stop scanning while the transfer queue is full
+                transferScheduler.awaitCapacity();
+                Thread.sleep(scanner.scanDue());
+            }
+        } finally {
+            scanner.shutdown();
+            stopPipeline();
+        }
     }
 
     private void processEvents(WatchService watchService) throws InterruptedException, IOException {
         try (watchService) {
-            AtomicBoolean poll = new AtomicBoolean(true);
-            while (poll.get()) {
+            while (!watchRegistry.isEmpty() || !initialScan.isDone()) {
+                // Stop draining events while the transfer queue is full
+                transferScheduler.awaitCapacity();
                 WatchKey key = watchService.take();
-                if (key != null) {
-                    executorService.submit(() -> {
-                        try {
-                            for (WatchEvent<?> event : key.pollEvents()) {
-                                WatchEvent.Kind<?> kind = event.kind();
-                                if (kind == StandardWatchEventKinds.OVERFLOW) {
-                                    continue;
-                                }
-                                @SuppressWarnings("unchecked")
-                                WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                                Path filename = ev.context();
-                                Path child = directoryToWatch.resolve(filename);
-                                
-                                if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                                    LogsManager.logInfo("File created: " + filename);
-                                    syncFileToFTP(child, remoteBasePath + "/" + filename);
-                                    
-                                } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-                                    long currentLastModified = Files.getLastModifiedTime(child).toMillis();
-                                    
-                                    if (!lastModifiedTimes.containsKey(child.toAbsolutePath()) ||
-                                            lastModifiedTimes.get(child.toAbsolutePath()) < currentLastModified) {
-                                        
-                                        LogsManager.logInfo("File modified: " + filename);
-                                        syncFileToFTP(child, remoteBasePath + "/" + filename);
-                                        lastModifiedTimes.put(child.toAbsolutePath(), currentLastModified);
-                                        
-                                    }
-                                    
-                                } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-                                    LogsManager.logInfo("File deleted: " + filename);
-                                    deleteFileFromFTP(remoteBasePath + "/" + filename);
-                                    lastModifiedTimes.remove(child.toAbsolutePath());
-                                }
-                            }
-                            poll.set(key.reset());
-                        } catch (IOException e) {
-                            LogsManager.logError("Error at FileMonitor: " + e.getMessage(), e);
+                Path dir = watchRegistry.resolve(key);
+                if (dir == null) {
+                    key.cancel();
+                    continue;
+                }
+                // Events only feed the coalescer here; settled changes are handed to the pool
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    WatchEvent.Kind<?> kind = event.kind();
+                    if (kind == StandardWatchEventKinds.OVERFLOW) {
+                        // Events for this directory were lost, find out what changed by looking
+                        requestRescan(dir);
+                        continue;
+                    }
+                    @SuppressWarnings("unchecked")
+                    WatchEvent<Path> ev = (WatchEvent<Path>) event;
+                    Path child = dir.resolve(ev.context());
+
+                    if (kind == StandardWatchEventKinds.ENTRY_CREATE
+                            && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        if (!onDirectoryCreated(child)) {
+                            // Files may land in the new directory before it is registered, so sync what is already there
+                            watchRegistry.registerTree(child,
+                                    (file, attrs) -> eventCoalescer.record(file, StandardWatchEventKinds.ENTRY_CREATE));
+                        }
+                        continue;
+                    }
+                    if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                        if (onRemoved(child, watchRegistry.unregisterTree(child))) {
+                            continue;
                         }
-                        
-                    });
-                    
-                    
-                } else {
-                    poll.set(false);
+                    } else if (kind == StandardWatchEventKinds.ENTRY_CREATE && onFileCreated(child)) {
+                        continue;
+                    }
+                    eventCoalescer.record(child, kind);
+                }
+                if (!key.reset()) {
+                    watchRegistry.unregister(key);
+                }
+            }
+        } finally {
+            watchRegistry.shutdown();
+            stopPipeline();
+        }
+    }
+
+    private void stopPipeline() throws InterruptedException {
+        ftpManager.removeRecoveryListener(replayOnRecovery);
+        renameDetector.shutdown();
+        rescanExecutor.shutdownNow();
+        eventCoalescer.shutdown();
+        if (bundler != null) {
+            bundler.shutdown();
+        }
+        if (!stopping) {
+            syncIndex.flush();
+            return;
+        }
+        if (!transferScheduler.awaitIdle(ConfigManager.SHUTDOWN_DRAIN_TIMEOUT_MS)) {
+            LogsManager.logWarn("Transfers for {} still pending at shutdown, they stay in the outbox", directoryToWatch);
+        }
+        transferScheduler.shutdown();
+        syncIndex.close();
+        outbox.close();
+        // A root restarted under the same name may already have registered its own
+        registeredGauges.forEach(SyncMetrics::unregisterGauge);
+    }
+
+    private void registerGauge(String gauge, LongSupplier supplier) {
+        String name = rootName == null ? gauge : SyncMetrics.forRoot(gauge, rootName);
+        registeredGauges.put(name, supplier);
+        SyncMetrics.registerGauge(name, supplier);
+    }
+
+    private void onPolledChange(Path path, WatchEvent.Kind<?> kind) {
+        boolean paired = kind == StandardWatchEventKinds.ENTRY_DELETE ? onRemoved(path, null)
+                : kind == StandardWatchEventKinds.ENTRY_CREATE && onFileCreated(path);
+        if (!paired) {
+            eventCoalescer.record(path, kind);
+        }
+    }
+
+    /**
+     * Offers a deleted path to the rename detector. Returns true if the detector took it:
+     * either it is held waiting for its new name, or its new name was already seen.
+     *
+     * @param directoryKey file key of the path if it was a watched directory, null for files
+     */
+    private boolean onRemoved(Path path, Object directoryKey) {
+        if (directoryKey != null) {
+            RenameDetector.Removal removal = new RenameDetector.Removal(path, directoryKey, 0, 0);
+            Path created = renameDetector.hold(removal);
+            if (created != null) {
+                pairCreatedDirectory(removal, created);
+            }
+            return true;
+        }
+        SyncIndex.Entry entry = syncIndex.get(toRelativePath(path));
+        if (entry == null || entry.status() != SyncIndex.Status.SYNCED || entry.flags() == SyncIndex.FLAG_BUNDLED
+                || entry.size() < ConfigManager.RENAME_MIN_FILE_BYTES) {
+            return false;
+        }
+        RenameDetector.Removal removal = new RenameDetector.Removal(path, null, entry.size(), entry.lastModified());
+        Path created = renameDetector.hold(removal);
+        if (created == null) {
+            return true;
+        }
+        // The new name came first; pair them only if its upload has not started yet
+        if (!eventCoalescer.cancel(created)) {
+            return false;
+        }
+        submitRename(removal, created, List.of());
+        return true;
+    }
+
+    /**
+     * Pairs a new file with a held removal. Returns true if it was taken as a rename.
+     */
+    private boolean onFileCreated(Path file) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return false;
+        }
+        if (!attrs.isRegularFile() || attrs.size() < ConfigManager.RENAME_MIN_FILE_BYTES) {
+            return false;
+        }
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        RenameDetector.Removal removal = renameDetector.matchFile(file, attrs.size(), lastModified);
+        if (removal == null) {
+            renameDetector.rememberCreation(file, attrs.size(), lastModified);
+            return false;
+        }
+        submitRename(removal, file, List.of());
+        return true;
+    }
+
+    /**
+     * Pairs a new directory with a held removal by file key and registers it. Returns false,
+     * without registering anything, if it is not a rename; the directory is then remembered
+     * in case the removal of its old name is reported next.
+     */
+    private boolean onDirectoryCreated(Path dir) {
+        Object fileKey;
+        try {
+            fileKey = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+        } catch (IOException e) {
+            return false;
+        }
+        RenameDetector.Removal removal = renameDetector.matchDirectory(fileKey);
+        if (removal == null) {
+            renameDetector.rememberDirectoryCreation(dir, fileKey);
+            return false;
+        }
+        List<Path> files = new ArrayList<>();
+        watchRegistry.registerTree(dir, (file, attrs) -> {
+            synchronized (files) {
+                files.add(file);
+            }
+        });
+        submitRename(removal, dir, files);
+        return true;
+    }
+
+    /**
+     * Pairs a removed directory with the one its new name created first, which was registered
+     * and queued for upload as new. The queued uploads are taken back for the rename; if any
+     * has already started, the move is handled as a delete plus upload after all.
+     */
+    private void pairCreatedDirectory(RenameDetector.Removal removal, Path created) {
+        List<Path> files = new ArrayList<>();
+        // Registered again: the new name has the same inode, so it may share the watch key just cancelled for the old one
+        watchRegistry.registerTree(created, (file, attrs) -> {
+            synchronized (files) {
+                files.add(file);
+            }
+        });
+        List<Path> cancelled = new ArrayList<>();
+        for (Path file : files) {
+            if (eventCoalescer.cancel(file)) {
+                cancelled.add(file);
+            }
+        }
+        if (cancelled.size() < files.size()) {
+            releaseRemoval(removal);
+            cancelled.forEach(file -> eventCoalescer.record(file, StandardWatchEventKinds.ENTRY_CREATE));
+            return;
+        }
+        submitRename(removal, created, files);
+    }
+
+    /**
+     * A removal nothing claimed was a real delete. For a directory that means every file
+     * the index still holds below it.
+     */
+    private void releaseRemoval(RenameDetector.Removal removal) {
+        if (!removal.isDirectory()) {
+            eventCoalescer.record(removal.path(), StandardWatchEventKinds.ENTRY_DELETE);
+            return;
+        }
+        String prefix = toRelativePath(removal.path()) + "/";
+        List<String> removed = new ArrayList<>();
+        syncIndex.forEach((relativePath, entry) -> {
+            if (relativePath.startsWith(prefix)) {
+                removed.add(relativePath);
+            }
+        });
+        for (String relativePath : removed) {
+            eventCoalescer.record(directoryToWatch.resolve(relativePath), StandardWatchEventKinds.ENTRY_DELETE);
+        }
+    }
+
+    private void submitRename(RenameDetector.Removal removal, Path target, List<Path> files) {
+        Path parent = target.getParent();
+        try {
+            transferScheduler.submit(parent != null ? parent.toString() : "", TransferScheduler.Priority.HIGH,
+                    () -> removal.isDirectory() ? renameDirectory(removal, target, files) : renameFile(removal, target));
+        } catch (InterruptedException | RejectedExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            fallBackFromRename(removal, target, files);
+        }
+    }
+
+    private boolean renameFile(RenameDetector.Removal removal, Path target) {
+        String oldPath = toRelativePath(removal.path());
+        String newPath = toRelativePath(target);
+        SyncIndex.Entry entry = syncIndex.get(oldPath);
+        try {
+            if (entry == null || entry.flags() != transformFlags(target)) {
+                // Gone from the index meanwhile, or the new name gets a different remote suffix
+                fallBackFromRename(removal, target, List.of());
+                return false;
+            }
+            if (entry.hash() != 0 && entry.size() <= ConfigManager.RENAME_VERIFY_MAX_BYTES
+                    && ContentHasher.hash(target) != entry.hash()) {
+                LogsManager.logDebug("Content of {} differs from {}, not a rename", newPath, oldPath);
+                fallBackFromRename(removal, target, List.of());
+                return false;
+            }
+            String suffix = remoteSuffix(entry.flags());
+            ftpManager.rename(toRemotePath(oldPath) + suffix, toRemotePath(newPath) + suffix);
+        } catch (IOException | FTPException e) {
+            LogsManager.logWarn("Could not rename {} to {} on the server, uploading it again: {}", oldPath, newPath, e.getMessage());
+            fallBackFromRename(removal, target, List.of());
+            return false;
+        }
+        syncIndex.remove(oldPath);
+        syncIndex.put(newPath, entry);
+        recordIfChanged(target, entry);
+        LogsManager.logInfo("File renamed: {} -> {}", oldPath, newPath);
+        return true;
+    }
+
+    private boolean renameDirectory(RenameDetector.Removal removal, Path target, List<Path> files) {
+        String oldPath = toRelativePath(removal.path());
+        String newPath = toRelativePath(target);
+        try {
+            ftpManager.rename(toRemotePath(oldPath), toRemotePath(newPath));
+        } catch (FTPException e) {
+            LogsManager.logWarn("Could not rename directory {} to {} on the server, uploading it again: {}", oldPath, newPath, e.getMessage());
+            fallBackFromRename(removal, target, files);
+            return false;
+        }
+        String oldPrefix = oldPath + "/";
+        List<String> moved = new ArrayList<>();
+        syncIndex.forEach((relativePath, entry) -> {
+            if (relativePath.startsWith(oldPrefix)) {
+                moved.add(relativePath);
+            }
+        });
+        for (String relativePath : moved) {
+            SyncIndex.Entry entry = syncIndex.get(relativePath);
+            syncIndex.remove(relativePath);
+            // Bundle manifests still name the old path, so bundled files go out again under the new one
+            if (entry != null && entry.flags() != SyncIndex.FLAG_BUNDLED) {
+                syncIndex.put(newPath + "/" + relativePath.substring(oldPrefix.length()), entry);
+            } else if (entry != null && bundler != null) {
+                bundler.remove(relativePath);
+            }
+        }
+        for (Path file : files) {
+            recordIfChanged(file, syncIndex.get(toRelativePath(file)));
+        }
+        LogsManager.logInfo("Directory renamed: {} -> {} ({} files moved on the server)", oldPath, newPath, moved.size());
+        return true;
+    }
+
+    /**
+     * Queues an upload for a file that no longer matches what was renamed into place.
+     */
+    private void recordIfChanged(Path file, SyncIndex.Entry entry) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (entry == null || !entry.matches(attrs.size(), attrs.lastModifiedTime().toMillis())) {
+                eventCoalescer.record(file, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        } catch (IOException e) {
+            eventCoalescer.record(file, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+    }
+
+    /**
+     * Handles a pair that could not be renamed on the server the slow way: delete the old
+     * path and upload the new one.
+     */
+    private void fallBackFromRename(RenameDetector.Removal removal, Path target, List<Path> files) {
+        releaseRemoval(removal);
+        if (removal.isDirectory()) {
+            files.forEach(file -> eventCoalescer.record(file, StandardWatchEventKinds.ENTRY_CREATE));
+        } else {
+            eventCoalescer.record(target, StandardWatchEventKinds.ENTRY_CREATE);
+        }
+    }
+
+    /**
+     * Queues a rescan of {@code dir}. Rescans start after a short delay, so when the kernel
+     * queue overflows and every directory reports it, only the topmost ones are walked.
+     */
+    private void requestRescan(Path dir) {
+        if (overflowedDirectories.add(dir) && overflowedDirectories.size() == 1) {
+            LogsManager.logWarn("Watch events lost in {}, rescanning", dir);
+            rescanExecutor.schedule(this::rescanOverflowed, ConfigManager.COALESCE_QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void rescanOverflowed() {
+        List<Path> dirs = new ArrayList<>(overflowedDirectories);
+        overflowedDirectories.removeAll(dirs);
+        dirs.sort(Comparator.comparingInt(Path::getNameCount));
+        List<Path> roots = new ArrayList<>();
+        for (Path dir : dirs) {
+            if (roots.stream().noneMatch(dir::startsWith)) {
+                roots.add(dir);
+            }
+        }
+        for (Path root : roots) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            rescan(root);
+        }
+        // Directories that overflowed while we were busy get their turn now
+        if (!overflowedDirectories.isEmpty()) {
+            rescanExecutor.execute(this::rescanOverflowed);
+        }
+    }
+
+    /**
+     * Compares {@code dir} and everything below it with the index and queues only the
+     * differences. Runs at {@link ConfigManager#RESCAN_FILES_PER_SEC} at most, on its own
+     * walker, so live events keep flowing while it works through a large tree.
+     */
+    private void rescan(Path dir) {
+        long start = System.currentTimeMillis();
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        AtomicInteger changed = new AtomicInteger();
+        watchRegistry.rescanTree(dir, (file, attrs) -> {
+            try {
+                rescanLimiter.acquire(1);
+            } catch (InterruptedIOException e) {
+                return;
+            }
+            String relativePath = toRelativePath(file);
+            seen.add(relativePath);
+            if (hasChanged(file, relativePath, attrs)) {
+                changed.incrementAndGet();
+                eventCoalescer.record(file, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        });
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        String relativeDir = toRelativePath(dir);
+        String prefix = relativeDir.isEmpty() ? "" : relativeDir + "/";
+        List<Path> removed = new ArrayList<>();
+        syncIndex.forEach((relativePath, entry) -> {
+            if (relativePath.startsWith(prefix) && !seen.contains(relativePath)) {
+                removed.add(directoryToWatch.resolve(relativePath));
+            }
+        });
+        int deleted = 0;
+        for (Path file : removed) {
+            // Created since the walk passed by: the watcher reports those itself
+            if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+                eventCoalescer.record(file, StandardWatchEventKinds.ENTRY_DELETE);
+                deleted++;
+            }
+        }
+        LogsManager.logInfo("Rescanned {} ({} files) in {} ms; {} changed and {} deleted",
+                dir, seen.size(), System.currentTimeMillis() - start, changed.get(), deleted);
+    }
+
+    /**
+     * Whether the file differs from what the index recorded. Size and mtime decide; content
+     * is hashed only when the size matches and just the mtime moved.
+     */
+    private boolean hasChanged(Path file, String relativePath, BasicFileAttributes attrs) {
+        SyncIndex.Entry entry = syncIndex.get(relativePath);
+        if (entry == null || entry.status() != SyncIndex.Status.SYNCED) {
+            return true;
+        }
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        if (entry.matches(attrs.size(), lastModified)) {
+            return false;
+        }
+        if (entry.size() != attrs.size() || entry.hash() == 0) {
+            return true;
+        }
+        try {
+            if (ContentHasher.hash(file) == entry.hash()) {
+                syncIndex.put(relativePath, new SyncIndex.Entry(entry.size(), lastModified, entry.hash(), entry.flags(), SyncIndex.Status.SYNCED));
+                return false;
+            }
+        } catch (IOException e) {
+            LogsManager.logDebug("Could not hash {} during rescan: {}", file, e.getMessage());
+        }
+        return true;
+    }
+
+    private boolean handleChange(Path child, EventCoalescer.ChangeType type) {
+        if (type == EventCoalescer.ChangeType.DELETE) {
+            if (Files.exists(child, LinkOption.NOFOLLOW_LINKS)) {
+                return true;
+            }
+            String relativePath = toRelativePath(child);
+            LogsManager.logInfo("File deleted: {}", relativePath);
+            if (!deleteFileFromFTP(relativePath, syncIndex.get(relativePath))) {
+                return false;
+            }
+            syncIndex.remove(relativePath);
+            return true;
+        }
+        return syncFile(child, false);
+    }
+
+    private void onSettledChange(Path path, EventCoalescer.ChangeType type) {
+        try {
+            long sequence = journal(path, type);
+            // While the server is down the change just waits in the outbox for the replay
+            if (ftpManager.isServerAvailable()) {
+                scheduleExclusive(path, type, true, () -> runJournaled(path, type, sequence));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the change to the outbox before anything is attempted. Returns the sequence to
+     * acknowledge, or -1 if the outbox could not be written.
+     */
+    private long journal(Path path, EventCoalescer.ChangeType type) {
+        try {
+            return outbox.append(toRelativePath(path), type == EventCoalescer.ChangeType.DELETE
+                    ? OutboxJournal.Operation.DELETE : OutboxJournal.Operation.UPSERT);
+        } catch (IOException e) {
+            LogsManager.logError("Error writing outbox for {}: {}", path, e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * Runs a journaled change and acknowledges it, unless it failed because the server went
+     * away: then it stays in the outbox and is replayed once the server is back.
+     */
+    private boolean runJournaled(Path child, EventCoalescer.ChangeType type, long sequence) {
+        if (!ftpManager.isServerAvailable()) {
+            return false;
+        }
+        boolean done = handleChange(child, type);
+        // A file that vanished before its upload is not a server problem, nothing to probe for
+        boolean mayRetry = type == EventCoalescer.ChangeType.DELETE || Files.isRegularFile(child, LinkOption.NOFOLLOW_LINKS);
+        if (!done && mayRetry && !ftpManager.probeServer()) {
+            LogsManager.logWarn("FTP server unavailable, keeping {} in the outbox", child);
+            return false;
+        }
+        if (sequence > 0) {
+            outbox.ack(toRelativePath(child), sequence);
+        }
+        return done;
+    }
+
+    /**
+     * Feeds the operations left in the outbox back through the coalescer, where they merge
+     * with whatever the watcher reports for the same paths. Runs on its own whenever the
+     * server comes back after being lost.
+     */
+    public void replayOutbox() {
+        Map<String, OutboxJournal.Pending> pending = outbox.pending();
+        if (pending.isEmpty() || stopping) {
+            return;
+        }
+        LogsManager.logInfo("Replaying {} pending operations from the outbox", pending.size());
+        pending.forEach((relativePath, op) -> eventCoalescer.record(directoryToWatch.resolve(relativePath),
+                op.operation() == OutboxJournal.Operation.DELETE
+                        ? StandardWatchEventKinds.ENTRY_DELETE : StandardWatchEventKinds.ENTRY_MODIFY));
+    }
+
+    /**
+     * Queues an upload of {@code file} even if the index says it is already synchronized.
+     * Blocks while the transfer queue is full.
+     */
+    public Future<Boolean> submitSync(Path file) throws IOException, InterruptedException {
+        openIndex();
+        return scheduleExclusive(file, EventCoalescer.ChangeType.UPSERT, false, () -> syncFile(file, true));
+    }
+
+    /**
+     * Schedules {@code task} unless a transfer of the same path is still running. Then the
+     * change is only remembered, and fed back through the coalescer once the running one
+     * is done, so two uploads never write the same remote file at once.
+     */
+    private Future<Boolean> scheduleExclusive(Path file, EventCoalescer.ChangeType type, boolean recent,
+                                              Callable<Boolean> task) throws InterruptedException {
+        synchronized (inFlight) {
+            if (inFlight.containsKey(file)) {
+                inFlight.put(file, type);
+                return CompletableFuture.completedFuture(true);
+            }
+            inFlight.put(file, null);
+        }
+        try {
+            return schedule(file, recent, () -> {
+                try {
+                    return task.call();
+                } finally {
+                    finished(file);
                 }
+            });
+        } catch (InterruptedException | RuntimeException e) {
+            finished(file);
+            throw e;
+        }
+    }
+
+    private void finished(Path file) {
+        EventCoalescer.ChangeType rerun;
+        synchronized (inFlight) {
+            rerun = inFlight.remove(file);
+        }
+        // When stopping, the change waits in the outbox for the next start
+        if (rerun != null && !stopping) {
+            eventCoalescer.record(file, rerun == EventCoalescer.ChangeType.DELETE
+                    ? StandardWatchEventKinds.ENTRY_DELETE : StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+    }
+
+    public TransferScheduler getTransferScheduler() {
+        return transferScheduler;
+    }
+
+    private Future<Boolean> schedule(Path file, boolean recent, Callable<Boolean> task) throws InterruptedException {
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            size = 0;  // Deleted files cost a single command
+        }
+        Path parent = file.getParent();
+        return transferScheduler.submit(parent != null ? parent.toString() : "",
+                TransferScheduler.classify(size, recent), task);
+    }
+
+    /**
+     * Remote path the file is stored under, including the suffixes added by compression and encryption.
+     */
+    public String remotePathFor(Path file) {
+        return toRemotePath(toRelativePath(file)) + remoteSuffix(flagsFor(file));
+    }
+
+    /**
+     * Uploads the current content of {@code file} to another target, transformed as it is
+     * for the primary server. Used to bring a mirror up to date.
+     */
+    public void uploadTo(FTPManager target, Path file) throws FTPException {
+        int flags = flagsFor(file);
+        if ((flags & SyncIndex.FLAG_BUNDLED) != 0) {
+            // The bundle holding it reaches the mirror on its own
+            return;
+        }
+        String remoteName = remotePathFor(file);
+        try {
+            if (flags == 0 && Files.size(file) >= ConfigManager.RESUMABLE_UPLOAD_THRESHOLD_BYTES) {
+                target.uploadFileResumable(file.toFile(), remoteName);
+                return;
             }
+        } catch (IOException e) {
+            throw new FTPException("Error reading " + file + ": " + e.getMessage(), e);
         }
+        target.uploadStream(remoteName, transformedContent(file, flags));
     }
 
-    private void syncFileToFTP(Path localFilePath, String remoteFilePath) {
-        File localFile = localFilePath.toFile();
-        if (!localFile.isFile()) {
-            LogsManager.logWarn("Ignoring non-file: " + localFilePath);
+    /**
+     * Reads {@code file} afresh on every call and writes it transformed by {@code flags}.
+     */
+    private static FTPManager.StreamWriter transformedContent(Path file, int flags) {
+        return remoteStream -> {
+            try (InputStream in = Files.newInputStream(file);
+                 OutputStream out = openTransformStream(remoteStream, flags)) {
+                copy(in, out);
+            }
+        };
+    }
+
+    /**
+     * Whether the remote copy holds the file's bytes unchanged, so sizes can be compared directly.
+     */
+    public boolean isStoredVerbatim(Path file) {
+        return flagsFor(file) == 0;
+    }
+
+    /**
+     * Whether the file went out in a bundle and has not changed since, so it has no
+     * individual copy on the server.
+     */
+    public boolean isSyncedInBundle(Path file, BasicFileAttributes attrs) {
+        SyncIndex.Entry entry = syncIndex != null ? syncIndex.get(toRelativePath(file)) : null;
+        return entry != null && entry.flags() == SyncIndex.FLAG_BUNDLED && entry.status() == SyncIndex.Status.SYNCED
+                && entry.matches(attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Uploads the small files still waiting for their bundle window.
+     */
+    public void flushBundles() throws InterruptedException {
+        if (bundler != null) {
+            bundler.flush();
+        }
+    }
+
+    /**
+     * Whether the file still holds what the index records as synced: same size and mtime, or
+     * same size and same content hash after a mere touch.
+     */
+    public boolean isUnchangedSinceSync(Path file, BasicFileAttributes attrs) {
+        SyncIndex.Entry entry = syncIndex != null ? syncIndex.get(toRelativePath(file)) : null;
+        if (entry == null || entry.status() != SyncIndex.Status.SYNCED || entry.size() != attrs.size()) {
+            return false;
+        }
+        if (entry.matches(attrs.size(), attrs.lastModifiedTime().toMillis())) {
+            return true;
+        }
+        try {
+            return entry.hash() != 0 && ContentHasher.hash(file) == entry.hash();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records a file found to be up to date on the server without uploading it. The content
+     * is hashed, so later touches of the file are still recognised as no change.
+     */
+    public void recordSynced(Path file, BasicFileAttributes attrs) throws IOException {
+        openIndex();
+        String relativePath = toRelativePath(file);
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        SyncIndex.Entry entry = syncIndex.get(relativePath);
+        if (entry != null && entry.status() == SyncIndex.Status.SYNCED && entry.matches(attrs.size(), lastModified)) {
             return;
         }
-        String encryptedText;
-        boolean isTextFile = isTextFile(localFilePath);
-        try {
-            String remoteFullPath = remoteFilePath.replace("\\", "/");
-            if (remoteFullPath.startsWith("/")) {
-                remoteFullPath = remoteFullPath.substring(1);  // Eliminar slash inicial
-            }
-            if (isTextFile) {
-                String plainText = Files.readString(localFilePath);
-                encryptedText = CryptoManager.encryptText(plainText, ConfigManager.AES_ENCRYPTION_KEY);
-                File tempEncryptedFile = File.createTempFile(localFile.getName() + "_encrypted_", ".txt");
-                Files.writeString(tempEncryptedFile.toPath(), encryptedText);
-                ftpManager.uploadFile(tempEncryptedFile, remoteFullPath + ".encrypted");
-                tempEncryptedFile.delete();
-                LogsManager.logInfo("Text file encrypted and synchronized: " + localFilePath + " -> " + remoteFullPath + ".encrypted");
-            } else {
-                ftpManager.uploadFile(localFile, remoteFullPath);
-                LogsManager.logInfo("Binary file synchronized: " + localFilePath + " -> " + remoteFullPath);
+        syncIndex.put(relativePath, new SyncIndex.Entry(attrs.size(), lastModified, ContentHasher.hash(file), flagsFor(file), SyncIndex.Status.SYNCED));
+    }
+
+    private boolean syncFile(Path child, boolean force) {
+        String relativePath = toRelativePath(child);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            LogsManager.logDebug("File vanished before it could be synchronized: {}", child);
+            return false;
+        }
+        if (!attrs.isRegularFile()) {
+            return false;
+        }
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        SyncIndex.Entry previous = syncIndex.get(relativePath);
+        if (!force && previous != null && previous.status() == SyncIndex.Status.SYNCED) {
+            if (previous.matches(size, lastModified)) {
+                return true;
+            }
+            // Same size but a new mtime (touch, checkout, identical rewrite): hash before spending bandwidth
+            if (previous.size() == size && previous.hash() != 0) {
+                try {
+                    if (ContentHasher.hash(child) == previous.hash()) {
+                        LogsManager.logDebug("Content unchanged, skipping upload: {}", relativePath);
+                        syncIndex.put(relativePath, new SyncIndex.Entry(size, lastModified, previous.hash(), previous.flags(), SyncIndex.Status.SYNCED));
+                        return true;
+                    }
+                } catch (IOException e) {
+                    LogsManager.logDebug("Could not hash {}, uploading it: {}", child, e.getMessage());
+                }
+            }
+        }
+
+        LogsManager.logDebug("File changed: {}", relativePath);
+        boolean bundled = bundler != null && SmallFileBundler.accepts(relativePath, size)
+                && (ConfigManager.BUNDLE_ENCRYPT || !isTextFile(child));
+        int flags = bundled ? SyncIndex.FLAG_BUNDLED : transformFlags(child);
+        // Until the new copy is stored the entry keeps the old flags, so the old copy can still be found
+        int storedFlags = previous != null ? previous.flags() : flags;
+        syncIndex.put(relativePath, new SyncIndex.Entry(size, lastModified, 0, storedFlags, SyncIndex.Status.PENDING));
+        if (bundled) {
+            // The bundler marks the entry synced, and drops any copy of its own, once its bundle is on the server
+            bundler.add(relativePath, child, size);
+            return true;
+        }
+        try {
+            long hash = syncFileToFTP(child, toRemotePath(relativePath), flags);
+            if (storedFlags != flags) {
+                // The file now has a different remote name, drop the copy stored under the old one
+                deleteFileFromFTP(relativePath, previous);
             }
+            syncIndex.put(relativePath, new SyncIndex.Entry(size, lastModified, hash, flags, SyncIndex.Status.SYNCED));
+            return true;
         } catch (Exception e) {
-            LogsManager.logError("Error synchronizing file " + localFilePath + " with FTP: " + e.getMessage(), e);
+            LogsManager.logError("Error synchronizing file {} with FTP: {}", child, e.getMessage(), e);
+            SyncMetrics.FAILURES.increment();
+            syncIndex.put(relativePath, new SyncIndex.Entry(size, lastModified, 0, storedFlags, SyncIndex.Status.FAILED));
+            return false;
+        }
+    }
+
+    /**
+     * Loads the sync index and the outbox of this root, once.
+     */
+    public synchronized void openIndex() throws IOException {
+        if (syncIndex == null) {
+            syncIndex = SyncIndex.open(directoryToWatch);
+        }
+        if (outbox == null) {
+            outbox = OutboxJournal.open(directoryToWatch);
         }
     }
-    
-    private void deleteFileFromFTP(String remoteFilePath) {
+
+    private String toRelativePath(Path localPath) {
+        Path relative = directoryToWatch.relativize(localPath);
+        StringBuilder relativePath = new StringBuilder();
+        for (Path part : relative) {
+            if (relativePath.length() > 0) {
+                relativePath.append('/');
+            }
+            relativePath.append(part);
+        }
+        return relativePath.toString();
+    }
+
+    private String toRemotePath(String relativePath) {
+        String remoteFullPath = remoteBasePath + "/" + relativePath;
+        if (remoteFullPath.startsWith("/")) {
+            remoteFullPath = remoteFullPath.substring(1);  // Eliminar slash inicial
+        }
+        return remoteFullPath;
+    }
+
+    /**
+     * Uploads the file and returns the CRC32C of the plain content, computed on the fly.
+     */
+    private long syncFileToFTP(Path localFilePath, String remoteFullPath, int flags) throws FTPException, IOException {
+        String remoteName = remoteFullPath + remoteSuffix(flags);
+        if (flags == 0 && Files.size(localFilePath) >= ConfigManager.RESUMABLE_UPLOAD_THRESHOLD_BYTES) {
+            // Resumed uploads only see part of the stream, so the checksum is computed up front
+            long hash = ContentHasher.hash(localFilePath);
+            ftpManager.uploadFileResumable(localFilePath.toFile(), remoteName);
+            LogsManager.logInfo("Binary file synchronized: {} -> {}", localFilePath, remoteName);
+            return hash;
+        }
+        CRC32C checksum = new CRC32C();
+        // Read, transform and upload in fixed-size chunks: memory stays constant whatever the file size
+        ftpManager.uploadStream(remoteName, remoteStream -> {
+            try (InputStream in = new CheckedInputStream(Files.newInputStream(localFilePath), checksum);
+                 OutputStream out = openTransformStream(remoteStream, flags)) {
+                copy(in, out);
+            }
+        }, transformedContent(localFilePath, flags)); // Mirrors replaying later must not touch the checksum
+        LogsManager.logInfo("File synchronized: {} -> {}", localFilePath, remoteName);
+        return checksum.getValue();
+    }
+
+    private static OutputStream openTransformStream(OutputStream remoteStream, int flags) throws IOException {
+        OutputStream out = remoteStream;
+        if ((flags & SyncIndex.FLAG_ENCRYPTED) != 0) {
+            out = CryptoManager.encryptStream(out, ConfigManager.aesEncryptionKey());
+        }
+        // Compression must see the plain bytes, so it sits in front of the cipher
+        return CompressionManager.compressStream(out, codecOf(flags), ConfigManager.COMPRESSION_LEVEL);
+    }
+
+    private int flagsFor(Path file) {
+        SyncIndex.Entry entry = syncIndex != null ? syncIndex.get(toRelativePath(file)) : null;
+        return entry != null ? entry.flags() : transformFlags(file);
+    }
+
+    private int transformFlags(Path file) {
+        int flags = isTextFile(file) ? SyncIndex.FLAG_ENCRYPTED : 0;
+        // Only files stored verbatim can resume, so large binaries stay uncompressed to keep that
+        boolean resumable = flags == 0 && file.toFile().length() >= ConfigManager.RESUMABLE_UPLOAD_THRESHOLD_BYTES;
+        if (ConfigManager.COMPRESSION_CODEC != CompressionManager.Codec.NONE && !resumable && CompressionManager.isCompressible(file)) {
+            flags |= ConfigManager.COMPRESSION_CODEC == CompressionManager.Codec.GZIP ? SyncIndex.FLAG_GZIP : SyncIndex.FLAG_DEFLATE;
+        }
+        return flags;
+    }
+
+    private static CompressionManager.Codec codecOf(int flags) {
+        if ((flags & SyncIndex.FLAG_GZIP) != 0) {
+            return CompressionManager.Codec.GZIP;
+        }
+        if ((flags & SyncIndex.FLAG_DEFLATE) != 0) {
+            return CompressionManager.Codec.DEFLATE;
+        }
+        return CompressionManager.Codec.NONE;
+    }
+
+    private static String remoteSuffix(int flags) {
+        String suffix = codecOf(flags).getSuffix();
+        return (flags & SyncIndex.FLAG_ENCRYPTED) != 0 ? suffix + ".encrypted" : suffix;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[ConfigManager.STREAM_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private boolean deleteFileFromFTP(String relativePath, SyncIndex.Entry entry) {
+        String remoteFullPath = toRemotePath(relativePath);
         try {
-            String remoteFullPath = remoteFilePath.replace("\\", "/");
+            if (entry != null && entry.flags() == SyncIndex.FLAG_BUNDLED) {
+                // Bundled files have no copy of their own and old bundles are kept as history,
+                // the next manifest only records that the file is gone
+                if (bundler != null) {
+                    bundler.remove(relativePath);
+                }
+                return true;
+            }
+            if (entry != null) {
+                ftpManager.deleteFile(remoteFullPath + remoteSuffix(entry.flags()));
+                return true;
+            }
             ftpManager.deleteFile(remoteFullPath);
             ftpManager.deleteFile(remoteFullPath + ".encrypted");
+            return true;
         } catch (FTPException e) {
-            LogsManager.logError("Error deleting file " + remoteFilePath + " from FTP: " + e.getMessage(), e);
+            LogsManager.logError("Error deleting file {} from FTP: {}", remoteFullPath, e.getMessage(), e);
+            SyncMetrics.FAILURES.increment();
+            return false;
         }
     }
 
@@ -1,7 +1,12 @@
 package org.manolin.ftpblost;
 
+import java.nio.file.Path;
+
 import org.manolin.ftpblost.controller.BackupController;
+import org.manolin.ftpblost.controller.DaemonController;
 import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.managers.ConfigFile;
+import org.manolin.ftpblost.metrics.MetricsExporter;
 
 /**
  *
@@ -9,11 +14,45 @@ import org.manolin.ftpblost.logs.LogsManager;
  */
 public class Ftpblost {
 
+    /**
+     * Usage: {@code ftpblost [--config <file>] [--daemon]}. Without {@code --daemon} the
+     * interactive menu runs; the daemon needs a config file.
+     */
     public static void main(String[] args) {
+        boolean daemon = false;
+        String configFile = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--daemon" -> daemon = true;
+                case "--config" -> configFile = i + 1 < args.length ? args[++i] : null;
+                default -> LogsManager.logWarn("Ignoring unknown argument: {}", args[i]);
+            }
+        }
+        if (daemon && configFile == null) {
+            LogsManager.logError("Daemon mode needs --config <file>", (Throwable) null);
+            LogsManager.shutdown();
+            System.exit(2);
+        }
+        // Must be set before ConfigManager is first used, its settings are read from this file
+        if (configFile != null) {
+            System.setProperty(ConfigFile.PATH_PROPERTY, Path.of(configFile).toAbsolutePath().toString());
+        }
+
         LogsManager.logInfo("Starting FTPBlost application...");
         try {
-            BackupController backupController = new BackupController();
-            backupController.showMenu();
+            MetricsExporter.start();
+            if (daemon) {
+                DaemonController daemonController = new DaemonController(Path.of(configFile));
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    daemonController.shutdown();
+                    LogsManager.shutdown();
+                }, "shutdown"));
+                daemonController.run();
+            } else {
+                Runtime.getRuntime().addShutdownHook(new Thread(LogsManager::shutdown, "shutdown"));
+                BackupController backupController = new BackupController();
+                backupController.showMenu();
+            }
         } catch (Exception e) {
             LogsManager.logError("Fatal error in application", e);
             System.exit(1);
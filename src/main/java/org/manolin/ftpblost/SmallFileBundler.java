@@ -0,0 +1,366 @@
+package org.manolin.ftpblost;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.manolin.ftpblost.exceptions.FTPException;
+import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.managers.ConfigManager;
+import org.manolin.ftpblost.managers.CryptoManager;
+import org.manolin.ftpblost.managers.FTPManager;
+
+/**
+ * Packs small files that change within a short window into a single ZIP upload, so tens of
+ * thousands of tiny files do not each pay for a data connection and a STOR round trip.
+ * Every bundle is uploaded with a manifest listing the files it holds, which is what the
+ * restore path searches, newest bundle first, to pull a single file back out. A bundled
+ * file that is deleted or renamed away gets a tombstone line in the next manifest, size
+ * {@code -1}, so a full restore does not bring it back from an older bundle.
+ */
+public class SmallFileBundler {
+
+    private static final String ENCRYPTED_SUFFIX = ".encrypted";
+    private static final String MANIFEST_HEADER = "# ftpblost bundle manifest v1";
+    private static final String TOMBSTONE_SIZE = "-1";
+
+    public record BundledFile(String relativePath, long size, long lastModified, long hash) {
+    }
+
+    public interface Listener {
+        void onUploaded(List<BundledFile> files);
+
+        void onFailed(Collection<String> relativePaths);
+    }
+
+    private final FTPManager ftpManager;
+    private final String remoteDirectory;
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bundle-uploader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Path> pending = new LinkedHashMap<>();
+    // Bundled paths that are gone, with the time they went, waiting for the next manifest
+    private final Map<String, Long> removed = new LinkedHashMap<>();
+    private final AtomicInteger sequence = new AtomicInteger();
+    private long pendingBytes;
+    private ScheduledFuture<?> scheduledFlush;
+
+    public SmallFileBundler(FTPManager ftpManager, String remoteDirectory, Listener listener) {
+        this.ftpManager = ftpManager;
+        this.remoteDirectory = remoteDirectory;
+        this.listener = listener;
+    }
+
+    /**
+     * Whether a file of this size and path can go into a bundle. Paths are written one per
+     * line in the manifest, so names containing line breaks are uploaded on their own.
+     */
+    public static boolean accepts(String relativePath, long size) {
+        return size <= ConfigManager.BUNDLE_MAX_FILE_BYTES
+                && relativePath.indexOf('\n') < 0 && relativePath.indexOf('\r') < 0;
+    }
+
+    /**
+     * Queues a file for the next bundle. The bundle goes out once the window that started
+     * with its first file has passed, or earlier if it reaches its entry or size limit.
+     */
+    public synchronized void add(String relativePath, Path file, long size) {
+        pending.put(relativePath, file);
+        removed.remove(relativePath);
+        pendingBytes += size;
+        scheduleFlush();
+    }
+
+    /**
+     * Records that a bundled file was deleted or renamed away. The tombstone goes out with
+     * the next manifest, within the same window as files.
+     */
+    public synchronized void remove(String relativePath) {
+        pending.remove(relativePath);
+        removed.put(relativePath, System.currentTimeMillis());
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (pending.size() + removed.size() >= ConfigManager.BUNDLE_MAX_ENTRIES || pendingBytes >= ConfigManager.BUNDLE_MAX_BYTES) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            scheduler.execute(this::flushPending);
+        } else if (scheduledFlush == null) {
+            scheduledFlush = scheduler.schedule(this::flushPending, ConfigManager.BUNDLE_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Uploads whatever is queued and waits until it is on the server.
+     */
+    public void flush() throws InterruptedException {
+        try {
+            scheduler.submit(this::flushPending).get();
+        } catch (ExecutionException e) {
+            LogsManager.logError("Error flushing bundle: {}", e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    public void shutdown() throws InterruptedException {
+        flush();
+        scheduler.shutdown();
+    }
+
+    private void flushPending() {
+        Map<String, Path> batch;
+        Map<String, Long> tombstones;
+        synchronized (this) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (pending.isEmpty() && removed.isEmpty()) {
+                return;
+            }
+            batch = new LinkedHashMap<>(pending);
+            tombstones = new LinkedHashMap<>(removed);
+            pending.clear();
+            removed.clear();
+            pendingBytes = 0;
+        }
+        upload(batch, tombstones);
+    }
+
+    private void upload(Map<String, Path> batch, Map<String, Long> tombstones) {
+        // Read everything first: the files are small, and the data connection is not held open on disk reads
+        List<BundledFile> files = new ArrayList<>(batch.size());
+        List<byte[]> contents = new ArrayList<>(batch.size());
+        for (Map.Entry<String, Path> entry : batch.entrySet()) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(entry.getValue(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!attrs.isRegularFile()) {
+                    continue;
+                }
+                byte[] content = Files.readAllBytes(entry.getValue());
+                CRC32C hash = new CRC32C();
+                hash.update(content);
+                files.add(new BundledFile(entry.getKey(), content.length, attrs.lastModifiedTime().toMillis(), hash.getValue()));
+                contents.add(content);
+            } catch (IOException e) {
+                LogsManager.logDebug("File vanished before it could be bundled: {}", entry.getValue());
+            }
+        }
+        if (files.isEmpty() && tombstones.isEmpty()) {
+            return;
+        }
+
+        String name = String.format("bundle-%013d-%06d", System.currentTimeMillis(), sequence.incrementAndGet());
+        String suffix = ConfigManager.BUNDLE_ENCRYPT ? ENCRYPTED_SUFFIX : "";
+        try {
+            ftpManager.uploadStream(remoteDirectory + "/" + name + ".zip" + suffix, remoteStream -> {
+                try (ZipOutputStream zip = new ZipOutputStream(wrapEncrypt(remoteStream))) {
+                    zip.setLevel(ConfigManager.COMPRESSION_LEVEL);
+                    for (int i = 0; i < files.size(); i++) {
+                        writeEntry(zip, files.get(i), contents.get(i));
+                    }
+                }
+            });
+            // The manifest goes last, so every manifest on the server points at a complete bundle
+            ftpManager.uploadStream(remoteDirectory + "/" + name + ".manifest" + suffix, remoteStream -> {
+                try (Writer writer = new OutputStreamWriter(wrapEncrypt(remoteStream), StandardCharsets.UTF_8)) {
+                    writer.write(MANIFEST_HEADER + "\n");
+                    for (BundledFile file : files) {
+                        writer.write(Long.toHexString(file.hash()) + "\t" + file.size() + "\t" + file.lastModified()
+                                + "\t" + file.relativePath() + "\n");
+                    }
+                    for (Map.Entry<String, Long> tombstone : tombstones.entrySet()) {
+                        writer.write("0\t" + TOMBSTONE_SIZE + "\t" + tombstone.getValue() + "\t" + tombstone.getKey() + "\n");
+                    }
+                }
+            });
+            LogsManager.logInfo("Bundle {} uploaded with {} files", name, files.size());
+            listener.onUploaded(files);
+        } catch (FTPException e) {
+            LogsManager.logError("Error uploading bundle {}: {}", name, e.getMessage(), e);
+            synchronized (this) {
+                // Tombstones go out with the next bundle, unless the path came back meanwhile
+                tombstones.forEach((path, time) -> {
+                    if (!pending.containsKey(path)) {
+                        removed.putIfAbsent(path, time);
+                    }
+                });
+            }
+            listener.onFailed(batch.keySet());
+        }
+    }
+
+    private static void writeEntry(ZipOutputStream zip, BundledFile file, byte[] content) throws IOException {
+        ZipEntry entry = new ZipEntry(file.relativePath());
+        entry.setTime(file.lastModified());
+        if (!ConfigManager.BUNDLE_COMPRESS) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    private static OutputStream wrapEncrypt(OutputStream out) throws IOException {
+        return ConfigManager.BUNDLE_ENCRYPT ? CryptoManager.encryptStream(out, ConfigManager.aesEncryptionKey()) : out;
+    }
+
+    /**
+     * Extracts the newest bundled copy of {@code relativePath} into {@code target}.
+     * Returns false if no manifest lists the file.
+     */
+    public static boolean restore(FTPManager ftpManager, String remoteDirectory, String relativePath, Path target) throws FTPException {
+        FTPFile[] entries = ftpManager.listDirectory("/" + remoteDirectory);
+        String[] manifests = Arrays.stream(entries)
+                .map(FTPFile::getName)
+                .filter(name -> name != null && name.contains(".manifest"))
+                .sorted(Comparator.reverseOrder())
+                .toArray(String[]::new);
+        for (String manifest : manifests) {
+            boolean[] found = new boolean[1];
+            ftpManager.downloadStream(remoteDirectory + "/" + manifest, remoteStream -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(wrapDecrypt(remoteStream, manifest), StandardCharsets.UTF_8))) {
+                    String line;
+                    while (!found[0] && (line = reader.readLine()) != null) {
+                        String[] fields = line.split("\t", 4);
+                        found[0] = fields.length == 4 && !fields[1].equals(TOMBSTONE_SIZE) && fields[3].equals(relativePath);
+                    }
+                }
+            });
+            if (!found[0]) {
+                continue;
+            }
+            String bundle = manifest.replace(".manifest", ".zip");
+            boolean[] extracted = new boolean[1];
+            ftpManager.downloadStream(remoteDirectory + "/" + bundle, remoteStream -> {
+                try (ZipInputStream zip = new ZipInputStream(wrapDecrypt(remoteStream, bundle))) {
+                    ZipEntry entry;
+                    while ((entry = zip.getNextEntry()) != null) {
+                        if (entry.getName().equals(relativePath)) {
+                            TreeRestorer.copyInto(zip, target);
+                            extracted[0] = true;
+                            return;
+                        }
+                    }
+                }
+            });
+            if (extracted[0]) {
+                LogsManager.logInfo("Restored {} from {} to {}", relativePath, bundle, target);
+                return true;
+            }
+            LogsManager.logWarn("Manifest {} lists {} but the bundle does not contain it", manifest, relativePath);
+        }
+        return false;
+    }
+
+    /**
+     * Extracts the newest bundled copy of every file under {@code prefix} into
+     * {@code targetDirectory}, keeping the path below the prefix. Files whose newest manifest
+     * line is a tombstone were deleted or renamed away and are skipped. Returns the files extracted.
+     */
+    public static int restoreAll(FTPManager ftpManager, String remoteDirectory, String prefix, Path targetDirectory) throws FTPException {
+        FTPFile[] entries = ftpManager.listDirectory("/" + remoteDirectory);
+        String[] manifests = Arrays.stream(entries)
+                .map(FTPFile::getName)
+                .filter(name -> name != null && name.contains(".manifest"))
+                .sorted(Comparator.reverseOrder())
+                .toArray(String[]::new);
+        String scope = prefix.isEmpty() ? "" : prefix + "/";
+        Path root = targetDirectory.toAbsolutePath().normalize();
+        Set<String> claimed = new HashSet<>();
+        int restored = 0;
+        for (String manifest : manifests) {
+            // Newest first: a path listed by a newer manifest is never taken from an older bundle
+            Map<String, Long> wanted = new HashMap<>();
+            ftpManager.downloadStream(remoteDirectory + "/" + manifest, remoteStream -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(wrapDecrypt(remoteStream, manifest), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split("\t", 4);
+                        // A tombstone claims the path too, so older copies of a deleted file stay out
+                        if (fields.length == 4 && fields[3].startsWith(scope) && claimed.add(fields[3])
+                                && !fields[1].equals(TOMBSTONE_SIZE)) {
+                            wanted.put(fields[3], Long.parseLong(fields[2]));
+                        }
+                    }
+                }
+            });
+            if (wanted.isEmpty()) {
+                continue;
+            }
+            String bundle = manifest.replace(".manifest", ".zip");
+            int[] extracted = new int[1];
+            ftpManager.downloadStream(remoteDirectory + "/" + bundle, remoteStream -> {
+                try (ZipInputStream zip = new ZipInputStream(wrapDecrypt(remoteStream, bundle))) {
+                    ZipEntry entry;
+                    while ((entry = zip.getNextEntry()) != null) {
+                        Long lastModified = wanted.get(entry.getName());
+                        Path target = root.resolve(entry.getName().substring(scope.length())).normalize();
+                        if (lastModified == null || !target.startsWith(root)) {
+                            continue;
+                        }
+                        Files.createDirectories(target.getParent());
+                        TreeRestorer.copyInto(zip, target);
+                        Files.setLastModifiedTime(target, FileTime.fromMillis(lastModified));
+                        extracted[0]++;
+                    }
+                }
+            });
+            restored += extracted[0];
+        }
+        if (restored > 0) {
+            LogsManager.logInfo("Restored {} bundled files into {}", restored, targetDirectory);
+        }
+        return restored;
+    }
+
+    private static InputStream wrapDecrypt(InputStream in, String name) throws IOException {
+        return name.endsWith(ENCRYPTED_SUFFIX) ? CryptoManager.decryptStream(in, ConfigManager.aesEncryptionKey()) : in;
+    }
+}
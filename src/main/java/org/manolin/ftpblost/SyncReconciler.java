@@ -0,0 +1,278 @@
+package org.manolin.ftpblost;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.manolin.ftpblost.exceptions.FTPException;
+import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.managers.ConfigManager;
+import org.manolin.ftpblost.managers.FTPManager;
+import org.manolin.ftpblost.managers.MirrorTarget;
+import org.manolin.ftpblost.monitor.TreeWalker;
+
+/**
+ * Brings the remote tree in line with the local one: walks the local tree and lists the
+ * remote tree in parallel, then uploads only the files that are missing or stale remotely.
+ */
+public class SyncReconciler {
+
+    private final FileMonitor fileMonitor;
+    private final FTPManager ftpManager;
+
+    public SyncReconciler(FileMonitor fileMonitor, FTPManager ftpManager) {
+        this.fileMonitor = fileMonitor;
+        this.ftpManager = ftpManager;
+    }
+
+    public void reconcile() throws FTPException, IOException {
+        long start = System.currentTimeMillis();
+        fileMonitor.openIndex();
+        LogsManager.logInfo("Reconciling {} with the FTP server...", fileMonitor.getDirectoryToWatch());
+
+        Map<Path, BasicFileAttributes> localFiles = listLocalTree();
+        Map<String, FTPFile> remoteFiles = listRemoteTree();
+        LogsManager.logInfo("Found {} local files and {} remote files in {} ms",
+                localFiles.size(), remoteFiles.size(), System.currentTimeMillis() - start);
+
+        List<Path> toUpload = findStale(localFiles, remoteFiles);
+        long bytesToUpload = 0;
+        for (Path file : toUpload) {
+            bytesToUpload += localFiles.get(file).size();
+        }
+        LogsManager.logInfo("{} files ({} MB) are missing or stale on the server", toUpload.size(), bytesToUpload / (1024 * 1024));
+        upload(toUpload, localFiles, bytesToUpload);
+        for (MirrorTarget mirror : ftpManager.getMirrors()) {
+            reconcileMirror(mirror, localFiles);
+        }
+        LogsManager.logInfo("Reconciliation finished in {} ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns the local files the server misses or holds an older copy of, and records the
+     * others as synced. Deciding reads file content, for the compression sample and the
+     * content hash, so the files are spread over {@link ConfigManager#SCAN_PARALLELISM} threads.
+     */
+    private List<Path> findStale(Map<Path, BasicFileAttributes> localFiles, Map<String, FTPFile> remoteFiles) {
+        List<Path> stale = Collections.synchronizedList(new ArrayList<>());
+        ForkJoinPool pool = new ForkJoinPool(ConfigManager.SCAN_PARALLELISM);
+        try {
+            pool.submit(() -> localFiles.entrySet().parallelStream().forEach(local -> {
+                Path file = local.getKey();
+                BasicFileAttributes attrs = local.getValue();
+                String remotePath = stripLeadingSlash(fileMonitor.remotePathFor(file));
+                if (isStale(file, attrs, remoteFiles.get(remotePath), true)) {
+                    stale.add(file);
+                    return;
+                }
+                try {
+                    fileMonitor.recordSynced(file, attrs);
+                } catch (IOException e) {
+                    LogsManager.logDebug("Could not record {} as synced: {}", file, e.getMessage());
+                }
+            })).join();
+        } finally {
+            pool.shutdownNow();
+        }
+        return stale;
+    }
+
+    /**
+     * Brings a single mirror up to date with the local tree, e.g. one added while running.
+     */
+    public void reconcileMirror(MirrorTarget mirror) {
+        reconcileMirror(mirror, listLocalTree());
+    }
+
+    /**
+     * Queues on the mirror's backlog every file it misses or holds an older copy of. The
+     * mirror uploads them in the background, at its own pace.
+     */
+    private void reconcileMirror(MirrorTarget mirror, Map<Path, BasicFileAttributes> localFiles) {
+        if (!mirror.getTarget().isServerAvailable()) {
+            // An empty listing would look like a mirror missing everything
+            LogsManager.logWarn("Mirror {} is not reachable, it is reconciled next time", mirror.getName());
+            return;
+        }
+        Map<String, FTPFile> remoteFiles = listRemoteTree(mirror.getTarget(), stripLeadingSlash(fileMonitor.getRemoteBasePath()));
+        mirror.markReconciled();
+        int queued = 0;
+        try {
+            for (Map.Entry<Path, BasicFileAttributes> local : localFiles.entrySet()) {
+                Path file = local.getKey();
+                String remotePath = stripLeadingSlash(fileMonitor.remotePathFor(file));
+                // The index describes the primary server, so it says nothing about what a mirror holds
+                if (isStale(file, local.getValue(), remoteFiles.get(remotePath), false)) {
+                    mirror.put(remotePath, true, target -> fileMonitor.uploadTo(target, file));
+                    queued++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LogsManager.logWarn("Reconciliation of mirror {} interrupted", mirror.getName());
+        }
+        LogsManager.logInfo("Mirror {}: {} files are missing or stale, queued on its backlog", mirror.getName(), queued);
+    }
+
+    private boolean isStale(Path file, BasicFileAttributes attrs, FTPFile remote, boolean trustIndex) {
+        if (remote == null) {
+            return !fileMonitor.isSyncedInBundle(file, attrs);
+        }
+        if (fileMonitor.isStoredVerbatim(file) && remote.getSize() != attrs.size()) {
+            return true;
+        }
+        if (trustIndex && fileMonitor.isUnchangedSinceSync(file, attrs)) {
+            return false;
+        }
+        // Compressed or encrypted copies differ in size, and an edit may keep the size: only a
+        // copy written after the last local change can be trusted without uploading again
+        return remote.getTimestamp() == null
+                || remote.getTimestamp().getTimeInMillis() < attrs.lastModifiedTime().toMillis();
+    }
+
+    private Map<Path, BasicFileAttributes> listLocalTree() {
+        Map<Path, BasicFileAttributes> localFiles = new ConcurrentHashMap<>();
+        TreeWalker walker = new TreeWalker(ConfigManager.SCAN_PARALLELISM);
+        try {
+            walker.walk(fileMonitor.getDirectoryToWatch(), dir -> true, localFiles::put);
+        } finally {
+            walker.shutdown();
+        }
+        return localFiles;
+    }
+
+    private Map<String, FTPFile> listRemoteTree() {
+        return listRemoteTree(ftpManager, stripLeadingSlash(fileMonitor.getRemoteBasePath()));
+    }
+
+    /**
+     * Lists every file below {@code remoteDir}, keyed by path without a leading slash.
+     * The bundle directory is left out.
+     */
+    static Map<String, FTPFile> listRemoteTree(FTPManager ftpManager, String remoteDir) {
+        Map<String, FTPFile> remoteFiles = new ConcurrentHashMap<>();
+        // Listing threads mostly wait on the server, one per FTP session keeps every session busy
+        ForkJoinPool pool = new ForkJoinPool(ftpManager.getMaxSessions());
+        try {
+            pool.invoke(new RemoteListTask(ftpManager, remoteDir, remoteFiles));
+        } finally {
+            pool.shutdownNow();
+        }
+        return remoteFiles;
+    }
+
+    private void upload(List<Path> files, Map<Path, BasicFileAttributes> localFiles, long totalBytes) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        // Large files go first so they overlap with the long tail of small ones
+        files.sort((a, b) -> Long.compare(localFiles.get(b).size(), localFiles.get(a).size()));
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytesDone = new AtomicLong();
+        long start = System.currentTimeMillis();
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+        progress.scheduleAtFixedRate(() -> logProgress(done.get(), files.size(), bytesDone.get(), totalBytes, start),
+                ConfigManager.RECONCILE_PROGRESS_INTERVAL_MS, ConfigManager.RECONCILE_PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            List<Future<Boolean>> results = new ArrayList<>(files.size());
+            for (Path file : files) {
+                results.add(fileMonitor.submitSync(file));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    if (!results.get(i).get()) {
+                        failed.incrementAndGet();
+                    }
+                } catch (ExecutionException | CancellationException e) {
+                    // Cancelled when the root is stopped while its reconciliation is running
+                    failed.incrementAndGet();
+                }
+                done.incrementAndGet();
+                bytesDone.addAndGet(localFiles.get(files.get(i)).size());
+            }
+            fileMonitor.flushBundles();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LogsManager.logWarn("Reconciliation interrupted");
+        } finally {
+            progress.shutdownNow();
+        }
+        logProgress(done.get(), files.size(), bytesDone.get(), totalBytes, start);
+        if (failed.get() > 0) {
+            LogsManager.logWarn("{} files could not be uploaded during reconciliation", failed.get());
+        }
+    }
+
+    private static void logProgress(int done, int total, long bytesDone, long totalBytes, long start) {
+        double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+        LogsManager.logInfo(() -> String.format("Reconciliation: %d/%d files, %d/%d MB, %.1f files/s, %.2f MB/s",
+                done, total, bytesDone / (1024 * 1024), totalBytes / (1024 * 1024),
+                done / seconds, bytesDone / (1024.0 * 1024.0) / seconds));
+    }
+
+    private static String stripLeadingSlash(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    private static final class RemoteListTask extends RecursiveAction {
+        private final FTPManager ftpManager;
+        private final String remoteDir;
+        private final Map<String, FTPFile> remoteFiles;
+
+        private RemoteListTask(FTPManager ftpManager, String remoteDir, Map<String, FTPFile> remoteFiles) {
+            this.ftpManager = ftpManager;
+            this.remoteDir = remoteDir;
+            this.remoteFiles = remoteFiles;
+        }
+
+        @Override
+        protected void compute() {
+            FTPFile[] entries;
+            try {
+                entries = ftpManager.listDirectory(remoteDir.isEmpty() ? "/" : "/" + remoteDir);
+            } catch (FTPException e) {
+                LogsManager.logWarn("Could not list remote directory {}: {}", remoteDir, e.getMessage());
+                return;
+            }
+            List<RemoteListTask> subTasks = new ArrayList<>();
+            for (FTPFile entry : entries) {
+                String name = entry.getName();
+                if (name == null || name.equals(".") || name.equals("..")) {
+                    continue;
+                }
+                String path = remoteDir.isEmpty() ? name : remoteDir + "/" + name;
+                if (entry.isDirectory()) {
+                    if (name.equals(ConfigManager.BUNDLE_DIRECTORY)) {
+                        continue;
+                    }
+                    RemoteListTask task = new RemoteListTask(ftpManager, path, remoteFiles);
+                    task.fork();
+                    subTasks.add(task);
+                } else {
+                    remoteFiles.put(path, entry);
+                }
+            }
+            for (RemoteListTask task : subTasks) {
+                task.join();
+            }
+        }
+    }
+}
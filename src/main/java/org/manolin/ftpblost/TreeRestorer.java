@@ -0,0 +1,553 @@
+package org.manolin.ftpblost;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.manolin.ftpblost.exceptions.FTPException;
+import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.managers.ChunkedAead;
+import org.manolin.ftpblost.managers.CompressionManager;
+import org.manolin.ftpblost.managers.ConfigManager;
+import org.manolin.ftpblost.managers.CryptoManager;
+import org.manolin.ftpblost.managers.FTPManager;
+import org.manolin.ftpblost.managers.TransferScheduler;
+
+/**
+ * Restores a remote subtree into a local directory: lists it in parallel, then downloads
+ * over all FTP sessions at once. Files larger than {@link ConfigManager#RESTORE_SEGMENT_BYTES}
+ * that are stored plain or in the chunked encrypted format are split into byte ranges
+ * (REST + RETR) fetched in parallel. Every range is decrypted as it arrives and written at
+ * its own offset of the target file, so memory stays constant whatever the file size.
+ * Compressed and older CBC-encrypted files only decode front to back and come in one piece.
+ * <p>
+ * A file is assembled next to its target as {@code name.restoring} and moved into place
+ * once complete. Finished ranges and files are journaled in the state directory, so running
+ * the same restore again only fetches what is still missing.
+ */
+public class TreeRestorer {
+
+    public record Summary(int restored, int skipped, int failed, long bytes) {
+    }
+
+    private record RemoteObject(String remotePath, String relativePath, long size, long lastModified,
+                                boolean encrypted, CompressionManager.Codec codec) {
+    }
+
+    /**
+     * A remote byte range and where its plain bytes go. A remote length of -1 means the
+     * whole object, decoded front to back.
+     */
+    private record Segment(int index, long remoteOffset, long remoteLength, long plainOffset, long plainLength,
+                           long firstChunk) {
+    }
+
+    private static final String ENCRYPTED_SUFFIX = ".encrypted";
+    private static final String PART_SUFFIX = ".restoring";
+    private static final String BUNDLES_KEY = "bundles";
+    private static final int WHOLE_FILE = -1;
+
+    private final FTPManager ftpManager;
+    private final String remoteBasePath;
+
+    public TreeRestorer(FTPManager ftpManager, String remoteBasePath) {
+        this.ftpManager = ftpManager;
+        this.remoteBasePath = trimSlashes(remoteBasePath);
+    }
+
+    /**
+     * Restores {@code remoteSubtree}, relative to the remote base directory ("" for all of
+     * it), into {@code targetDirectory}.
+     */
+    public Summary restore(String remoteSubtree, Path targetDirectory) throws IOException {
+        String subtree = trimSlashes(remoteSubtree.replace('\\', '/'));
+        String remoteRoot = join(remoteBasePath, subtree);
+        Path root = targetDirectory.toAbsolutePath().normalize();
+        long start = System.currentTimeMillis();
+        LogsManager.logInfo("Restoring /{} into {}...", remoteRoot, root);
+        Files.createDirectories(root);
+
+        RestoreProgress progress = RestoreProgress.open(remoteRoot, root);
+        try {
+            // Bundles go first: a file uploaded on its own is newer than any bundled copy and overwrites it
+            if (!progress.isDone(BUNDLES_KEY)) {
+                try {
+                    SmallFileBundler.restoreAll(ftpManager, join(remoteBasePath, ConfigManager.BUNDLE_DIRECTORY), subtree, root);
+                    progress.markDone(BUNDLES_KEY);
+                } catch (FTPException e) {
+                    LogsManager.logWarn("Could not restore bundled files: {}", e.getMessage());
+                }
+            }
+
+            Map<String, FTPFile> remoteFiles = SyncReconciler.listRemoteTree(ftpManager, remoteRoot);
+            List<RemoteObject> objects = new ArrayList<>(remoteFiles.size());
+            long totalBytes = 0;
+            for (Map.Entry<String, FTPFile> entry : remoteFiles.entrySet()) {
+                RemoteObject object = toRemoteObject(remoteRoot, entry.getKey(), entry.getValue());
+                if (object != null) {
+                    objects.add(object);
+                    totalBytes += object.size();
+                }
+            }
+            LogsManager.logInfo("Found {} remote files ({} MB) in {} ms",
+                    objects.size(), totalBytes / (1024 * 1024), System.currentTimeMillis() - start);
+            // Large files go first so their ranges overlap with the long tail of small ones
+            objects.sort((a, b) -> Long.compare(b.size(), a.size()));
+
+            Summary summary = new Run(root, progress).download(objects, totalBytes);
+            LogsManager.logInfo("Restore finished in {} ms: {} restored, {} already done, {} failed",
+                    System.currentTimeMillis() - start, summary.restored(), summary.skipped(), summary.failed());
+            if (summary.failed() == 0) {
+                progress.delete();
+            } else {
+                LogsManager.logWarn("{} files could not be restored, run the same restore again to resume", summary.failed());
+            }
+            return summary;
+        } finally {
+            progress.close();
+        }
+    }
+
+    /**
+     * Undoes the transformations recorded in the remote name, outermost first:
+     * {@code name.ftpblost-gz.encrypted} is decrypted, then decompressed.
+     */
+    public static InputStream openRestoreStream(InputStream remoteStream, String remoteName) throws IOException {
+        InputStream in = remoteStream;
+        String name = remoteName;
+        if (name.endsWith(ENCRYPTED_SUFFIX)) {
+            in = CryptoManager.decryptStream(in, ConfigManager.aesEncryptionKey());
+            name = name.substring(0, name.length() - ENCRYPTED_SUFFIX.length());
+        }
+        return CompressionManager.decompressStream(in, CompressionManager.codecForName(name));
+    }
+
+    /**
+     * Copies {@code in} to {@code target} through a {@code name.restoring} file next to it, so
+     * a download or decryption that fails halfway leaves the target as it was.
+     */
+    public static void copyInto(InputStream in, Path target) throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+        try {
+            Files.copy(in, part, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(part);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    private static RemoteObject toRemoteObject(String remoteRoot, String remotePath, FTPFile file) {
+        String name = remoteRoot.isEmpty() ? remotePath : remotePath.substring(remoteRoot.length() + 1);
+        if (name.endsWith(".part")) {
+            // An upload still in progress, its file has not reached the server yet
+            return null;
+        }
+        boolean encrypted = name.endsWith(ENCRYPTED_SUFFIX);
+        if (encrypted) {
+            name = name.substring(0, name.length() - ENCRYPTED_SUFFIX.length());
+        }
+        CompressionManager.Codec codec = CompressionManager.codecForName(name);
+        name = name.substring(0, name.length() - codec.getSuffix().length());
+        long lastModified = file.getTimestamp() != null ? file.getTimestamp().getTimeInMillis() : 0;
+        return new RemoteObject("/" + remotePath, name, file.getSize(), lastModified, encrypted, codec);
+    }
+
+    private static String trimSlashes(String path) {
+        return path.replaceAll("^/+|/+$", "");
+    }
+
+    private static String join(String parent, String child) {
+        return parent.isEmpty() ? child : child.isEmpty() ? parent : parent + "/" + child;
+    }
+
+    /**
+     * State of one restore: the scheduler running its ranges and the running totals.
+     */
+    private final class Run {
+        private final Path root;
+        private final RestoreProgress progress;
+        private final TransferScheduler scheduler = new TransferScheduler("restore", ConfigManager.EXECUTION_MODE,
+                ftpManager.getMaxSessions(), ConfigManager.TRANSFER_QUEUE_CAPACITY);
+        private final AtomicInteger restored = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+
+        private Run(Path root, RestoreProgress progress) {
+            this.root = root;
+            this.progress = progress;
+        }
+
+        private Summary download(List<RemoteObject> objects, long totalBytes) {
+            long start = System.currentTimeMillis();
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(() -> logProgress(objects.size(), totalBytes, start),
+                    ConfigManager.RECONCILE_PROGRESS_INTERVAL_MS, ConfigManager.RECONCILE_PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            try {
+                List<Future<Boolean>> results = new ArrayList<>();
+                // Encrypted files need their header before their ranges are known; the headers are fetched on the sessions too
+                List<TargetFile> waiting = new ArrayList<>();
+                List<Future<Boolean>> headers = new ArrayList<>();
+                for (RemoteObject object : objects) {
+                    TargetFile file = plan(object);
+                    if (file == null) {
+                        continue;
+                    }
+                    if (file.needsHeader()) {
+                        waiting.add(file);
+                        headers.add(scheduler.submit(object.relativePath(), TransferScheduler.Priority.HIGH, file::fetchHeader));
+                    } else {
+                        file.planSegments();
+                        file.submit(results);
+                    }
+                }
+                for (int i = 0; i < waiting.size(); i++) {
+                    try {
+                        if (headers.get(i).get()) {
+                            waiting.get(i).planSegments();
+                            waiting.get(i).submit(results);
+                        }
+                    } catch (ExecutionException e) {
+                        LogsManager.logError("Error reading the header of {}: {}", waiting.get(i).object.remotePath(),
+                                e.getCause().getMessage(), e.getCause());
+                        failed.incrementAndGet();
+                    }
+                }
+                for (Future<Boolean> result : results) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        // Already counted against its file
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LogsManager.logWarn("Restore interrupted");
+            } finally {
+                scheduler.shutdown();
+                reporter.shutdownNow();
+            }
+            logProgress(objects.size(), totalBytes, start);
+            return new Summary(restored.get(), skipped.get(), failed.get(), bytes.get());
+        }
+
+        private void logProgress(int total, long totalBytes, long start) {
+            int done = restored.get() + skipped.get() + failed.get();
+            double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+            LogsManager.logInfo(() -> String.format("Restore: %d/%d files, %d/%d MB, %.1f files/s, %.2f MB/s",
+                    done, total, bytes.get() / (1024 * 1024), totalBytes / (1024 * 1024),
+                    done / seconds, bytes.get() / (1024.0 * 1024.0) / seconds));
+        }
+
+        private TargetFile plan(RemoteObject object) {
+            Path target = root.resolve(object.relativePath()).normalize();
+            if (!target.startsWith(root)) {
+                LogsManager.logWarn("Skipping remote file outside the restore directory: {}", object.remotePath());
+                return null;
+            }
+            TargetFile file = new TargetFile(object, target);
+            if (progress.isDone(file.key(WHOLE_FILE)) && Files.exists(target)) {
+                skipped.incrementAndGet();
+                return null;
+            }
+            return file;
+        }
+
+        /**
+         * One file being restored. Its ranges run independently; whichever finishes last
+         * moves the file into place.
+         */
+        private final class TargetFile {
+            private final RemoteObject object;
+            private final Path target;
+            private final Path part;
+            private final List<Segment> segments = new ArrayList<>();
+            private final AtomicInteger remaining = new AtomicInteger();
+            private byte[] header;
+            private long expectedSize = -1;
+            private volatile boolean failedSegment;
+
+            private TargetFile(RemoteObject object, Path target) {
+                this.object = object;
+                this.target = target;
+                this.part = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+            }
+
+            private String key(int segment) {
+                return object.size() + "\t" + object.lastModified() + "\t" + segment + "\t" + object.relativePath();
+            }
+
+            private boolean isSplittable() {
+                return object.size() > Math.max(1, ConfigManager.RESTORE_SEGMENT_BYTES) && object.codec() == CompressionManager.Codec.NONE;
+            }
+
+            /**
+             * Whether {@link #fetchHeader} has to run before the ranges can be planned.
+             */
+            private boolean needsHeader() {
+                return isSplittable() && object.encrypted();
+            }
+
+            /**
+             * Reads the chunked encryption header, if the file has one. Runs as a scheduled task;
+             * returns false, counting the file as failed, if the header cannot be read.
+             */
+            private boolean fetchHeader() {
+                byte[] prefix = new byte[ChunkedAead.HEADER_SIZE];
+                int[] read = new int[1];
+                try {
+                    ftpManager.downloadRange(object.remotePath(), 0, prefix.length, in -> read[0] = in.readNBytes(prefix, 0, prefix.length));
+                } catch (FTPException e) {
+                    LogsManager.logError("Error reading the header of {}: {}", object.remotePath(), e.getMessage(), e);
+                    failed.incrementAndGet();
+                    return false;
+                }
+                if (read[0] == prefix.length && ChunkedAead.chunkSizeOf(prefix) > 0) {
+                    header = prefix;
+                }
+                return true;
+            }
+
+            /**
+             * Splits the file into ranges; an encrypted one only once {@link #fetchHeader} has run.
+             */
+            private void planSegments() {
+                long segmentBytes = Math.max(1, ConfigManager.RESTORE_SEGMENT_BYTES);
+                long size = object.size();
+                if (isSplittable()) {
+                    if (!object.encrypted()) {
+                        for (long offset = 0; offset < size; offset += segmentBytes) {
+                            long length = Math.min(segmentBytes, size - offset);
+                            segments.add(new Segment(segments.size(), offset, length, offset, length, -1));
+                        }
+                        expectedSize = size;
+                        return;
+                    }
+                    if (header != null) {
+                        int chunkSize = ChunkedAead.chunkSizeOf(header);
+                        long stride = chunkSize + ChunkedAead.TAG_SIZE;
+                        long chunks = (size - ChunkedAead.HEADER_SIZE + stride - 1) / stride;
+                        long chunksPerSegment = Math.max(1, segmentBytes / stride);
+                        expectedSize = ChunkedAead.plaintextLength(size, chunkSize);
+                        for (long chunk = 0; chunk < chunks; chunk += chunksPerSegment) {
+                            long offset = ChunkedAead.HEADER_SIZE + chunk * stride;
+                            long plainOffset = chunk * chunkSize;
+                            segments.add(new Segment(segments.size(), offset, Math.min(chunksPerSegment * stride, size - offset),
+                                    plainOffset, Math.min(chunksPerSegment * chunkSize, expectedSize - plainOffset), chunk));
+                        }
+                        return;
+                    }
+                }
+                segments.add(new Segment(0, 0, -1, 0, -1, -1));
+            }
+
+            private void submit(List<Future<Boolean>> results) throws InterruptedException {
+                // Ranges journaled by an earlier run count only while the partial file they went into is still there
+                boolean resume = Files.exists(part);
+                List<Segment> pending = new ArrayList<>(segments.size());
+                for (Segment segment : segments) {
+                    if (!resume || !progress.isDone(key(segment.index()))) {
+                        pending.add(segment);
+                    }
+                }
+                if (pending.isEmpty()) {
+                    finish();
+                    return;
+                }
+                if (pending.size() < segments.size()) {
+                    LogsManager.logInfo("Resuming {}, {} of {} ranges left", object.relativePath(), pending.size(), segments.size());
+                }
+                remaining.set(pending.size());
+                TransferScheduler.Priority priority = TransferScheduler.classify(object.size(), false);
+                for (Segment segment : pending) {
+                    results.add(scheduler.submit(object.relativePath(), priority, () -> run(segment)));
+                }
+            }
+
+            private boolean run(Segment segment) {
+                try {
+                    Files.createDirectories(target.getParent());
+                    long written = download(segment);
+                    if (segment.plainLength() >= 0 && written != segment.plainLength()) {
+                        throw new IOException("Range " + segment.index() + " came back with " + written + " of " + segment.plainLength() + " bytes");
+                    }
+                    bytes.addAndGet(segment.remoteLength() >= 0 ? segment.remoteLength() : object.size());
+                    progress.markDone(key(segment.index()));
+                    return true;
+                } catch (FTPException | IOException e) {
+                    LogsManager.logError("Error restoring {}: {}", object.remotePath(), e.getMessage(), e);
+                    failedSegment = true;
+                    return false;
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        finish();
+                    }
+                }
+            }
+
+            private long download(Segment segment) throws FTPException, IOException {
+                long[] written = new long[1];
+                try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    OutputStream out = new PositionedOutputStream(channel, segment.plainOffset());
+                    if (segment.remoteLength() < 0) {
+                        channel.truncate(0);
+                        ftpManager.downloadStream(object.remotePath(), remoteStream -> {
+                            try (InputStream in = openRestoreStream(remoteStream, object.remotePath())) {
+                                written[0] = in.transferTo(out);
+                            }
+                        });
+                    } else if (header != null) {
+                        ftpManager.downloadRange(object.remotePath(), segment.remoteOffset(), segment.remoteLength(),
+                                in -> written[0] = CryptoManager.decryptChunks(in, ConfigManager.aesEncryptionKey(), header,
+                                        segment.firstChunk(), object.size(), out));
+                    } else {
+                        ftpManager.downloadRange(object.remotePath(), segment.remoteOffset(), segment.remoteLength(),
+                                in -> written[0] = in.transferTo(out));
+                    }
+                }
+                return written[0];
+            }
+
+            private void finish() {
+                if (failedSegment) {
+                    failed.incrementAndGet();
+                    return;
+                }
+                try {
+                    if (!Files.exists(part)) {
+                        // Nothing was written at all: an empty file
+                        Files.createDirectories(target.getParent());
+                        Files.createFile(part);
+                    }
+                    if (expectedSize >= 0 && Files.size(part) != expectedSize) {
+                        throw new IOException("Restored size " + Files.size(part) + " does not match the expected " + expectedSize);
+                    }
+                    if (object.lastModified() > 0) {
+                        Files.setLastModifiedTime(part, FileTime.fromMillis(object.lastModified()));
+                    }
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    progress.markDone(key(WHOLE_FILE));
+                    restored.incrementAndGet();
+                    LogsManager.logDebug("Restored {} to {}", object.remotePath(), target);
+                } catch (IOException e) {
+                    LogsManager.logError("Error finishing restore of {}: {}", target, e.getMessage(), e);
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes at increasing offsets of a file channel shared with other ranges of the same file.
+     */
+    private static final class PositionedOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+
+        private PositionedOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Journal of the ranges and files a restore has finished, one per line. A restore run
+     * again with the same source and target reads it back and skips them.
+     */
+    private static final class RestoreProgress {
+        private final Path file;
+        private final Set<String> done = ConcurrentHashMap.newKeySet();
+        private final BufferedWriter writer;
+
+        private RestoreProgress(Path file) throws IOException {
+            this.file = file;
+            if (Files.exists(file)) {
+                done.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+                LogsManager.logInfo("Resuming an earlier restore, {} ranges and files already done", done.size());
+            }
+            this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        static RestoreProgress open(String remoteRoot, Path root) throws IOException {
+            CRC32C crc = new CRC32C();
+            crc.update((remoteRoot + "\n" + root).getBytes(StandardCharsets.UTF_8));
+            Path stateDirectory = Path.of(ConfigManager.STATE_DIRECTORY);
+            Files.createDirectories(stateDirectory);
+            return new RestoreProgress(stateDirectory.resolve("restore-" + Long.toHexString(crc.getValue()) + ".log"));
+        }
+
+        boolean isDone(String key) {
+            return done.contains(key);
+        }
+
+        synchronized void markDone(String key) {
+            done.add(key);
+            try {
+                writer.write(key);
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                // Only costs fetching it again on resume
+                LogsManager.logWarn("Could not record restore progress in {}: {}", file, e.getMessage());
+            }
+        }
+
+        synchronized void close() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LogsManager.logWarn("Could not close restore progress {}: {}", file, e.getMessage());
+            }
+        }
+
+        synchronized void delete() {
+            close();
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LogsManager.logWarn("Could not delete restore progress {}: {}", file, e.getMessage());
+            }
+        }
+    }
+}
@@ -2,19 +2,26 @@ package org.manolin.ftpblost.controller;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 import org.manolin.ftpblost.FileMonitor;
+import org.manolin.ftpblost.SmallFileBundler;
+import org.manolin.ftpblost.SyncReconciler;
+import org.manolin.ftpblost.TreeRestorer;
 import org.manolin.ftpblost.exceptions.FTPException;
 import org.manolin.ftpblost.logs.LogsManager;
 import org.manolin.ftpblost.managers.ConfigManager;
-import org.manolin.ftpblost.managers.CryptoManager;
 import org.manolin.ftpblost.managers.FTPManager;
+import org.manolin.ftpblost.managers.MirrorTarget;
+import org.manolin.ftpblost.managers.TransferScheduler;
 
 public class BackupController {
 
     private final FileMonitor fileMonitor;
+    private final SyncReconciler syncReconciler;
     private final FTPManager ftpManager;
     private final String localDir;
     private final String ftpRemoteBaseDir;
@@ -28,7 +35,11 @@ public class BackupController {
         this.ftpRemoteBaseDir = ConfigManager.FTP_REMOTE_BASE_DIRECTORY;
 
         this.ftpManager = new FTPManager(ftpServer, ftpPort, ftpUser, ftpPassword);
+        for (String mirror : ConfigManager.FTP_MIRRORS) {
+            ftpManager.addMirror(MirrorTarget.fromSpec(mirror));
+        }
         this.fileMonitor = new FileMonitor(localDir, ftpManager, ftpRemoteBaseDir);
+        this.syncReconciler = new SyncReconciler(fileMonitor, ftpManager);
     }
 
     public void runBackupProcess() {
@@ -38,60 +49,149 @@ public class BackupController {
             ftpManager.connect();
             ftpManager.makeDirectory(ftpRemoteBaseDir);
 
-            Thread monitorThread = new Thread(() -> {
+            Thread.Builder threadBuilder = ConfigManager.EXECUTION_MODE == TransferScheduler.ExecutionMode.VIRTUAL
+                    ? Thread.ofVirtual() : Thread.ofPlatform();
+            // The monitor mostly waits for watch events, a virtual thread is enough
+            threadBuilder.name("file-monitor").start(() -> {
                 try {
+                    // Baseline first, so files that existed before monitoring are backed up too
+                    syncReconciler.reconcile();
                     fileMonitor.startMonitoring();
                 } catch (IOException | InterruptedException | FTPException e) {
-                    LogsManager.logError("Error monitoring files: " + e.getMessage(), e);
+                    LogsManager.logError("Error monitoring files: {}", e.getMessage(), e);
                 } finally {
                     try {
                         ftpManager.disconnect(); 
                     } catch (FTPException e) {
-                        LogsManager.logError("Error disconnecting from FTP after monitoring failure: " + e.getMessage(), e);
+                        LogsManager.logError("Error disconnecting from FTP after monitoring failure: {}", e.getMessage(), e);
                     }
                 }
             });
-            monitorThread.start();
-            LogsManager.logInfo("Monitoring started in background. Synchronizing changes from " + localDir + " to " + ConfigManager.FTP_SERVER + ":" + ftpRemoteBaseDir);
+            LogsManager.logInfo("Monitoring started in background. Synchronizing changes from {} to {}:{}",
+                    localDir, ConfigManager.FTP_SERVER, ftpRemoteBaseDir);
 
         } catch (FTPException e) {
-            LogsManager.logError("Initial FTP error: " + e.getMessage(), e);
+            LogsManager.logError("Initial FTP error: {}", e.getMessage(), e);
+        }
+    }
+
+    public void synchronizeNow() {
+        boolean wasConnected = ftpManager.isConnected();
+        try {
+            ftpManager.connect();
+            ftpManager.makeDirectory(ftpRemoteBaseDir);
+            syncReconciler.reconcile();
+        } catch (FTPException | IOException e) {
+            LogsManager.logError("Error synchronizing with the FTP server: {}", e.getMessage(), e);
+        } finally {
+            try {
+                if (!wasConnected) {
+                    ftpManager.disconnect();
+                }
+            } catch (FTPException e) {
+                LogsManager.logError("Error disconnecting from FTP after synchronization: {}", e.getMessage(), e);
+            }
         }
     }
 
     public void downloadAndDecryptFile() {
         try (Scanner scanner = new Scanner(System.in)) {
-            LogsManager.logInfo("Enter the path of the remote encrypted file to download (e.g. " + ftpRemoteBaseDir + "/mi_fichero.txt.encrypted): ");
+            LogsManager.logInfo("Enter the path of the remote encrypted file to download (e.g. {}/mi_fichero.txt.encrypted): ", ftpRemoteBaseDir);
             String remoteFileToDownload = scanner.nextLine();
             LogsManager.logInfo("Enter the local path to save the decrypted file (e.g. descargado_descifrado.txt): ");
             String localFilePath = scanner.nextLine();
             File localFileDownload = new File(localFilePath);
-            File tempFile = null;
+            // Sync may already be using the session pool, only tear down what we opened here
+            boolean wasConnected = ftpManager.isConnected();
 
             try {
                 ftpManager.connect();
-                tempFile = File.createTempFile("encrypted_", ".tmp");
-                ftpManager.downloadFile(remoteFileToDownload, tempFile);                
-                String cipherTextBase64 = Files.readString(tempFile.toPath());
-                String decryptedText = CryptoManager.decryptText(cipherTextBase64, ConfigManager.AES_ENCRYPTION_KEY);
-                Files.writeString(localFileDownload.toPath(), decryptedText);
-                LogsManager.logInfo("Decrypted content of the file " + remoteFileToDownload + " saved in " + localFileDownload.getAbsolutePath());
-                LogsManager.logDebug("Decrypted content:\n" + decryptedText);
+                ftpManager.downloadStream(remoteFileToDownload, remoteStream -> {
+                    try (InputStream in = TreeRestorer.openRestoreStream(remoteStream, remoteFileToDownload)) {
+                        TreeRestorer.copyInto(in, localFileDownload.toPath());
+                    }
+                });
+                LogsManager.logInfo("Decrypted content of the file {} saved in {}", remoteFileToDownload, localFileDownload.getAbsolutePath());
+                LogsManager.logDebug(() -> "Decrypted size: " + localFileDownload.length() + " bytes");
             } catch (Exception e) {
-                LogsManager.logError("Error downloading and decrypting file: " + e.getMessage(), e);
+                LogsManager.logError("Error downloading and decrypting file: {}", e.getMessage(), e);
             } finally {
                 try {
-                    if (tempFile != null && tempFile.exists()) {
-                        tempFile.delete();
+                    if (!wasConnected) {
+                        ftpManager.disconnect();
                     }
-                    ftpManager.disconnect();
                 } catch (FTPException e) {
-                    LogsManager.logError("Error disconnecting from FTP after download: " + e.getMessage(), e);
+                    LogsManager.logError("Error disconnecting from FTP after download: {}", e.getMessage(), e);
                 }
             }
         }
     }
 
+    public void restoreBundledFile() {
+        // System.in is shared with the menu, so this scanner is deliberately left open
+        Scanner scanner = new Scanner(System.in);
+        LogsManager.logInfo("Enter the path of the file relative to the watched directory (e.g. notas/mi_fichero.txt): ");
+        String relativePath = scanner.nextLine().replace('\\', '/');
+        LogsManager.logInfo("Enter the local path to save the restored file: ");
+        Path target = Paths.get(scanner.nextLine());
+        boolean wasConnected = ftpManager.isConnected();
+        try {
+            ftpManager.connect();
+            String bundleDirectory = (ftpRemoteBaseDir + "/" + ConfigManager.BUNDLE_DIRECTORY).replaceFirst("^/", "");
+            if (!SmallFileBundler.restore(ftpManager, bundleDirectory, relativePath, target)) {
+                LogsManager.logWarn("No bundle on the server contains {}", relativePath);
+            }
+        } catch (FTPException e) {
+            LogsManager.logError("Error restoring bundled file: {}", e.getMessage(), e);
+        } finally {
+            try {
+                if (!wasConnected) {
+                    ftpManager.disconnect();
+                }
+            } catch (FTPException e) {
+                LogsManager.logError("Error disconnecting from FTP after restore: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    public void restoreTree() {
+        Scanner scanner = new Scanner(System.in);
+        LogsManager.logInfo("Enter the remote directory to restore, relative to {} (empty for everything): ", ftpRemoteBaseDir);
+        String remoteSubtree = scanner.nextLine().trim();
+        LogsManager.logInfo("Enter the local directory to restore into: ");
+        Path target = Paths.get(scanner.nextLine().trim());
+        boolean wasConnected = ftpManager.isConnected();
+        try {
+            ftpManager.connect();
+            TreeRestorer.Summary summary = new TreeRestorer(ftpManager, ftpRemoteBaseDir).restore(remoteSubtree, target);
+            LogsManager.logInfo("Restored {} files ({} MB) into {}", summary.restored(), summary.bytes() / (1024 * 1024), target.toAbsolutePath());
+        } catch (FTPException | IOException e) {
+            LogsManager.logError("Error restoring directory tree: {}", e.getMessage(), e);
+        } finally {
+            try {
+                if (!wasConnected) {
+                    ftpManager.disconnect();
+                }
+            } catch (FTPException e) {
+                LogsManager.logError("Error disconnecting from FTP after restore: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    public void setBandwidthLimits() {
+        Scanner scanner = new Scanner(System.in);
+        try {
+            LogsManager.logInfo("Enter the total upload limit in KB/s (0 = unlimited, current: {}): ", ftpManager.getBandwidthLimit() / 1024);
+            long total = Long.parseLong(scanner.nextLine().trim()) * 1024;
+            LogsManager.logInfo("Enter the per-session upload limit in KB/s (0 = unlimited, current: {}): ",
+                    ftpManager.getSessionBandwidthLimit() / 1024);
+            long perSession = Long.parseLong(scanner.nextLine().trim()) * 1024;
+            ftpManager.setBandwidthLimits(total, perSession);
+        } catch (NumberFormatException e) {
+            LogsManager.logWarn("Invalid number, bandwidth limits unchanged.");
+        }
+    }
+
     public void showMenu() {
         Scanner scanner = new Scanner(System.in);  // Remove try-with-resources
         boolean running = true;
@@ -101,7 +201,11 @@ public class BackupController {
             LogsManager.logInfo("0. Test connection to FTP server");
             LogsManager.logInfo("1. Start Synchronization in Background");
             LogsManager.logInfo("2. Download and Decrypt File from FTP Server");
-            LogsManager.logInfo("3. Exit");
+            LogsManager.logInfo("3. Synchronize Now (one-shot full reconciliation)");
+            LogsManager.logInfo("4. Restore a Small File from Bundles");
+            LogsManager.logInfo("5. Set Upload Bandwidth Limits");
+            LogsManager.logInfo("6. Restore a Directory Tree from FTP Server");
+            LogsManager.logInfo("7. Exit");
             LogsManager.logInfo("Select an option: ");
             
             if (scanner.hasNextLine()) {  // Add check for available input
@@ -123,10 +227,14 @@ public class BackupController {
                         try {
                             downloadAndDecryptFile();
                         } catch (Exception e) {
-                            LogsManager.logError("Error downloading and decrypting file: " + e.getMessage(), e);
+                            LogsManager.logError("Error downloading and decrypting file: {}", e.getMessage(), e);
                         }
                     }
-                    case "3" -> {
+                    case "3" -> synchronizeNow();
+                    case "4" -> restoreBundledFile();
+                    case "5" -> setBandwidthLimits();
+                    case "6" -> restoreTree();
+                    case "7" -> {
                         running = false;
                         LogsManager.logInfo("Exiting FTP Backup Manager.");
                         try {
@@ -134,7 +242,7 @@ public class BackupController {
                             LogsManager.logInfo("Disconnected from the FTP server.");
                             System.exit(0);
                         } catch (FTPException e) {
-                            LogsManager.logError("Error during shutdown: " + e.getMessage(), e);
+                            LogsManager.logError("Error during shutdown: {}", e.getMessage(), e);
                             throw new RuntimeException(e);
                         }
                     }
@@ -0,0 +1,376 @@
+package org.manolin.ftpblost.controller;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.manolin.ftpblost.FileMonitor;
+import org.manolin.ftpblost.SyncReconciler;
+import org.manolin.ftpblost.exceptions.FTPException;
+import org.manolin.ftpblost.exceptions.FTPLoginException;
+import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.managers.ConfigFile;
+import org.manolin.ftpblost.managers.ConfigManager;
+import org.manolin.ftpblost.managers.FTPManager;
+import org.manolin.ftpblost.managers.MirrorTarget;
+import org.manolin.ftpblost.managers.TransferScheduler;
+
+/**
+ * Runs the sync without the menu, for a service manager. Every root in the config file gets
+ * its own monitor; all of them share the primary FTP server and its mirrors.
+ * <p>
+ * Monitors start watching before the tree is indexed and before the server answers; changes
+ * wait in each root's outbox until it does. Reconciliation with the server waits for both,
+ * in the background. SIGHUP re-reads the config file and applies
+ * the roots, mirrors, bandwidth limits and queue size without touching transfers in flight;
+ * other settings take effect on the next start. {@link #shutdown} stops watching and drains
+ * the queues, leaving whatever does not make it in time to the outbox.
+ */
+public class DaemonController {
+
+    // Settings applied by a reload; everything else in the file is read once at startup
+    private static final Set<String> RELOADABLE = Set.of("FTP_MIRRORS", "BANDWIDTH_LIMIT_BYTES_PER_SEC",
+            "SESSION_BANDWIDTH_LIMIT_BYTES_PER_SEC", "TRANSFER_QUEUE_CAPACITY",
+            "LOCAL_DIRECTORY_TO_WATCH", "FTP_REMOTE_BASE_DIRECTORY", "SCAN_MODE");
+
+    private final Path configPath;
+    private final FTPManager ftpManager;
+    private final Map<Path, WatchedRoot> roots = new LinkedHashMap<>();
+    // Taken out of roots by a reload and still draining; shutdown waits for them too
+    private final Set<WatchedRoot> retiring = new LinkedHashSet<>();
+    private final Object reloading = new Object();
+    private final Map<String, MirrorTarget> mirrors = new HashMap<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final CompletableFuture<Void> connected = new CompletableFuture<>();
+    private ConfigFile config;
+    private boolean started;
+    private volatile boolean shuttingDown;
+
+    public DaemonController(Path configPath) throws IOException {
+        this.configPath = configPath;
+        this.config = ConfigFile.load(configPath);
+        this.ftpManager = new FTPManager(ConfigManager.FTP_SERVER, ConfigManager.FTP_PORT,
+                ConfigManager.FTP_USER, ConfigManager.FTP_PASSWORD);
+    }
+
+    /**
+     * Starts every root, connects and blocks until {@link #shutdown} has finished.
+     */
+    public void run() throws InterruptedException {
+        LogsManager.logInfo("FTPBlost daemon starting with {}", configPath);
+        // Fails now, rather than on the first encrypted file, if the key cannot be read or stored
+        ConfigManager.aesEncryptionKey();
+        installReloadSignal();
+        synchronized (this) {
+            if (shuttingDown) {
+                return;
+            }
+            started = true;
+            applyMirrors(config);
+            startRoots(config);
+        }
+        connect();
+        stopped.await();
+    }
+
+    /**
+     * Re-reads the config file. A file that cannot be read or parsed leaves everything as it is.
+     */
+    public void reload() {
+        // Reloads run one at a time; shutdown only ever waits for the short locked steps
+        synchronized (reloading) {
+            List<WatchedRoot> stopping;
+            ConfigFile next;
+            synchronized (this) {
+                if (shuttingDown) {
+                    return;
+                }
+                try {
+                    next = ConfigFile.load(configPath);
+                    next.getRoots();
+                } catch (IOException | RuntimeException e) {
+                    LogsManager.logError("Could not reload {}, keeping the current settings: {}", configPath, e.getMessage(), e);
+                    return;
+                }
+                LogsManager.logInfo("Reloading {}", configPath);
+                if (!started) {
+                    // run() has not started the roots yet; they start from the new file
+                    config = next;
+                    return;
+                }
+                stopping = detachRoots(next);
+            }
+            try {
+                stopAll(stopping);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                synchronized (this) {
+                    stopping.forEach(retiring::remove);
+                }
+            }
+            synchronized (this) {
+                if (!shuttingDown) {
+                    apply(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies {@code next} once the roots it removes or changes have stopped.
+     */
+    private void apply(ConfigFile next) {
+        startRoots(next);
+        applyMirrors(next);
+        long total = next.getLong("BANDWIDTH_LIMIT_BYTES_PER_SEC", ConfigManager.BANDWIDTH_LIMIT_BYTES_PER_SEC);
+        long perSession = next.getLong("SESSION_BANDWIDTH_LIMIT_BYTES_PER_SEC", ConfigManager.SESSION_BANDWIDTH_LIMIT_BYTES_PER_SEC);
+        if (total != ftpManager.getBandwidthLimit() || perSession != ftpManager.getSessionBandwidthLimit()) {
+            ftpManager.setBandwidthLimits(total, perSession);
+        }
+        int capacity = next.getInt("TRANSFER_QUEUE_CAPACITY", ConfigManager.TRANSFER_QUEUE_CAPACITY);
+        for (WatchedRoot watched : roots.values()) {
+            watched.monitor.getTransferScheduler().setCapacity(capacity);
+        }
+        Set<String> restartOnly = config.changedSettings(next);
+        restartOnly.removeAll(RELOADABLE);
+        if (!restartOnly.isEmpty()) {
+            LogsManager.logWarn("Changed settings {} take effect after a restart", restartOnly);
+        }
+        config = next;
+    }
+
+    /**
+     * Stops every root, letting queued transfers and mirror backlogs drain for up to
+     * {@link ConfigManager#SHUTDOWN_DRAIN_TIMEOUT_MS}, then disconnects. Safe to call twice.
+     */
+    public void shutdown() {
+        List<WatchedRoot> stopping;
+        synchronized (this) {
+            if (shuttingDown) {
+                return;
+            }
+            shuttingDown = true;
+            stopping = new ArrayList<>(roots.values());
+            stopping.addAll(retiring);
+            roots.clear();
+        }
+        LogsManager.logInfo("Shutting down, draining transfer queues...");
+        try {
+            stopAll(stopping);
+            for (MirrorTarget mirror : ftpManager.getMirrors()) {
+                if (!mirror.awaitDrained(ConfigManager.SHUTDOWN_DRAIN_TIMEOUT_MS)) {
+                    LogsManager.logWarn("Mirror {} still has {} changes queued, it is reconciled on the next start",
+                            mirror.getName(), mirror.getBacklogSize());
+                }
+            }
+            ftpManager.disconnect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (FTPException e) {
+            LogsManager.logError("Error disconnecting from FTP during shutdown: {}", e.getMessage(), e);
+        } finally {
+            LogsManager.logInfo("FTPBlost daemon stopped.");
+            stopped.countDown();
+        }
+    }
+
+    private void installReloadSignal() {
+        if (!SignalHook.install("HUP", this::reload)) {
+            LogsManager.logWarn("SIGHUP is not available on this platform, config reload is disabled");
+        }
+    }
+
+    /**
+     * Keeps trying until the primary server answers. Until then the roots only journal their
+     * changes; each replays them once connected.
+     */
+    private void connect() throws InterruptedException {
+        for (int attempt = 0; !shuttingDown; attempt++) {
+            try {
+                ftpManager.connect();
+                connected.complete(null);
+                return;
+            } catch (FTPLoginException e) {
+                LogsManager.logError("Not retrying, fix the FTP credentials and restart; changes wait in the outbox: {}", e.getMessage(), e);
+                return;
+            } catch (FTPException e) {
+                long delay = Math.min(ConfigManager.FTP_RECONNECT_MAX_DELAY_MS,
+                        ConfigManager.FTP_RECONNECT_BASE_DELAY_MS << Math.min(attempt, 20));
+                LogsManager.logWarn("FTP server unreachable, retrying in {} ms: {}", delay, e.getMessage());
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Takes the roots {@code next} removes or watches differently out of {@link #roots}, for
+     * the caller to stop before {@link #startRoots} starts their replacements: the old monitor
+     * has to let go of its index first.
+     */
+    private List<WatchedRoot> detachRoots(ConfigFile next) {
+        Map<Path, ConfigFile.Root> wanted = rootsByPath(next);
+        List<WatchedRoot> stopping = new ArrayList<>();
+        for (WatchedRoot watched : new ArrayList<>(roots.values())) {
+            if (!watched.root.equals(wanted.get(watched.root.path()))) {
+                LogsManager.logInfo("Stopping root {} ({})", watched.root.name(), watched.root.path());
+                roots.remove(watched.root.path());
+                retiring.add(watched);
+                stopping.add(watched);
+            }
+        }
+        return stopping;
+    }
+
+    private void startRoots(ConfigFile next) {
+        for (ConfigFile.Root root : rootsByPath(next).values()) {
+            if (!roots.containsKey(root.path())) {
+                startRoot(root);
+            }
+        }
+    }
+
+    private static Map<Path, ConfigFile.Root> rootsByPath(ConfigFile next) {
+        Map<Path, ConfigFile.Root> wanted = new LinkedHashMap<>();
+        for (ConfigFile.Root root : next.getRoots()) {
+            wanted.put(root.path(), root);
+        }
+        return wanted;
+    }
+
+    /**
+     * Roots drain in parallel, each within the same timeout.
+     */
+    private static void stopAll(List<WatchedRoot> stopping) throws InterruptedException {
+        List<Thread> stoppers = new ArrayList<>();
+        for (WatchedRoot watched : stopping) {
+            stoppers.add(Thread.ofVirtual().start(watched::stop));
+        }
+        for (Thread stopper : stoppers) {
+            stopper.join();
+        }
+    }
+
+    private void applyMirrors(ConfigFile next) {
+        Set<String> wanted = new LinkedHashSet<>(Arrays.asList(next.getList("FTP_MIRRORS", ConfigManager.FTP_MIRRORS)));
+        for (String spec : new ArrayList<>(mirrors.keySet())) {
+            if (!wanted.contains(spec)) {
+                MirrorTarget mirror = mirrors.remove(spec);
+                ftpManager.removeMirror(mirror);
+                LogsManager.logInfo("Mirror {} removed, replaying what it still has queued", mirror.getName());
+                Thread.ofVirtual().name("mirror-" + mirror.getName() + "-retire").start(() -> {
+                    try {
+                        mirror.awaitDrained(ConfigManager.SHUTDOWN_DRAIN_TIMEOUT_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    mirror.stop();
+                });
+            }
+        }
+        for (String spec : wanted) {
+            if (!mirrors.containsKey(spec)) {
+                MirrorTarget mirror = MirrorTarget.fromSpec(spec);
+                mirrors.put(spec, mirror);
+                ftpManager.addMirror(mirror);
+                if (!roots.isEmpty()) {
+                    Thread.ofVirtual().name("mirror-" + mirror.getName() + "-reconcile").start(() -> reconcileNewMirror(mirror));
+                }
+            }
+        }
+    }
+
+    /**
+     * A mirror added while running only gets new changes; this queues the rest once it is up.
+     */
+    private void reconcileNewMirror(MirrorTarget mirror) {
+        try {
+            while (!mirror.getTarget().isServerAvailable()) {
+                if (shuttingDown || !ftpManager.getMirrors().contains(mirror)) {
+                    return;
+                }
+                Thread.sleep(ConfigManager.FTP_RECONNECT_BASE_DELAY_MS);
+            }
+            List<WatchedRoot> current;
+            synchronized (this) {
+                current = new ArrayList<>(roots.values());
+            }
+            for (WatchedRoot watched : current) {
+                watched.reconciler.reconcileMirror(mirror);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startRoot(ConfigFile.Root root) {
+        WatchedRoot watched = new WatchedRoot(root);
+        roots.put(root.path(), watched);
+        watched.monitor.getTransferScheduler().setCapacity(config.getInt("TRANSFER_QUEUE_CAPACITY", ConfigManager.TRANSFER_QUEUE_CAPACITY));
+        watched.start();
+    }
+
+    /**
+     * One watched root, with its monitor and reconciler.
+     */
+    private final class WatchedRoot {
+        private final ConfigFile.Root root;
+        private final FileMonitor monitor;
+        private final SyncReconciler reconciler;
+
+        private WatchedRoot(ConfigFile.Root root) {
+            this.root = root;
+            this.monitor = new FileMonitor(root.path().toString(), ftpManager, root.remoteBasePath(), root.scanMode(), root.name());
+            this.reconciler = new SyncReconciler(monitor, ftpManager);
+        }
+
+        private void start() {
+            Thread.Builder builder = ConfigManager.EXECUTION_MODE == TransferScheduler.ExecutionMode.VIRTUAL
+                    ? Thread.ofVirtual() : Thread.ofPlatform();
+            CompletableFuture.allOf(monitor.getInitialScan(), connected)
+                    .thenRun(() -> Thread.ofVirtual().name("reconcile-" + root.name()).start(this::reconcile));
+            builder.name("monitor-" + root.name()).start(() -> {
+                try {
+                    monitor.startMonitoring();
+                } catch (InterruptedException e) {
+                    // Stopped by stop()
+                } catch (IOException | FTPException | RuntimeException e) {
+                    LogsManager.logError("Monitoring of {} stopped: {}", root.path(), e.getMessage(), e);
+                }
+            });
+            LogsManager.logInfo("Root {}: synchronizing {} to {}:{}", root.name(), root.path(), ConfigManager.FTP_SERVER, root.remoteBasePath());
+        }
+
+        private void reconcile() {
+            try {
+                ftpManager.makeDirectory(root.remoteBasePath());
+                // Changes journaled while the server had not answered yet
+                monitor.replayOutbox();
+                reconciler.reconcile();
+            } catch (FTPException | IOException e) {
+                LogsManager.logError("Reconciliation of {} failed: {}", root.path(), e.getMessage(), e);
+            } catch (RejectedExecutionException e) {
+                // The root was stopped while its reconciliation was still queuing uploads
+            }
+        }
+
+        private void stop() {
+            try {
+                monitor.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.manolin.ftpblost.controller;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * POSIX signal handlers through {@code sun.misc.Signal}. The class is looked up by
+ * reflection, so the build neither depends on nor warns about that internal API.
+ */
+final class SignalHook {
+
+    private SignalHook() {
+    }
+
+    /**
+     * Runs {@code handler} whenever the process receives signal {@code name}, e.g. {@code "HUP"}.
+     * Returns false if this platform or runtime cannot deliver it.
+     */
+    static boolean install(String name, Runnable handler) {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            Object signal = signalClass.getConstructor(String.class).newInstance(name);
+            Object proxy = Proxy.newProxyInstance(SignalHook.class.getClassLoader(), new Class<?>[]{handlerClass},
+                    (self, method, args) -> switch (method.getName()) {
+                        case "handle" -> {
+                            handler.run();
+                            yield null;
+                        }
+                        case "equals" -> self == args[0];
+                        case "hashCode" -> System.identityHashCode(self);
+                        default -> "SignalHook[SIG" + name + "]";
+                    });
+            signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, proxy);
+            return true;
+        } catch (ReflectiveOperationException | LinkageError | IllegalArgumentException e) {
+            // Unknown signal names fail inside the constructor, wrapped in InvocationTargetException
+            return false;
+        }
+    }
+}
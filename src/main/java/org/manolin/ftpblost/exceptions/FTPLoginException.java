@@ -0,0 +1,12 @@
+package org.manolin.ftpblost.exceptions;
+
+/**
+ * The server answered but refused the configured credentials. Unlike an outage, trying
+ * again does not help until the configuration is fixed.
+ */
+public class FTPLoginException extends FTPException {
+
+    public FTPLoginException(String message) {
+        super(message);
+    }
+}
@@ -1,23 +1,131 @@
 package org.manolin.ftpblost.logs;
+import java.util.function.Supplier;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+/**
+ * Application-wide logging. Prefer the parameterized methods ({@code "Uploaded {}"}) or the
+ * {@link Supplier} ones on the sync hot path: the message is only formatted, and the
+ * supplier only called, when the level is enabled. The fixed-arity overloads avoid the
+ * varargs array. Events are handed to the appenders through the async ring buffer set up in
+ * log4j2.xml, so callers never wait on console or disk.
+ */
 public class LogsManager {
     private static final Logger logger = LogManager.getLogger(LogsManager.class);
 
+    /**
+     * Flushes the async ring buffer and stops the appenders. Log4j's own shutdown hook is
+     * disabled, so events logged while the process shuts down are not lost.
+     */
+    public static void shutdown() {
+        LogManager.shutdown();
+    }
+
+    public static boolean isDebugEnabled() {
+        return logger.isDebugEnabled();
+    }
+
     public static void logInfo(String message) {
         logger.info(message);
     }
 
+    public static void logInfo(String message, Object p0) {
+        logger.info(message, p0);
+    }
+
+    public static void logInfo(String message, Object p0, Object p1) {
+        logger.info(message, p0, p1);
+    }
+
+    public static void logInfo(String message, Object p0, Object p1, Object p2) {
+        logger.info(message, p0, p1, p2);
+    }
+
+    public static void logInfo(String message, Object... params) {
+        logger.info(message, params);
+    }
+
+    public static void logInfo(Supplier<?> message) {
+        if (logger.isInfoEnabled()) {
+            logger.info(String.valueOf(message.get()));
+        }
+    }
+
     public static void logError(String message, Throwable throwable) {
         logger.error(message, throwable);
     }
 
+    /**
+     * Parameterized error; the throwable goes last, as Log4j expects.
+     */
+    public static void logError(String message, Object p0, Throwable throwable) {
+        logger.error(message, p0, throwable);
+    }
+
+    public static void logError(String message, Object p0, Object p1, Throwable throwable) {
+        logger.error(message, p0, p1, throwable);
+    }
+
+    public static void logError(String message, Object p0, Object p1, Object p2, Throwable throwable) {
+        logger.error(message, p0, p1, p2, throwable);
+    }
+
+    public static void logError(Supplier<?> message, Throwable throwable) {
+        if (logger.isErrorEnabled()) {
+            logger.error(String.valueOf(message.get()), throwable);
+        }
+    }
+
     public static void logDebug(String message) {
         logger.debug(message);
     }
 
+    public static void logDebug(String message, Object p0) {
+        logger.debug(message, p0);
+    }
+
+    public static void logDebug(String message, Object p0, Object p1) {
+        logger.debug(message, p0, p1);
+    }
+
+    public static void logDebug(String message, Object p0, Object p1, Object p2) {
+        logger.debug(message, p0, p1, p2);
+    }
+
+    public static void logDebug(String message, Object... params) {
+        logger.debug(message, params);
+    }
+
+    public static void logDebug(Supplier<?> message) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.valueOf(message.get()));
+        }
+    }
+
     public static void logWarn(String message) {
         logger.warn(message);
     }
+
+    public static void logWarn(String message, Object p0) {
+        logger.warn(message, p0);
+    }
+
+    public static void logWarn(String message, Object p0, Object p1) {
+        logger.warn(message, p0, p1);
+    }
+
+    public static void logWarn(String message, Object p0, Object p1, Object p2) {
+        logger.warn(message, p0, p1, p2);
+    }
+
+    public static void logWarn(String message, Object... params) {
+        logger.warn(message, params);
+    }
+
+    public static void logWarn(Supplier<?> message) {
+        if (logger.isWarnEnabled()) {
+            logger.warn(String.valueOf(message.get()));
+        }
+    }
 }
@@ -0,0 +1,46 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.InterruptedIOException;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket shared by every writer that should count against the same limit. The rate is
+ * read on every call, so it can be changed while transfers are running; zero or a negative
+ * rate means unlimited. A writer may take more tokens than the bucket holds and then sleeps
+ * off the debt, which keeps the long-run rate exact whatever the write size.
+ */
+public class BandwidthLimiter {
+
+    private final LongSupplier bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public BandwidthLimiter(LongSupplier bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void acquire(int bytes) throws InterruptedIOException {
+        long rate = bytesPerSecond.getAsLong();
+        if (rate <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // Up to one second of unused allowance can be spent as a burst
+            tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return;
+            }
+            waitNanos = (long) (-tokens * 1e9 / rate);
+        }
+        try {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling transfer");
+        }
+    }
+}
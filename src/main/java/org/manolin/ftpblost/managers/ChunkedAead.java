@@ -0,0 +1,422 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.manolin.ftpblost.metrics.SyncMetrics;
+
+/**
+ * Chunked AES-GCM container used for encrypted uploads.
+ *
+ * <pre>
+ * header: magic "FBX\1" (4) | chunk size (4) | salt (16)
+ * chunk i: AES-GCM(fileKey, nonce = 0000 || i, aad = i || final) of chunkSize plain bytes, + 16 byte tag
+ * </pre>
+ *
+ * The file key is derived from the configured key and a random per-file salt, so chunk
+ * nonces can be a plain counter. Every chunk is authenticated on its own, which lets chunks
+ * be encrypted on several cores and lets any byte range be decrypted without the rest of
+ * the file. The last chunk holds fewer than chunkSize bytes (possibly none) and is flagged
+ * as final in its AAD, so truncating or reordering chunks is detected.
+ */
+public final class ChunkedAead {
+
+    static final byte[] MAGIC = {'F', 'B', 'X', 1};
+    public static final int HEADER_SIZE = 4 + 4 + 16;
+    public static final int TAG_SIZE = 16;
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final byte[] KEY_LABEL = "ftpblost-chunk-key".getBytes(StandardCharsets.US_ASCII);
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    });
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Math.max(1, ConfigManager.ENCRYPTION_THREADS), r -> {
+                Thread thread = new Thread(r, "chunk-cipher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private ChunkedAead() {
+    }
+
+    public static boolean hasMagic(byte[] prefix, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (prefix[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Plain size of an encrypted object of {@code encryptedSize} bytes.
+     */
+    public static long plaintextLength(long encryptedSize, int chunkSize) {
+        long body = encryptedSize - HEADER_SIZE;
+        long chunks = (body + chunkSize + TAG_SIZE - 1) / (chunkSize + TAG_SIZE);
+        return body - chunks * TAG_SIZE;
+    }
+
+    public static OutputStream encryptingStream(OutputStream out, byte[] masterKey, int chunkSize) throws IOException {
+        return new EncryptingOutputStream(out, masterKey, chunkSize);
+    }
+
+    /**
+     * Decrypts a stream whose 4 magic bytes have already been consumed.
+     */
+    public static InputStream decryptingStream(InputStream in, byte[] masterKey) throws IOException {
+        return new DecryptingInputStream(in, masterKey);
+    }
+
+    /**
+     * Decrypts {@code length} plain bytes starting at plain offset {@code offset}, reading only
+     * the chunks that cover the range.
+     */
+    public static void decryptRange(SeekableByteChannel channel, byte[] masterKey, long offset, long length,
+                                    OutputStream out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.position(0);
+        readFully(channel, header);
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!hasMagic(magic, magic.length)) {
+            throw new IOException("Not a chunked encrypted file");
+        }
+        int chunkSize = header.getInt();
+        byte[] salt = new byte[16];
+        header.get(salt);
+        SecretKeySpec fileKey = deriveFileKey(masterKey, salt);
+
+        long encryptedSize = channel.size();
+        long end = Math.min(offset + length, plaintextLength(encryptedSize, chunkSize));
+        ByteBuffer encrypted = ByteBuffer.allocate(chunkSize + TAG_SIZE);
+        byte[] plain = new byte[chunkSize];
+        for (long chunk = offset / chunkSize; chunk * chunkSize < end; chunk++) {
+            long position = HEADER_SIZE + chunk * (chunkSize + TAG_SIZE);
+            encrypted.clear();
+            encrypted.limit((int) Math.min(chunkSize + TAG_SIZE, encryptedSize - position));
+            channel.position(position);
+            readFully(channel, encrypted);
+            boolean last = position + encrypted.limit() >= encryptedSize;
+            int plainLength = decryptChunk(fileKey, chunk, last, encrypted.array(), encrypted.limit(), plain);
+            long chunkStart = chunk * chunkSize;
+            int from = (int) Math.max(0, offset - chunkStart);
+            int to = (int) Math.min(plainLength, end - chunkStart);
+            out.write(plain, from, to - from);
+        }
+    }
+
+    /**
+     * Chunk size recorded in a header of {@link #HEADER_SIZE} bytes, or -1 if the bytes are
+     * not a chunked header.
+     */
+    public static int chunkSizeOf(byte[] header) {
+        if (header.length < HEADER_SIZE || !hasMagic(header, header.length)) {
+            return -1;
+        }
+        int chunkSize = ByteBuffer.wrap(header, MAGIC.length, 4).getInt();
+        return chunkSize > 0 && chunkSize <= 64 * 1024 * 1024 ? chunkSize : -1;
+    }
+
+    /**
+     * Decrypts whole chunks read from {@code in}, the first of them chunk {@code firstChunk},
+     * until the stream ends. This is how a byte range downloaded on its own is decrypted:
+     * {@code header} is the object's header and {@code encryptedSize} its full size, which
+     * tells which chunk is the final one. Returns the number of plain bytes written.
+     */
+    public static long decryptChunks(InputStream in, byte[] masterKey, byte[] header, long firstChunk,
+                                     long encryptedSize, OutputStream out) throws IOException {
+        int chunkSize = chunkSizeOf(header);
+        if (chunkSize < 0) {
+            throw new IOException("Not a chunked encrypted file");
+        }
+        SecretKeySpec fileKey = deriveFileKey(masterKey, Arrays.copyOfRange(header, MAGIC.length + 4, HEADER_SIZE));
+        byte[] encrypted = new byte[chunkSize + TAG_SIZE];
+        byte[] plain = new byte[chunkSize];
+        long written = 0;
+        for (long chunk = firstChunk; ; chunk++) {
+            long position = HEADER_SIZE + chunk * (chunkSize + TAG_SIZE);
+            int expected = (int) Math.min(chunkSize + TAG_SIZE, encryptedSize - position);
+            int read = expected > 0 ? in.readNBytes(encrypted, 0, expected) : 0;
+            if (read == 0) {
+                return written;
+            }
+            if (read < expected) {
+                throw new IOException("Unexpected end of encrypted chunk " + chunk);
+            }
+            int plainLength = decryptChunk(fileKey, chunk, position + read >= encryptedSize, encrypted, read, plain);
+            out.write(plain, 0, plainLength);
+            written += plainLength;
+        }
+    }
+
+    static SecretKeySpec deriveFileKey(byte[] masterKey, byte[] salt) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+            mac.update(KEY_LABEL);
+            return new SecretKeySpec(mac.doFinal(salt), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error deriving file key: " + e.getMessage(), e);
+        }
+    }
+
+    private static int encryptChunk(SecretKeySpec key, long index, boolean last, byte[] plain, int length, byte[] out)
+            throws GeneralSecurityException {
+        long start = System.nanoTime();
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, nonce(index));
+        cipher.updateAAD(aad(index, last));
+        int encryptedLength = cipher.doFinal(plain, 0, length, out, 0);
+        SyncMetrics.recordSince(SyncMetrics.Operation.ENCRYPT, start);
+        return encryptedLength;
+    }
+
+    private static int decryptChunk(SecretKeySpec key, long index, boolean last, byte[] encrypted, int length, byte[] out)
+            throws IOException {
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, nonce(index));
+            cipher.updateAAD(aad(index, last));
+            return cipher.doFinal(encrypted, 0, length, out, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Chunk " + index + " failed authentication: " + e.getMessage(), e);
+        }
+    }
+
+    private static GCMParameterSpec nonce(long index) {
+        return new GCMParameterSpec(TAG_SIZE * 8, ByteBuffer.allocate(12).putInt(0).putLong(index).array());
+    }
+
+    private static byte[] aad(long index, boolean last) {
+        return ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array();
+    }
+
+    private static void readFully(SeekableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of encrypted file");
+            }
+        }
+    }
+
+    /**
+     * Buffers plain bytes into chunks and encrypts up to a few chunks per core concurrently,
+     * writing them out in order.
+     */
+    private static final class EncryptingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final SecretKeySpec fileKey;
+        private final int chunkSize;
+        private final int maxInFlight;
+        private final BlockingQueue<byte[]> plainBuffers;
+        private final BlockingQueue<byte[]> encryptedBuffers;
+        private final ArrayDeque<Future<EncryptedChunk>> inFlight = new ArrayDeque<>();
+        private byte[] current;
+        private int position;
+        private long nextIndex;
+        private boolean closed;
+
+        private EncryptingOutputStream(OutputStream out, byte[] masterKey, int chunkSize) throws IOException {
+            this.out = out;
+            this.chunkSize = chunkSize;
+            this.maxInFlight = Math.max(1, ConfigManager.ENCRYPTION_THREADS) * 2;
+            this.plainBuffers = new ArrayBlockingQueue<>(maxInFlight + 1);
+            this.encryptedBuffers = new ArrayBlockingQueue<>(maxInFlight + 1);
+            byte[] salt = new byte[16];
+            RANDOM.nextBytes(salt);
+            this.fileKey = deriveFileKey(masterKey, salt);
+            out.write(ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).putInt(chunkSize).put(salt).array());
+            this.current = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (position == chunkSize) {
+                    submit(false);
+                }
+                int n = Math.min(len, chunkSize - position);
+                System.arraycopy(b, off, current, position, n);
+                position += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (position == chunkSize) {
+                    submit(false);
+                }
+                // The final chunk is always short, possibly empty, so truncation is detectable
+                submit(true);
+                while (!inFlight.isEmpty()) {
+                    writeOldest();
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private void submit(boolean last) throws IOException {
+            if (inFlight.size() >= maxInFlight) {
+                writeOldest();
+            }
+            byte[] plain = current;
+            int length = position;
+            long index = nextIndex++;
+            byte[] encrypted = takeBuffer(encryptedBuffers, chunkSize + TAG_SIZE);
+            inFlight.add(WORKERS.submit(() -> {
+                int encryptedLength = encryptChunk(fileKey, index, last, plain, length, encrypted);
+                return new EncryptedChunk(plain, encrypted, encryptedLength);
+            }));
+            current = takeBuffer(plainBuffers, chunkSize);
+            position = 0;
+        }
+
+        private void writeOldest() throws IOException {
+            try {
+                EncryptedChunk chunk = inFlight.removeFirst().get();
+                out.write(chunk.encrypted, 0, chunk.length);
+                plainBuffers.offer(chunk.plain);
+                encryptedBuffers.offer(chunk.encrypted);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while encrypting", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Error encrypting chunk: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        private static byte[] takeBuffer(BlockingQueue<byte[]> pool, int size) {
+            byte[] buffer = pool.poll();
+            return buffer != null ? buffer : new byte[size];
+        }
+    }
+
+    private record EncryptedChunk(byte[] plain, byte[] encrypted, int length) {
+    }
+
+    private static final class DecryptingInputStream extends InputStream {
+        private final InputStream in;
+        private final SecretKeySpec fileKey;
+        private final int chunkSize;
+        private final byte[] encrypted;
+        private final byte[] plain;
+        private final byte[] lookahead = new byte[1];
+        private boolean hasLookahead;
+        private int plainPosition;
+        private int plainLength;
+        private long nextIndex;
+        private boolean finished;
+
+        private DecryptingInputStream(InputStream in, byte[] masterKey) throws IOException {
+            this.in = in;
+            byte[] header = in.readNBytes(HEADER_SIZE - MAGIC.length);
+            if (header.length != HEADER_SIZE - MAGIC.length) {
+                throw new IOException("Truncated encrypted file header");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            this.chunkSize = buffer.getInt();
+            if (chunkSize <= 0 || chunkSize > 64 * 1024 * 1024) {
+                throw new IOException("Invalid chunk size in encrypted file: " + chunkSize);
+            }
+            byte[] salt = new byte[16];
+            buffer.get(salt);
+            this.fileKey = deriveFileKey(masterKey, salt);
+            this.encrypted = new byte[chunkSize + TAG_SIZE];
+            this.plain = new byte[chunkSize];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (plainPosition == plainLength) {
+                if (finished) {
+                    return -1;
+                }
+                nextChunk();
+            }
+            int n = Math.min(len, plainLength - plainPosition);
+            System.arraycopy(plain, plainPosition, b, off, n);
+            plainPosition += n;
+            return n;
+        }
+
+        private void nextChunk() throws IOException {
+            int length = 0;
+            if (hasLookahead) {
+                encrypted[0] = lookahead[0];
+                length = 1;
+                hasLookahead = false;
+            }
+            length += in.readNBytes(encrypted, length, encrypted.length - length);
+            if (length < TAG_SIZE) {
+                throw new IOException("Encrypted file is truncated");
+            }
+            // A full chunk is only the last one if nothing follows it
+            boolean last = length < encrypted.length;
+            if (!last) {
+                int next = in.read();
+                if (next == -1) {
+                    last = true;
+                } else {
+                    lookahead[0] = (byte) next;
+                    hasLookahead = true;
+                }
+            }
+            plainLength = decryptChunk(fileKey, nextIndex++, last, encrypted, length, plain);
+            plainPosition = 0;
+            finished = last;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
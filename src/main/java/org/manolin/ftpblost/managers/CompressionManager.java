@@ -0,0 +1,121 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.manolin.ftpblost.logs.LogsManager;
+
+/**
+ * Streaming compression applied to file content before encryption. The codec used for
+ * a file is recorded in its remote name, so the restore path knows how to undo it. The
+ * suffixes are our own, so a user's {@code backup.tar.gz} is never mistaken for one.
+ */
+public class CompressionManager {
+
+    public enum Codec {
+        NONE(""),
+        GZIP(".ftpblost-gz"),
+        DEFLATE(".ftpblost-zz");
+
+        private final String suffix;
+
+        Codec(String suffix) {
+            this.suffix = suffix;
+        }
+
+        public String getSuffix() {
+            return suffix;
+        }
+    }
+
+    public static OutputStream compressStream(OutputStream out, Codec codec, int level) throws IOException {
+        return switch (codec) {
+            case NONE -> out;
+            case GZIP -> new GZIPOutputStream(out, ConfigManager.STREAM_BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+            case DEFLATE -> new DeflaterOutputStream(out, new Deflater(level), ConfigManager.STREAM_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        def.end();
+                    }
+                }
+            };
+        };
+    }
+
+    public static InputStream decompressStream(InputStream in, Codec codec) throws IOException {
+        return switch (codec) {
+            case NONE -> in;
+            case GZIP -> new GZIPInputStream(in, ConfigManager.STREAM_BUFFER_SIZE);
+            case DEFLATE -> new InflaterInputStream(in, new Inflater(), ConfigManager.STREAM_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        };
+    }
+
+    /**
+     * Codec whose suffix ends {@code name}, or {@link Codec#NONE}.
+     */
+    public static Codec codecForName(String name) {
+        for (Codec codec : Codec.values()) {
+            if (codec != Codec.NONE && name.endsWith(codec.getSuffix())) {
+                return codec;
+            }
+        }
+        return Codec.NONE;
+    }
+
+    /**
+     * Compresses the first block of the file with the fastest level and reports whether it
+     * shrank enough to be worth compressing. Already compressed media, archives and
+     * encrypted files fail this check and are sent as they are.
+     */
+    public static boolean isCompressible(Path file) {
+        byte[] sample = new byte[ConfigManager.COMPRESSION_SAMPLE_BYTES];
+        int length;
+        try (InputStream in = Files.newInputStream(file)) {
+            length = in.readNBytes(sample, 0, sample.length);
+        } catch (IOException e) {
+            LogsManager.logDebug("Could not sample {} for compression: {}", file, e.getMessage());
+            return false;
+        }
+        if (length < ConfigManager.COMPRESSION_MIN_FILE_BYTES) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[length];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < length) {
+                compressed += deflater.deflate(output, compressed, length - compressed);
+            }
+            return deflater.finished() && compressed <= length * (1.0 - ConfigManager.COMPRESSION_MIN_SAVINGS);
+        } finally {
+            deflater.end();
+        }
+    }
+}
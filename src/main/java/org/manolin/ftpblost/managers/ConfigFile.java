@@ -0,0 +1,148 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.manolin.ftpblost.monitor.PollingScanner;
+
+/**
+ * External settings in properties format. Keys are the names of the {@link ConfigManager}
+ * constants ({@code FTP_MAX_SESSIONS=8}); lists are comma separated. Watched roots are
+ * declared as {@code root.<name>=<local path>}, with optional {@code root.<name>.remote}
+ * and {@code root.<name>.scan-mode}.
+ */
+public final class ConfigFile {
+
+    /**
+     * System property naming the file {@link ConfigManager} reads its settings from.
+     */
+    public static final String PATH_PROPERTY = "ftpblost.config";
+
+    private static final String ROOT_PREFIX = "root.";
+
+    public record Root(String name, Path path, String remoteBasePath, PollingScanner.ScanMode scanMode) {
+    }
+
+    private final Path file;
+    private final Properties properties;
+
+    private ConfigFile(Path file, Properties properties) {
+        this.file = file;
+        this.properties = properties;
+    }
+
+    public static ConfigFile load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return new ConfigFile(file, properties);
+    }
+
+    /**
+     * The file named by {@link #PATH_PROPERTY}, or no overrides at all when it is not set.
+     */
+    static ConfigFile fromSystemProperty() {
+        String path = System.getProperty(PATH_PROPERTY);
+        if (path == null || path.isBlank()) {
+            return new ConfigFile(null, new Properties());
+        }
+        try {
+            return load(Path.of(path));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read config file " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value.replace("_", ""));
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Long.parseLong(value.replace("_", ""));
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, E defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Enum.valueOf(defaultValue.getDeclaringClass(), value.toUpperCase(Locale.ROOT));
+    }
+
+    public String[] getList(String key, String[] defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Arrays.stream(value.split(",")).map(String::trim).filter(s -> !s.isEmpty()).toArray(String[]::new);
+    }
+
+    /**
+     * The watched roots, in name order. Without any {@code root.*} key this is the single
+     * root of {@link ConfigManager#LOCAL_DIRECTORY_TO_WATCH}.
+     */
+    public List<Root> getRoots() {
+        Set<String> names = new TreeSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(ROOT_PREFIX) && key.indexOf('.', ROOT_PREFIX.length()) < 0) {
+                names.add(key.substring(ROOT_PREFIX.length()));
+            }
+        }
+        List<Root> roots = new ArrayList<>();
+        if (names.isEmpty()) {
+            roots.add(new Root("default", Path.of(getString("LOCAL_DIRECTORY_TO_WATCH", ConfigManager.LOCAL_DIRECTORY_TO_WATCH)).toAbsolutePath(),
+                    getString("FTP_REMOTE_BASE_DIRECTORY", ConfigManager.FTP_REMOTE_BASE_DIRECTORY),
+                    getEnum("SCAN_MODE", ConfigManager.SCAN_MODE)));
+            return roots;
+        }
+        for (String name : names) {
+            String prefix = ROOT_PREFIX + name;
+            String remoteBase = getString("FTP_REMOTE_BASE_DIRECTORY", ConfigManager.FTP_REMOTE_BASE_DIRECTORY);
+            roots.add(new Root(name, Path.of(getString(prefix, "")).toAbsolutePath(),
+                    getString(prefix + ".remote", remoteBase.isEmpty() ? name : remoteBase + "/" + name),
+                    getEnum(prefix + ".scan-mode", ConfigManager.SCAN_MODE)));
+        }
+        return roots;
+    }
+
+    /**
+     * Keys whose value differs between the two files, ignoring the watched roots.
+     */
+    public Set<String> changedSettings(ConfigFile other) {
+        Set<String> keys = new TreeSet<>(properties.stringPropertyNames());
+        keys.addAll(other.properties.stringPropertyNames());
+        keys.removeIf(key -> key.startsWith(ROOT_PREFIX)
+                || Objects.equals(getString(key, null), other.getString(key, null)));
+        return keys;
+    }
+}
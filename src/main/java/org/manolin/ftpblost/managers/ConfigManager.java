@@ -1,15 +1,126 @@
 package org.manolin.ftpblost.managers;
 
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
 
+import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.monitor.PollingScanner;
 
 public class ConfigManager {
 
-    public static final String LOCAL_DIRECTORY_TO_WATCH = "/Users/manu/prueba";
-    public static final String FTP_SERVER = "192.168.1.34";  
-    public static final int FTP_PORT = 21; // FTP DEFAULT PORT
-    public static final String FTP_USER = "manel";    
-    public static final String FTP_PASSWORD = "elvergeles";         
-    public static final String FTP_REMOTE_BASE_DIRECTORY = "";   
-    public static final String AES_ENCRYPTION_KEY = CryptoManager.generateAES(256); // Military-grade AES key
-    public static final int THREAD_POOL_SIZE = 2;// <-- Number of threads for file monitoring event processing
+    // Every setting below can be overridden by the file named in -Dftpblost.config (see ConfigFile)
+    private static final ConfigFile FILE = ConfigFile.fromSystemProperty();
+
+    public static final String LOCAL_DIRECTORY_TO_WATCH = FILE.getString("LOCAL_DIRECTORY_TO_WATCH", "/Users/manu/prueba");
+    public static final String FTP_SERVER = FILE.getString("FTP_SERVER", "192.168.1.34");  
+    public static final int FTP_PORT = FILE.getInt("FTP_PORT", 21); // FTP DEFAULT PORT
+    public static final String FTP_USER = FILE.getString("FTP_USER", "manel");    
+    public static final String FTP_PASSWORD = FILE.getString("FTP_PASSWORD", "elvergeles");         
+    public static final String FTP_REMOTE_BASE_DIRECTORY = FILE.getString("FTP_REMOTE_BASE_DIRECTORY", "");   
+    public static final String[] FTP_MIRRORS = FILE.getList("FTP_MIRRORS", new String[0]); // Extra servers that receive a full copy, as "user:password@host:port"
+    public static final int THREAD_POOL_SIZE = FILE.getInt("THREAD_POOL_SIZE", 2);// <-- Number of threads for file monitoring event processing (POOL execution mode)
+    public static final int FTP_MAX_SESSIONS = FILE.getInt("FTP_MAX_SESSIONS", 4); // <-- Max simultaneous FTP connections, keep below the server's per-user limit
+    public static final long FTP_SESSION_IDLE_TIMEOUT_MS = FILE.getLong("FTP_SESSION_IDLE_TIMEOUT_MS", 60_000); // Idle sessions older than this are closed
+    public static final long FTP_SESSION_VALIDATE_AFTER_MS = FILE.getLong("FTP_SESSION_VALIDATE_AFTER_MS", 10_000); // Sessions idle longer than this get a NOOP before reuse
+    public static final long FTP_SESSION_BORROW_TIMEOUT_MS = FILE.getLong("FTP_SESSION_BORROW_TIMEOUT_MS", 120_000);
+    public static final int FTP_CONNECT_TIMEOUT_MS = FILE.getInt("FTP_CONNECT_TIMEOUT_MS", 10_000); // Time allowed to open a control connection
+    public static final int FTP_SOCKET_TIMEOUT_MS = FILE.getInt("FTP_SOCKET_TIMEOUT_MS", 60_000); // A reply or data read silent this long fails the operation
+    public static final int FTP_DATA_SOCKET_BUFFER_BYTES = FILE.getInt("FTP_DATA_SOCKET_BUFFER_BYTES", 0); // SO_SNDBUF/SO_RCVBUF of data connections, 0 keeps the OS default (and Linux autotuning)
+    public static final int REMOTE_FILE_CACHE_MAX_ENTRIES = FILE.getInt("REMOTE_FILE_CACHE_MAX_ENTRIES", 100_000); // Remote file sizes kept in memory, least recently used ones are dropped first
+    public static final long FTP_RECONNECT_BASE_DELAY_MS = FILE.getLong("FTP_RECONNECT_BASE_DELAY_MS", 1_000); // First wait after losing the server, doubled on every failed attempt
+    public static final long FTP_RECONNECT_MAX_DELAY_MS = FILE.getLong("FTP_RECONNECT_MAX_DELAY_MS", 60_000); // Longest wait between reconnect attempts
+    public static final long MIRROR_PIPE_BYTES = FILE.getLong("MIRROR_PIPE_BYTES", 8L * 1024 * 1024); // A mirror this far behind a live upload is detached and catches up from its backlog
+    public static final int MIRROR_BACKLOG_CAPACITY = FILE.getInt("MIRROR_BACKLOG_CAPACITY", 100_000); // Changes a mirror may owe before it is marked out of sync until the next reconciliation
+    public static final long OUTBOX_SYNC_INTERVAL_MS = FILE.getLong("OUTBOX_SYNC_INTERVAL_MS", 1_000); // Pending operations are forced to disk at most this often
+    public static final TransferScheduler.ExecutionMode EXECUTION_MODE = FILE.getEnum("EXECUTION_MODE", TransferScheduler.ExecutionMode.VIRTUAL); // POOL falls back to THREAD_POOL_SIZE platform threads
+    public static final int VIRTUAL_MAX_CONCURRENT_TRANSFERS = FILE.getInt("VIRTUAL_MAX_CONCURRENT_TRANSFERS", FTP_MAX_SESSIONS); // Transfers running at once in VIRTUAL mode; more would only wait for a session
+    public static final int TRANSFER_QUEUE_CAPACITY = FILE.getInt("TRANSFER_QUEUE_CAPACITY", 10_000); // Queued transfers before the watcher and reconciler are held back
+    public static final long TRANSFER_SMALL_FILE_BYTES = FILE.getLong("TRANSFER_SMALL_FILE_BYTES", 1024 * 1024); // Files up to this size are transferred first
+    public static final long TRANSFER_LARGE_FILE_BYTES = FILE.getLong("TRANSFER_LARGE_FILE_BYTES", 256L * 1024 * 1024); // Files this big are transferred last
+    public static final long BANDWIDTH_LIMIT_BYTES_PER_SEC = FILE.getLong("BANDWIDTH_LIMIT_BYTES_PER_SEC", 0); // Upload limit across all sessions, 0 = unlimited
+    public static final long SESSION_BANDWIDTH_LIMIT_BYTES_PER_SEC = FILE.getLong("SESSION_BANDWIDTH_LIMIT_BYTES_PER_SEC", 0); // Upload limit for each session, 0 = unlimited
+    public static final long COALESCE_QUIET_PERIOD_MS = FILE.getLong("COALESCE_QUIET_PERIOD_MS", 750); // A path must be quiet this long before its change is synced
+    public static final long COALESCE_MAX_DELAY_MS = FILE.getLong("COALESCE_MAX_DELAY_MS", 10_000); // Files written continuously are still synced at least this often
+    public static final int SCAN_PARALLELISM = FILE.getInt("SCAN_PARALLELISM", Runtime.getRuntime().availableProcessors()); // Threads used to walk and register the watched tree
+    public static final int RESCAN_PARALLELISM = FILE.getInt("RESCAN_PARALLELISM", Math.max(1, SCAN_PARALLELISM / 2)); // Threads used to rescan directories after a watch overflow
+    public static final long RESCAN_FILES_PER_SEC = FILE.getLong("RESCAN_FILES_PER_SEC", 20_000); // Files compared per second by an overflow rescan, 0 = unlimited
+    public static final PollingScanner.ScanMode SCAN_MODE = FILE.getEnum("SCAN_MODE", PollingScanner.ScanMode.AUTO); // AUTO polls network and container filesystems, watches the rest
+    public static final long POLL_MIN_INTERVAL_MS = FILE.getLong("POLL_MIN_INTERVAL_MS", 2_000); // Directories with recent changes are polled this often
+    public static final long POLL_MAX_INTERVAL_MS = FILE.getLong("POLL_MAX_INTERVAL_MS", 60_000); // Quiet directories back off to this interval
+    public static final long RENAME_WINDOW_MS = FILE.getLong("RENAME_WINDOW_MS", 1_000); // A delete and a create this close together can be paired as a rename
+    public static final long RENAME_MIN_FILE_BYTES = FILE.getLong("RENAME_MIN_FILE_BYTES", 64 * 1024); // Smaller files are simply uploaded again
+    public static final long RENAME_VERIFY_MAX_BYTES = FILE.getLong("RENAME_VERIFY_MAX_BYTES", 256L * 1024 * 1024); // Renamed files up to this size are hashed before trusting size and mtime
+    public static final String STATE_DIRECTORY = FILE.getString("STATE_DIRECTORY", System.getProperty("user.home") + "/.ftpblost"); // Sync index and other local state
+    public static final long INDEX_FLUSH_INTERVAL_MS = FILE.getLong("INDEX_FLUSH_INTERVAL_MS", 1_000); // Index updates are batched and written at most this often
+    public static final long INDEX_COMPACT_MIN_RECORDS = FILE.getLong("INDEX_COMPACT_MIN_RECORDS", 100_000); // Log is rewritten on load once it has this many records and twice the live entries
+    public static final long RECONCILE_PROGRESS_INTERVAL_MS = FILE.getLong("RECONCILE_PROGRESS_INTERVAL_MS", 5_000); // How often reconciliation progress is logged
+    public static final long RESUMABLE_UPLOAD_THRESHOLD_BYTES = FILE.getLong("RESUMABLE_UPLOAD_THRESHOLD_BYTES", 64L * 1024 * 1024); // Files at least this big are uploaded resumably, so binary ones are never compressed
+    public static final long RESTORE_SEGMENT_BYTES = FILE.getLong("RESTORE_SEGMENT_BYTES", 64L * 1024 * 1024); // Larger plain or chunk-encrypted files are restored as parallel ranges of this size
+    public static final int UPLOAD_MAX_ATTEMPTS = FILE.getInt("UPLOAD_MAX_ATTEMPTS", 5); // Attempts before a resumable upload gives up
+    public static final long UPLOAD_RETRY_BASE_DELAY_MS = FILE.getLong("UPLOAD_RETRY_BASE_DELAY_MS", 1_000); // Doubled after every failed attempt
+    public static final long ZERO_COPY_MIN_FILE_BYTES = FILE.getLong("ZERO_COPY_MIN_FILE_BYTES", 16L * 1024 * 1024); // Resumable uploads with at least this much left go straight from the file to the socket, -1 disables
+    public static final int ZERO_COPY_CHUNK_BYTES = FILE.getInt("ZERO_COPY_CHUNK_BYTES", 8 * 1024 * 1024); // Bytes per transferTo call when no bandwidth limit is set
+    public static final int ZERO_COPY_BUFFER_BYTES = FILE.getInt("ZERO_COPY_BUFFER_BYTES", 1024 * 1024); // Pooled direct buffers used when transferTo makes no progress
+    public static final long HASH_MMAP_THRESHOLD_BYTES = FILE.getLong("HASH_MMAP_THRESHOLD_BYTES", 4L * 1024 * 1024); // Files this big are memory-mapped for hashing
+    public static final CompressionManager.Codec COMPRESSION_CODEC = FILE.getEnum("COMPRESSION_CODEC", CompressionManager.Codec.GZIP); // NONE disables compression
+    public static final int COMPRESSION_LEVEL = FILE.getInt("COMPRESSION_LEVEL", 6); // 1 (fastest) to 9 (smallest)
+    public static final int COMPRESSION_SAMPLE_BYTES = FILE.getInt("COMPRESSION_SAMPLE_BYTES", 64 * 1024); // First block compressed to decide whether a file is worth it
+    public static final int COMPRESSION_MIN_FILE_BYTES = FILE.getInt("COMPRESSION_MIN_FILE_BYTES", 512); // Smaller files are sent as they are
+    public static final double COMPRESSION_MIN_SAVINGS = FILE.getDouble("COMPRESSION_MIN_SAVINGS", 0.10); // The sample must shrink at least this much
+    public static final int STREAM_BUFFER_SIZE = FILE.getInt("STREAM_BUFFER_SIZE", 64 * 1024); // Buffer size for streaming encrypt/upload and download/decrypt
+    public static final int METRICS_HTTP_PORT = FILE.getInt("METRICS_HTTP_PORT", 0); // Serves metrics as text on 127.0.0.1, 0 = disabled (JMX is always on)
+    public static final long METRICS_RATE_INTERVAL_MS = FILE.getLong("METRICS_RATE_INTERVAL_MS", 5_000); // Window for the bytes-per-second rates
+    public static final int ENCRYPTION_CHUNK_SIZE = FILE.getInt("ENCRYPTION_CHUNK_SIZE", 1024 * 1024); // Plain bytes per independently authenticated chunk
+    public static final long BUNDLE_MAX_FILE_BYTES = FILE.getLong("BUNDLE_MAX_FILE_BYTES", 4 * 1024); // Files up to this size are packed into bundles, -1 disables bundling
+    public static final long BUNDLE_WINDOW_MS = FILE.getLong("BUNDLE_WINDOW_MS", 2_000); // Small files changed within this window share a bundle
+    public static final int BUNDLE_MAX_ENTRIES = FILE.getInt("BUNDLE_MAX_ENTRIES", 1_000); // A bundle is sent early once it holds this many files
+    public static final long BUNDLE_MAX_BYTES = FILE.getLong("BUNDLE_MAX_BYTES", 8L * 1024 * 1024); // ... or this many bytes
+    public static final boolean BUNDLE_COMPRESS = FILE.getBoolean("BUNDLE_COMPRESS", true); // Deflate bundle entries
+    public static final boolean BUNDLE_ENCRYPT = FILE.getBoolean("BUNDLE_ENCRYPT", true); // Encrypt bundles and their manifests
+    public static final String BUNDLE_DIRECTORY = FILE.getString("BUNDLE_DIRECTORY", ".ftpblost-bundles"); // Remote directory, under the base directory, holding bundles
+    public static final int ENCRYPTION_THREADS = FILE.getInt("ENCRYPTION_THREADS", Runtime.getRuntime().availableProcessors()); // Chunks encrypted concurrently
+    public static final long SHUTDOWN_DRAIN_TIMEOUT_MS = FILE.getLong("SHUTDOWN_DRAIN_TIMEOUT_MS", 30_000); // Time a stopping daemon gives queued transfers, the rest is replayed from the outbox on the next start
+
+    /**
+     * Military-grade AES key. Set AES_ENCRYPTION_KEY in the config file; otherwise one is
+     * generated the first time something is encrypted and kept in the state directory, so
+     * files encrypted before a restart can still be decrypted after it.
+     */
+    public static String aesEncryptionKey() {
+        return AesKey.VALUE;
+    }
+
+    private static final class AesKey {
+        private static final String VALUE = load();
+
+        private static String load() {
+            String configured = FILE.getString("AES_ENCRYPTION_KEY", null);
+            if (configured != null) {
+                return configured;
+            }
+            Path keyFile = Path.of(STATE_DIRECTORY, "aes.key");
+            try {
+                if (Files.exists(keyFile)) {
+                    return Files.readString(keyFile).trim();
+                }
+                String key = CryptoManager.generateAES(256);
+                Files.createDirectories(keyFile.getParent());
+                Path temp = keyFile.resolveSibling("aes.key.tmp");
+                Files.deleteIfExists(temp);
+                if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                    Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+                }
+                Files.writeString(temp, key);
+                Files.move(temp, keyFile, StandardCopyOption.ATOMIC_MOVE);
+                LogsManager.logWarn("AES_ENCRYPTION_KEY is not set, generated one in {}. Back it up: restores need it", keyFile);
+                return key;
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read or store the AES key in " + keyFile + ": " + e.getMessage(), e);
+            }
+        }
+    }
     }
\ No newline at end of file
@@ -1,6 +1,12 @@
 package org.manolin.ftpblost.managers;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -9,6 +15,7 @@ import java.util.Base64;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
@@ -24,7 +31,7 @@ public class CryptoManager {
     private static final String SECRET_KEY_ALGORITHM = "AES";
     private static final byte[] IV = new byte[16];
 
-    private static byte[] getKeyFromString(String key) throws Exception {
+    private static byte[] getKeyFromString(String key) throws InvalidKeyException {
         byte[] decodedKey = Base64.getDecoder().decode(key);
         int keyLengthBits = decodedKey.length * 8;
         if (keyLengthBits != 128 && keyLengthBits != 192 && keyLengthBits != 256) {
@@ -43,7 +50,7 @@ public class CryptoManager {
             LogsManager.logDebug("Text encrypted successfully");
             return Base64.getEncoder().encodeToString(encryptedBytes);
         } catch (InvalidAlgorithmParameterException | InvalidKeyException | NoSuchAlgorithmException | BadPaddingException | IllegalBlockSizeException | NoSuchPaddingException e) {
-            LogsManager.logError("Error encrypting text: " + e.getMessage(), e);
+            LogsManager.logError("Error encrypting text: {}", e.getMessage(), e);
             throw e;
         }
     }
@@ -59,16 +66,85 @@ public class CryptoManager {
             LogsManager.logDebug("Text decrypted successfully");
             return new String(decryptedBytes, StandardCharsets.UTF_8);
         } catch (InvalidAlgorithmParameterException | InvalidKeyException | NoSuchAlgorithmException | BadPaddingException | IllegalBlockSizeException | NoSuchPaddingException e) {
-            LogsManager.logError("Error decrypting text: " + e.getMessage(), e);
+            LogsManager.logError("Error decrypting text: {}", e.getMessage(), e);
             throw e;
         }
     }
 
+    /**
+     * Encrypts everything written to the returned stream into the chunked AES-GCM format of
+     * {@link ChunkedAead}. Closing the returned stream writes the final chunk and closes {@code out}.
+     */
+    public static OutputStream encryptStream(OutputStream out, String encryptionKey) throws IOException {
+        try {
+            return ChunkedAead.encryptingStream(out, getKeyFromString(encryptionKey), ConfigManager.ENCRYPTION_CHUNK_SIZE);
+        } catch (InvalidKeyException e) {
+            LogsManager.logError("Error initializing cipher: {}", e.getMessage(), e);
+            throw new IOException("Error initializing cipher: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decrypts files in either the chunked format or the older Base64 AES/CBC format. The
+     * chunked header {@code FBX\1} ends with a control byte that never occurs in Base64 text,
+     * so the two cannot be mistaken for each other.
+     */
+    public static InputStream decryptStream(InputStream in, String decryptionKey) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, ChunkedAead.MAGIC.length);
+        byte[] prefix = pushback.readNBytes(ChunkedAead.MAGIC.length);
+        if (ChunkedAead.hasMagic(prefix, prefix.length)) {
+            try {
+                return ChunkedAead.decryptingStream(pushback, getKeyFromString(decryptionKey));
+            } catch (InvalidKeyException e) {
+                throw new IOException("Error initializing cipher: " + e.getMessage(), e);
+            }
+        }
+        pushback.unread(prefix);
+        Cipher cipher = initCipher(Cipher.DECRYPT_MODE, decryptionKey);
+        return new CipherInputStream(Base64.getDecoder().wrap(pushback), cipher);
+    }
+
+    /**
+     * Decrypts a plain byte range of a chunked encrypted file, reading only the chunks it spans.
+     */
+    public static void decryptRange(SeekableByteChannel channel, String decryptionKey, long offset, long length,
+                                    OutputStream out) throws IOException {
+        try {
+            ChunkedAead.decryptRange(channel, getKeyFromString(decryptionKey), offset, length, out);
+        } catch (InvalidKeyException e) {
+            throw new IOException("Error initializing cipher: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decrypts a run of whole chunks downloaded on their own; see {@link ChunkedAead#decryptChunks}.
+     */
+    public static long decryptChunks(InputStream in, String decryptionKey, byte[] header, long firstChunk,
+                                     long encryptedSize, OutputStream out) throws IOException {
+        try {
+            return ChunkedAead.decryptChunks(in, getKeyFromString(decryptionKey), header, firstChunk, encryptedSize, out);
+        } catch (InvalidKeyException e) {
+            throw new IOException("Error initializing cipher: " + e.getMessage(), e);
+        }
+    }
+
+    private static Cipher initCipher(int mode, String key) throws IOException {
+        try {
+            SecretKey secretKey = new SecretKeySpec(getKeyFromString(key), SECRET_KEY_ALGORITHM);
+            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            cipher.init(mode, secretKey, new IvParameterSpec(IV));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            LogsManager.logError("Error initializing cipher: {}", e.getMessage(), e);
+            throw new IOException("Error initializing cipher: " + e.getMessage(), e);
+        }
+    }
+
     public static String generateAES(int bits) {
         try {
             // Validate key length in bits
             if (bits != 128 && bits != 192 && bits != 256) {
-                LogsManager.logWarn("Invalid key length " + bits + " bits. Defaulting to 256 bits");
+                LogsManager.logWarn("Invalid key length {} bits. Defaulting to 256 bits", bits);
                 bits = 256;
             }
             
@@ -77,10 +153,10 @@ public class CryptoManager {
             keyGenerator.init(bits, secureRandom);
             SecretKey secretKey = keyGenerator.generateKey();
             byte[] keyBytes = secretKey.getEncoded();
-                        LogsManager.logInfo("AES key generated successfully with length: " + bits + " bits (" + keyBytes.length + " bytes)");
+                        LogsManager.logInfo("AES key generated successfully with length: {} bits ({} bytes)", bits, keyBytes.length);
             return Base64.getEncoder().withoutPadding().encodeToString(keyBytes);
         } catch (NoSuchAlgorithmException e) {
-            LogsManager.logError("Error generating AES key: " + e.getMessage(), e);
+            LogsManager.logError("Error generating AES key: {}", e.getMessage(), e);
             return null;
         }
     }
@@ -1,187 +1,746 @@
 package org.manolin.ftpblost.managers;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.apache.commons.net.ftp.FTPClient;
-import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.FTPFile;
 import org.manolin.ftpblost.exceptions.FTPException;
 import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.metrics.MeteredInputStream;
+import org.manolin.ftpblost.metrics.MeteredOutputStream;
+import org.manolin.ftpblost.metrics.SyncMetrics;
 
 public class FTPManager {
 
-    private final FTPClient ftpClient;
+    private final FTPSessionPool sessionPool;
+    private final TransferCheckpoints checkpoints;
+    private final RemoteDirectoryCache directoryCache = new RemoteDirectoryCache();
     private final String server;
     private final int port;
     private final String user;
-    private final String password;
+    private volatile long bandwidthLimit = ConfigManager.BANDWIDTH_LIMIT_BYTES_PER_SEC;
+    private volatile long sessionBandwidthLimit = ConfigManager.SESSION_BANDWIDTH_LIMIT_BYTES_PER_SEC;
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(() -> bandwidthLimit);
+    private final List<MirrorTarget> mirrors = new CopyOnWriteArrayList<>();
 
     public FTPManager(String server, int port, String user, String password) {
+        this(server, port, user, password, ConfigManager.FTP_MAX_SESSIONS);
+    }
+
+    public FTPManager(String server, int port, String user, String password, int maxSessions) {
+        this(server, port, user, password, maxSessions, null);
+    }
+
+    /**
+     * @param targetName tells this target's gauges and checkpoints apart from the primary
+     *                   server's; null for the primary server itself
+     */
+    public FTPManager(String server, int port, String user, String password, int maxSessions, String targetName) {
         this.server = server;
         this.port = port;
         this.user = user;
-        this.password = password;
-        this.ftpClient = new FTPClient();
+        this.sessionPool = new FTPSessionPool(server, port, user, password,
+                maxSessions,
+                ConfigManager.FTP_SESSION_IDLE_TIMEOUT_MS,
+                ConfigManager.FTP_SESSION_VALIDATE_AFTER_MS);
+        this.checkpoints = new TransferCheckpoints(Path.of(ConfigManager.STATE_DIRECTORY,
+                targetName == null ? "checkpoints" : "checkpoints-" + targetName.replaceAll("[^A-Za-z0-9.-]", "_")));
+        FTPSessionPool pool = sessionPool;
+        SyncMetrics.registerGauge(targetName == null ? SyncMetrics.ACTIVE_SESSIONS : SyncMetrics.forTarget(SyncMetrics.ACTIVE_SESSIONS, targetName),
+                () -> pool.getOpenSessions() - pool.getIdleSessions());
     }
 
     public void connect() throws FTPException {
-        try {
-            LogsManager.logInfo("Connecting to " + server + ":" + port + " as " + user);
-            ftpClient.connect(server, port);
-            int replyCode = ftpClient.getReplyCode();
-            LogsManager.logInfo("Server reply code: " + replyCode);
-            
-            if (!FTPReply.isPositiveCompletion(replyCode)) {
-                disconnect();
-                throw new FTPException("FTP connection refused by the server: " + replyCode);
-            }
-            
-            boolean loggedIn = ftpClient.login(user, password);
-            if (!loggedIn) {
-                disconnect();
-                throw new FTPException("Could not log in to the FTP server.");
-            }
-            
-            ftpClient.enterLocalPassiveMode();
-            ftpClient.setFileType(FTPClient.BINARY_FILE_TYPE);  // Añadido
-            
-            LogsManager.logInfo("Working directory: " + ftpClient.printWorkingDirectory());
-            LogsManager.logInfo("Connected successfully to FTP server");
-            
-        } catch (IOException e) {
-            LogsManager.logError("Connection error: " + e.getMessage(), e);
-            throw new FTPException("Error connecting to the FTP server: " + e.getMessage(), e);
+        if (sessionPool.isOpen()) {
+            return;
         }
+        LogsManager.logInfo("Connecting to {}:{} as {}", server, port, user);
+        sessionPool.open();
+        LogsManager.logInfo("Connected successfully to FTP server (up to {} sessions)", sessionPool.getMaxSessions());
+        mirrors.forEach(MirrorTarget::start);
     }
 
     public void disconnect() throws FTPException {
-        if (ftpClient.isConnected()) {
+        if (sessionPool.isOpen()) {
+            mirrors.forEach(MirrorTarget::stop);
+            sessionPool.close();
+            LogsManager.logInfo("Disconnected from the FTP server.");
+        }
+    }
+
+    public boolean isConnected() {
+        return sessionPool.isOpen();
+    }
+
+    /**
+     * False while the server is down and the pool is reconnecting; operations fail fast meanwhile.
+     */
+    public boolean isServerAvailable() {
+        return sessionPool.isOpen() && sessionPool.isAvailable();
+    }
+
+    /**
+     * Checks with a fresh connection whether the server is still there, typically after an
+     * operation failed. A server that does not answer is marked unavailable.
+     */
+    public boolean probeServer() {
+        return sessionPool.isOpen() && sessionPool.probe();
+    }
+
+    /**
+     * Runs {@code listener} every time the server comes back after an outage.
+     */
+    public void addRecoveryListener(Runnable listener) {
+        sessionPool.addRecoveryListener(listener);
+    }
+
+    public void removeRecoveryListener(Runnable listener) {
+        sessionPool.removeRecoveryListener(listener);
+    }
+
+    /**
+     * Replicates every change made through this manager to {@code mirror} too.
+     */
+    public void addMirror(MirrorTarget mirror) {
+        mirrors.add(mirror);
+        if (isConnected()) {
+            mirror.start();
+        }
+    }
+
+    /**
+     * Stops replicating to {@code mirror}. Changes it has already queued are left to the caller
+     * to drain or drop.
+     */
+    public void removeMirror(MirrorTarget mirror) {
+        mirrors.remove(mirror);
+    }
+
+    public List<MirrorTarget> getMirrors() {
+        return Collections.unmodifiableList(mirrors);
+    }
+
+    public void uploadFile(File localFile, String remotePath) throws FTPException {
+        uploadStream(remotePath, outputStream -> Files.copy(localFile.toPath(), outputStream));
+    }
+
+    /**
+     * Opens a STOR data connection and lets {@code writer} stream the content straight into it,
+     * so no temporary file or in-memory copy is needed. Mirrors that keep up receive the same
+     * bytes at the same time; the others call {@code writer} again later, on their own.
+     */
+    public void uploadStream(String remotePath, StreamWriter writer) throws FTPException {
+        uploadStream(remotePath, writer, writer);
+    }
+
+    /**
+     * Same as {@link #uploadStream(String, StreamWriter)}, for a {@code writer} that keeps
+     * state of its own, such as a checksum. Mirrors that fall behind call {@code replay}
+     * instead, which must produce the same bytes from scratch and share nothing with it.
+     */
+    public void uploadStream(String remotePath, StreamWriter writer, StreamWriter replay) throws FTPException {
+        List<MirrorTarget.LiveUpload> copies = new ArrayList<>(mirrors.size());
+        for (MirrorTarget mirror : mirrors) {
+            MirrorTarget.LiveUpload copy = mirror.attach(remotePath, replay);
+            if (copy != null) {
+                copies.add(copy);
+            }
+        }
+        boolean stored = false;
+        try {
+            store(remotePath, writer, copies);
+            stored = true;
+        } finally {
+            for (MirrorTarget.LiveUpload copy : copies) {
+                if (stored) {
+                    copy.end();
+                } else {
+                    copy.abandon();
+                }
+            }
+        }
+    }
+
+    private void store(String remotePath, StreamWriter writer, List<MirrorTarget.LiveUpload> copies) throws FTPException {
+        execute(ftpClient -> {
+            try {
+                LogsManager.logDebug("Uploading file to: {}", remotePath);
+                String normalizedPath = toAbsolutePath(remotePath);
+                OutputStream remoteStream = openStoreStream(ftpClient, normalizedPath, false);
+                if (!copies.isEmpty()) {
+                    remoteStream = MirrorTarget.replicate(remoteStream, copies);
+                }
+                long start = System.nanoTime();
+                try (OutputStream outputStream = new BufferedOutputStream(remoteStream, ConfigManager.STREAM_BUFFER_SIZE)) {
+                    writer.writeTo(outputStream);
+                }
+                if (!ftpClient.completePendingCommand()) {
+                    throw new FTPException("The file could not be uploaded. " + ftpClient.getReplyString());
+                }
+                SyncMetrics.recordSince(SyncMetrics.Operation.STOR, start);
+                SyncMetrics.FILES_UPLOADED.increment();
+                directoryCache.storedFile(normalizedPath);
+                LogsManager.logInfo("File uploaded successfully: {}", normalizedPath);
+                return null;
+            } catch (IOException e) {
+                LogsManager.logError("Error uploading file: {}", e.getMessage(), e);
+                throw new FTPException("Error uploading file: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Uploads a large file to {@code remotePath + ".part"} and renames it into place once
+     * complete. After a dropped connection, or a process restart, the transfer continues
+     * from the size the server already holds (SIZE + APPE) instead of from byte zero.
+     */
+    public void uploadFileResumable(File localFile, String remotePath) throws FTPException {
+        String normalizedPath = toAbsolutePath(remotePath);
+        String partPath = normalizedPath + ".part";
+        long size = localFile.length();
+        long lastModified = localFile.lastModified();
+        String localPath = localFile.getAbsolutePath();
+        TransferCheckpoints.Checkpoint checkpoint = checkpoints.load(partPath);
+        boolean resume = checkpoint != null && checkpoint.matches(localPath, size, lastModified);
+        if (checkpoint != null && !resume) {
+            LogsManager.logInfo("Local file changed since the interrupted upload, restarting: {}", normalizedPath);
+        }
+        checkpoints.save(partPath, new TransferCheckpoints.Checkpoint(localPath, size, lastModified));
+
+        for (int attempt = 1; ; attempt++) {
+            boolean resumeThisAttempt = resume;
+            try {
+                long stored = execute(ftpClient -> appendFrom(ftpClient, localFile, partPath, resumeThisAttempt));
+                if (stored != size) {
+                    throw new FTPException("Size check failed for " + partPath + ": server has " + stored + " of " + size + " bytes");
+                }
+                break;
+            } catch (FTPException e) {
+                if (attempt >= ConfigManager.UPLOAD_MAX_ATTEMPTS) {
+                    throw e;
+                }
+                SyncMetrics.RETRIES.increment();
+                long delay = ConfigManager.UPLOAD_RETRY_BASE_DELAY_MS << Math.min(attempt - 1, 6);
+                LogsManager.logWarn("Upload of {} interrupted (attempt {}/{}), resuming in {} ms: {}", normalizedPath, attempt,
+                        ConfigManager.UPLOAD_MAX_ATTEMPTS, delay, e.getMessage());
+                sleep(delay);
+                resume = true;
+            }
+        }
+
+        execute(ftpClient -> {
             try {
-                ftpClient.logout();
-                ftpClient.disconnect();
-                LogsManager.logInfo("Disconnected from the FTP server.");
+                if (!ftpClient.rename(partPath, normalizedPath)) {
+                    // Some servers refuse to rename over an existing file
+                    ftpClient.deleteFile(normalizedPath);
+                    if (!ftpClient.rename(partPath, normalizedPath)) {
+                        throw new FTPException("Could not move " + partPath + " into place: " + ftpClient.getReplyString());
+                    }
+                }
+                directoryCache.putFile(normalizedPath, new RemoteDirectoryCache.RemoteFileInfo(size, System.currentTimeMillis()));
+                return null;
             } catch (IOException e) {
-                throw new FTPException("Error disconnecting from the FTP server: " + e.getMessage(), e);
+                throw new FTPException("Error finishing upload of " + normalizedPath + ": " + e.getMessage(), e);
             }
+        });
+        checkpoints.delete(partPath);
+        SyncMetrics.FILES_UPLOADED.increment();
+        LogsManager.logInfo("File uploaded successfully: {}", normalizedPath);
+        // Only once the primary has it; resume offsets differ per server, so mirrors send large files from their own read of the file
+        for (MirrorTarget mirror : mirrors) {
+            mirror.submit(remotePath, true, target -> target.uploadFileResumable(localFile, remotePath));
         }
     }
 
-    public void uploadFile(File localFile, String remotePath) throws FTPException {
-        try (InputStream inputStream = new FileInputStream(localFile)) {
-            LogsManager.logInfo("Uploading file to: " + remotePath);
-            String normalizedPath = remotePath.replace('\\', '/');
-            int lastSlashIndex = normalizedPath.lastIndexOf('/');
-            
-            if (lastSlashIndex > 0) { 
-                String remoteDir = normalizedPath.substring(0, lastSlashIndex);
-                if (!remoteDir.isEmpty()) {
-                    makeDirectoryTree(remoteDir);
-                }
-            }
-            
-            boolean done = ftpClient.storeFile(normalizedPath, inputStream);
-            if (!done) {
-                String serverReply = ftpClient.getReplyString();
-                LogsManager.logError("Upload failed. Server reply: " + serverReply, null);
-                throw new FTPException("The file could not be uploaded. " + serverReply);
-            }
-            
-            LogsManager.logInfo("File uploaded successfully: " + normalizedPath);
+    private long appendFrom(FTPClient ftpClient, File localFile, String partPath, boolean resume) throws FTPException {
+        try {
+            long offset = resume ? remoteSize(ftpClient, partPath) : 0;
+            if (offset > localFile.length()) {
+                offset = 0;
+            }
+            if (offset > 0) {
+                LogsManager.logInfo("Resuming upload of {} at byte {} of {}", partPath, offset, localFile.length());
+            }
+            if (offset < localFile.length() || localFile.length() == 0) {
+                long start = System.nanoTime();
+                if (ConfigManager.ZERO_COPY_MIN_FILE_BYTES >= 0 && localFile.length() - offset >= ConfigManager.ZERO_COPY_MIN_FILE_BYTES
+                        && ftpClient instanceof ZeroCopyFTPClient zeroCopyClient) {
+                    sendZeroCopy(zeroCopyClient, localFile, partPath, offset);
+                } else {
+                    OutputStream remoteStream = openStoreStream(ftpClient, partPath, offset > 0);
+                    try (FileInputStream in = new FileInputStream(localFile);
+                         OutputStream outputStream = new BufferedOutputStream(remoteStream, ConfigManager.STREAM_BUFFER_SIZE)) {
+                        in.getChannel().position(offset);
+                        in.transferTo(outputStream);
+                    }
+                }
+                if (!ftpClient.completePendingCommand()) {
+                    throw new FTPException("The file could not be uploaded. " + ftpClient.getReplyString());
+                }
+                SyncMetrics.recordSince(SyncMetrics.Operation.STOR, start);
+            }
+            return remoteSize(ftpClient, partPath);
         } catch (IOException e) {
-            LogsManager.logError("Error uploading file: " + e.getMessage(), e);
             throw new FTPException("Error uploading file: " + e.getMessage(), e);
         }
     }
 
+    private static long remoteSize(FTPClient ftpClient, String remotePath) throws IOException {
+        String size = ftpClient.getSize(remotePath);
+        if (size == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void sleep(long millis) throws FTPException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FTPException("Interrupted while waiting to retry upload.", e);
+        }
+    }
+
     public void downloadFile(String remotePath, File localFile) throws FTPException {
-        try (OutputStream outputStream = new FileOutputStream(localFile)) {
-            LogsManager.logInfo("Downloading file: " + remotePath + " to " + localFile.getAbsolutePath());
-            boolean done = ftpClient.retrieveFile(remotePath, outputStream);
-            if (!done) {
-                throw new FTPException("The file could not be downloaded from the FTP server.");
+        execute(ftpClient -> {
+            try (OutputStream outputStream = new FileOutputStream(localFile)) {
+                LogsManager.logInfo("Downloading file: {} to {}", remotePath, localFile.getAbsolutePath());
+                boolean done = ftpClient.retrieveFile(remotePath, new MeteredOutputStream(outputStream, SyncMetrics.BYTES_DOWNLOADED));
+                if (!done) {
+                    throw new FTPException("The file could not be downloaded from the FTP server.");
+                }
+                return null;
+            } catch (IOException e) {
+                throw new FTPException("Error downloading the file " + remotePath + " from the FTP server: " + e.getMessage(), e);
             }
-        } catch (IOException e) {
-            throw new FTPException("Error downloading the file " + remotePath + " from the FTP server: " + e.getMessage(), e);
-        }
+        });
+    }
+
+    public void downloadStream(String remotePath, StreamReader reader) throws FTPException {
+        execute(ftpClient -> {
+            try {
+                LogsManager.logDebug("Streaming download of: {}", remotePath);
+                InputStream remoteStream = ftpClient.retrieveFileStream(remotePath);
+                if (remoteStream == null) {
+                    throw new FTPException("The file could not be downloaded from the FTP server. " + ftpClient.getReplyString());
+                }
+                try (InputStream inputStream = new BufferedInputStream(
+                        new MeteredInputStream(remoteStream, SyncMetrics.BYTES_DOWNLOADED), ConfigManager.STREAM_BUFFER_SIZE)) {
+                    reader.readFrom(inputStream);
+                }
+                if (!ftpClient.completePendingCommand()) {
+                    throw new FTPException("The file could not be downloaded from the FTP server. " + ftpClient.getReplyString());
+                }
+                return null;
+            } catch (IOException e) {
+                throw new FTPException("Error downloading the file " + remotePath + " from the FTP server: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Streams {@code length} bytes of a remote file starting at {@code offset} (REST + RETR).
+     * A range that ends before the end of the file closes the data connection early; the
+     * server answers that with a transfer-aborted reply, which is expected here.
+     */
+    public void downloadRange(String remotePath, long offset, long length, StreamReader reader) throws FTPException {
+        execute(ftpClient -> {
+            try {
+                ftpClient.setRestartOffset(offset);
+                InputStream remoteStream = ftpClient.retrieveFileStream(remotePath);
+                if (remoteStream == null) {
+                    throw new FTPException("The range at " + offset + " of " + remotePath + " could not be downloaded. " + ftpClient.getReplyString());
+                }
+                boolean reachedEnd;
+                try (InputStream inputStream = new BufferedInputStream(
+                        new MeteredInputStream(remoteStream, SyncMetrics.BYTES_DOWNLOADED), ConfigManager.STREAM_BUFFER_SIZE)) {
+                    reader.readFrom(new RangeInputStream(inputStream, length));
+                    reachedEnd = inputStream.read() == -1;
+                }
+                if (!ftpClient.completePendingCommand() && reachedEnd) {
+                    throw new FTPException("The range at " + offset + " of " + remotePath + " could not be downloaded. " + ftpClient.getReplyString());
+                }
+                return null;
+            } catch (IOException e) {
+                throw new FTPException("Error downloading the range at " + offset + " of " + remotePath + ": " + e.getMessage(), e);
+            } finally {
+                ftpClient.setRestartOffset(0);
+            }
+        });
     }
 
     public void deleteFile(String remotePath) throws FTPException {
-        try {
-            boolean deleted = ftpClient.deleteFile(remotePath);
-            if (deleted) {
-                LogsManager.logInfo("File deleted from the FTP server: " + remotePath);
-            } else {
-                LogsManager.logWarn("Could not delete the file from the FTP server: " + remotePath + ". Did it exist?");
+        execute(ftpClient -> {
+            try {
+                long start = System.nanoTime();
+                boolean deleted = ftpClient.deleteFile(toAbsolutePath(remotePath));
+                SyncMetrics.recordSince(SyncMetrics.Operation.DELE, start);
+                directoryCache.removeFile(remotePath);
+                if (deleted) {
+                    LogsManager.logInfo("File deleted from the FTP server: {}", remotePath);
+                } else {
+                    LogsManager.logWarn("Could not delete the file from the FTP server: {}. Did it exist?", remotePath);
+                }
+                return null;
+            } catch (IOException e) {
+                throw new FTPException("Error deleting the file " + remotePath + " from the FTP server: " + e.getMessage(), e);
             }
-        } catch (IOException e) {
-            throw new FTPException("Error deleting the file " + remotePath + " from the FTP server: " + e.getMessage(), e);
-        }
+        });
+        replicate(remotePath, target -> target.deleteFile(remotePath));
+    }
+
+    /**
+     * Renames a file or directory on the server (RNFR/RNTO), creating the target's parent
+     * directories first. A directory moves in one command, whatever it holds.
+     */
+    public void rename(String fromPath, String toPath) throws FTPException {
+        execute(ftpClient -> {
+            String from = toAbsolutePath(fromPath);
+            String to = toAbsolutePath(toPath);
+            try {
+                int lastSlashIndex = to.lastIndexOf('/');
+                makeDirectoryTree(ftpClient, lastSlashIndex > 0 ? to.substring(0, lastSlashIndex) : "");
+                long start = System.nanoTime();
+                if (!ftpClient.rename(from, to)) {
+                    throw new FTPException("Could not rename " + from + " to " + to + ": " + ftpClient.getReplyString());
+                }
+                SyncMetrics.recordSince(SyncMetrics.Operation.RENAME, start);
+                directoryCache.renamePath(from, to);
+                LogsManager.logInfo("Renamed on the FTP server: {} -> {}", from, to);
+                return null;
+            } catch (IOException e) {
+                throw new FTPException("Error renaming " + from + " to " + to + " on the FTP server: " + e.getMessage(), e);
+            }
+        });
+        replicate(fromPath, target -> target.rename(fromPath, toPath));
     }
 
     public boolean fileExists(String remotePath) throws FTPException {
-        try {
-            return ftpClient.listNames(remotePath) != null && ftpClient.listNames(remotePath).length > 0;
-        } catch (IOException e) {
-            throw new FTPException("Error checking if the file exists on the FTP server: " + e.getMessage(), e);
+        if (directoryCache.getFile(remotePath) != null || directoryCache.isKnownDirectory(remotePath)) {
+            return true;
         }
+        return execute(ftpClient -> {
+            try {
+                // A single MLST answers the question without opening a data connection
+                FTPFile file = ftpClient.mlistFile(toAbsolutePath(remotePath));
+                if (file == null) {
+                    return false;
+                }
+                if (file.isDirectory()) {
+                    directoryCache.addDirectory(remotePath);
+                } else {
+                    long lastModified = file.getTimestamp() != null ? file.getTimestamp().getTimeInMillis() : 0;
+                    directoryCache.putFile(remotePath, new RemoteDirectoryCache.RemoteFileInfo(file.getSize(), lastModified));
+                }
+                return true;
+            } catch (IOException e) {
+                throw new FTPException("Error checking if the file exists on the FTP server: " + e.getMessage(), e);
+            }
+        });
     }
 
     public void makeDirectory(String remotePath) throws FTPException {
-        try {
-            boolean created = ftpClient.makeDirectory(remotePath);
-            if (created) {
-                LogsManager.logInfo("Directory created on the FTP server: " + remotePath);
-            } else {
-                LogsManager.logWarn("Could not create the directory on the FTP server (it might already exist): " + remotePath);
+        execute(ftpClient -> {
+            try {
+                long start = System.nanoTime();
+                boolean created = ftpClient.makeDirectory(remotePath);
+                SyncMetrics.recordSince(SyncMetrics.Operation.MKD, start);
+                if (created) {
+                    directoryCache.addDirectory(remotePath);
+                    LogsManager.logInfo("Directory created on the FTP server: {}", remotePath);
+                } else {
+                    LogsManager.logWarn("Could not create the directory on the FTP server (it might already exist): {}", remotePath);
+                }
+                return null;
+            } catch (IOException e) {
+                throw new FTPException("Error creating the directory " + remotePath + " on the FTP server: " + e.getMessage(), e);
             }
-        } catch (IOException e) {
-            throw new FTPException("Error creating the directory " + remotePath + " on the FTP server: " + e.getMessage(), e);
-        }
+        });
+        replicate(remotePath, target -> target.makeDirectory(remotePath));
     }
 
     public String[] listFiles(String remotePath) throws FTPException {
-        try {
-            return ftpClient.listNames(remotePath);
-        } catch (IOException e) {
-            throw new FTPException("Error listing files on the FTP server: " + e.getMessage(), e);
-        }
+        return execute(ftpClient -> {
+            try {
+                return ftpClient.listNames(remotePath);
+            } catch (IOException e) {
+                throw new FTPException("Error listing files on the FTP server: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Lists a remote directory with MLSD, which returns names together with size,
+     * type and modification time in a single data transfer.
+     */
+    public FTPFile[] listDirectory(String remotePath) throws FTPException {
+        return execute(ftpClient -> {
+            try {
+                FTPFile[] files = ftpClient.mlistDir(remotePath);
+                if (files == null) {
+                    return new FTPFile[0];
+                }
+                directoryCache.recordListing(remotePath, files);
+                return files;
+            } catch (IOException e) {
+                throw new FTPException("Error listing directory " + remotePath + " on the FTP server: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Changes the upload limits, in bytes per second, for all sessions together and for each
+     * session. Transfers already running pick up the new limits on their next write.
+     */
+    public void setBandwidthLimits(long totalBytesPerSecond, long sessionBytesPerSecond) {
+        this.bandwidthLimit = totalBytesPerSecond;
+        this.sessionBandwidthLimit = sessionBytesPerSecond;
+        LogsManager.logInfo("Upload bandwidth limits set to {} in total and {} per session",
+                describeLimit(totalBytesPerSecond), describeLimit(sessionBytesPerSecond));
+    }
+
+    public long getBandwidthLimit() {
+        return bandwidthLimit;
     }
+
+    public long getSessionBandwidthLimit() {
+        return sessionBandwidthLimit;
+    }
+
+    private static String describeLimit(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? bytesPerSecond / 1024 + " KB/s" : "unlimited";
+    }
+
+    public int getMaxSessions() {
+        return sessionPool.getMaxSessions();
+    }
+
     public boolean testFtpConnection() {
         try {
-            connect();
-            disconnect();
+            sessionPool.verifyConnection();
             return true;
         } catch (FTPException e) {
-            LogsManager.logError("FTP connection test failed: " + e.getMessage(), e);
+            LogsManager.logError("FTP connection test failed: {}", e.getMessage(), e);
             return false;
         }
     }
 
-    private void makeDirectoryTree(String dirPath) throws IOException {
-        if (dirPath.startsWith("/")) {
-            dirPath = dirPath.substring(1);
+    public int getActiveSessions() {
+        return sessionPool.getOpenSessions() - sessionPool.getIdleSessions();
+    }
+
+    private <T> T execute(FTPCallback<T> callback) throws FTPException {
+        FTPSessionPool.Session session = sessionPool.borrow(ConfigManager.FTP_SESSION_BORROW_TIMEOUT_MS);
+        boolean broken = false;
+        try {
+            return callback.doWithClient(session.getClient());
+        } catch (FTPException e) {
+            // An I/O failure leaves the control connection in an unknown state
+            broken = e.getCause() instanceof IOException;
+            throw e;
+        } catch (RuntimeException e) {
+            broken = true;
+            throw e;
+        } finally {
+            if (broken) {
+                sessionPool.invalidate(session);
+            } else {
+                sessionPool.release(session);
+            }
+        }
+    }
+
+    private void replicate(String remotePath, MirrorTarget.Operation operation) {
+        for (MirrorTarget mirror : mirrors) {
+            mirror.submit(remotePath, false, operation);
+        }
+    }
+
+    /**
+     * Uploads use absolute paths so they never depend on a session's working directory.
+     */
+    private static String toAbsolutePath(String remotePath) {
+        return "/" + RemoteDirectoryCache.normalize(remotePath);
+    }
+
+    private OutputStream openStoreStream(FTPClient ftpClient, String path, boolean append) throws IOException, FTPException {
+        OutputStream remoteStream = openUpload(ftpClient, path,
+                () -> append ? ftpClient.appendFileStream(path) : ftpClient.storeFileStream(path));
+        return throttled(remoteStream);
+    }
+
+    /**
+     * Sends the file from {@code offset} on with as few copies as the data connection allows:
+     * transferTo over its channel when there is one, a plain stream copy otherwise.
+     */
+    private void sendZeroCopy(ZeroCopyFTPClient ftpClient, File localFile, String path, long offset) throws IOException, FTPException {
+        Socket socket = openUpload(ftpClient, path, () -> ftpClient.openUploadSocket(path, offset > 0));
+        try (socket; FileChannel file = FileChannel.open(localFile.toPath(), StandardOpenOption.READ)) {
+            SocketChannel channel = socket.getChannel();
+            if (channel == null) {
+                try (OutputStream outputStream = new BufferedOutputStream(throttled(socket.getOutputStream()), ConfigManager.STREAM_BUFFER_SIZE)) {
+                    Channels.newInputStream(file.position(offset)).transferTo(outputStream);
+                }
+                return;
+            }
+            // Under a bandwidth limit small chunks keep the rate smooth; otherwise let the kernel take big ones
+            int chunkSize = bandwidthLimit > 0 || sessionBandwidthLimit > 0 ? ConfigManager.STREAM_BUFFER_SIZE : ConfigManager.ZERO_COPY_CHUNK_BYTES;
+            ZeroCopyFTPClient.send(file, offset, channel, chunkSize, SyncMetrics.BYTES_UPLOADED,
+                    bandwidthLimiter, new BandwidthLimiter(() -> sessionBandwidthLimit));
         }
-        
-        String[] dirs = dirPath.split("/");
+    }
+
+    /**
+     * Starts a STOR or APPE through {@code opener} once the remote directory exists. A refused
+     * transfer rebuilds the directory and is tried once more.
+     */
+    private <T> T openUpload(FTPClient ftpClient, String path, UploadOpener<T> opener) throws IOException, FTPException {
+        int lastSlashIndex = path.lastIndexOf('/');
+        String remoteDir = lastSlashIndex > 0 ? path.substring(0, lastSlashIndex) : "";
+        makeDirectoryTree(ftpClient, remoteDir);
+        T upload = opener.open();
+        if (upload == null && !remoteDir.isEmpty()) {
+            // The cached directory may have been removed behind our back: forget it and rebuild once
+            LogsManager.logDebug("Store failed, re-checking remote directory {}: {}", remoteDir, ftpClient.getReplyString());
+            SyncMetrics.RETRIES.increment();
+            directoryCache.invalidateDirectory(remoteDir);
+            makeDirectoryTree(ftpClient, remoteDir);
+            upload = opener.open();
+        }
+        if (upload == null) {
+            throw new FTPException("The file could not be uploaded. " + ftpClient.getReplyString());
+        }
+        return upload;
+    }
+
+    private OutputStream throttled(OutputStream remoteStream) {
+        // A session runs one transfer at a time, so a bucket per transfer is a bucket per session
+        return new ThrottledOutputStream(new MeteredOutputStream(remoteStream, SyncMetrics.BYTES_UPLOADED),
+                bandwidthLimiter, new BandwidthLimiter(() -> sessionBandwidthLimit));
+    }
+
+    /**
+     * Creates the missing part of a directory tree. Directories already in the cache cost
+     * no round trip at all; missing ones cost a single MKD each, without any CWD.
+     */
+    private void makeDirectoryTree(FTPClient ftpClient, String dirPath) throws IOException {
+        String dir = RemoteDirectoryCache.normalize(dirPath);
+        if (directoryCache.isKnownDirectory(dir)) {
+            return;
+        }
+
+        String[] dirs = dir.split("/");
         String currentDir = "";
-        
-        for (String dir : dirs) {
-            if (!dir.isEmpty()) {
-                currentDir = currentDir + "/" + dir;
-                boolean exists = ftpClient.changeWorkingDirectory(currentDir);
-                if (!exists) {
-                    LogsManager.logInfo("Creating directory: " + currentDir);
-                    if (!ftpClient.makeDirectory(currentDir)) {
-                        LogsManager.logWarn("Could not create directory: " + currentDir + ". Reply: " + ftpClient.getReplyString());
-                    }
+
+        for (String part : dirs) {
+            if (!part.isEmpty()) {
+                currentDir = currentDir.isEmpty() ? part : currentDir + "/" + part;
+                if (directoryCache.isKnownDirectory(currentDir)) {
+                    continue;
                 }
+                long start = System.nanoTime();
+                boolean created = ftpClient.makeDirectory("/" + currentDir);
+                SyncMetrics.recordSince(SyncMetrics.Operation.MKD, start);
+                if (created) {
+                    LogsManager.logInfo("Directory created on the FTP server: /{}", currentDir);
+                    directoryCache.addDirectory(currentDir);
+                } else {
+                    // Usually it already exists; if it really could not be created the STOR will tell us.
+                    // Either way it is only cached once an upload into it succeeds
+                    LogsManager.logDebug("MKD /{} refused: {}", currentDir, ftpClient.getReplyString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends after {@code remaining} bytes, leaving the rest of the data connection unread.
+     */
+    private static final class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        private RangeInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
             }
+            return read;
         }
-        
-        // Return to root directory
-        ftpClient.changeWorkingDirectory("/");
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            // The caller closes the data connection once it knows whether the file ended
+        }
+    }
+
+    @FunctionalInterface
+    public interface StreamWriter {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface StreamReader {
+        void readFrom(InputStream inputStream) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface FTPCallback<T> {
+        T doWithClient(FTPClient ftpClient) throws FTPException;
+    }
+
+    @FunctionalInterface
+    private interface UploadOpener<T> {
+        T open() throws IOException;
     }
-}
\ No newline at end of file
+}
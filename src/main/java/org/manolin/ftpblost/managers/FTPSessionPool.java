@@ -0,0 +1,352 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.manolin.ftpblost.exceptions.FTPException;
+import org.manolin.ftpblost.exceptions.FTPLoginException;
+import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.metrics.SyncMetrics;
+
+/**
+ * Pool of logged-in FTP control connections. Each borrowed session is used by a
+ * single thread at a time, so transfers on different sessions run concurrently.
+ * <p>
+ * When a new session cannot be opened the server is marked unavailable: borrowing fails
+ * fast instead of piling up timeouts, and a background loop keeps reconnecting with
+ * exponential backoff and jitter until the server answers again, then tells the listeners.
+ */
+public class FTPSessionPool {
+
+    private final String server;
+    private final int port;
+    private final String user;
+    private final String password;
+    private final int maxSessions;
+    private final long idleTimeoutMillis;
+    private final long validateAfterMillis;
+
+    private final LinkedBlockingDeque<Session> idleSessions = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final AtomicInteger openSessions = new AtomicInteger();
+    private final AtomicBoolean available = new AtomicBoolean(true);
+    private final List<Runnable> recoveryListeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService evictor;
+    private volatile boolean open;
+    private final AtomicInteger reconnectAttempts = new AtomicInteger();
+
+    public FTPSessionPool(String server, int port, String user, String password,
+                          int maxSessions, long idleTimeoutMillis, long validateAfterMillis) {
+        this.server = server;
+        this.port = port;
+        this.user = user;
+        this.password = password;
+        this.maxSessions = Math.max(1, maxSessions);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validateAfterMillis = validateAfterMillis;
+        this.permits = new Semaphore(this.maxSessions, true);
+    }
+
+    public synchronized void open() throws FTPException {
+        if (open) {
+            return;
+        }
+        // Open one session eagerly so bad credentials or an unreachable server fail fast
+        idleSessions.offer(createSession());
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ftp-session-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdleSessions, period, period, TimeUnit.MILLISECONDS);
+        available.set(true);
+        open = true;
+    }
+
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        evictor.shutdownNow();
+        Session session;
+        while ((session = idleSessions.poll()) != null) {
+            destroy(session);
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public Session borrow(long timeoutMillis) throws FTPException {
+        if (!open) {
+            throw new FTPException("FTP session pool is not connected.");
+        }
+        if (!available.get()) {
+            throw new FTPException("FTP server is unavailable, reconnecting in the background.");
+        }
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new FTPException("Timed out waiting for a free FTP session (max " + maxSessions + ").");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FTPException("Interrupted while waiting for an FTP session.", e);
+        }
+        try {
+            Session session;
+            while ((session = idleSessions.pollFirst()) != null) {
+                if (isHealthy(session)) {
+                    return session;
+                }
+                destroy(session);
+            }
+            return createSession();
+        } catch (FTPException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void release(Session session) {
+        if (open && session.client.isConnected()) {
+            session.lastUsed = System.currentTimeMillis();
+            idleSessions.offerFirst(session);
+        } else {
+            destroy(session);
+        }
+        permits.release();
+    }
+
+    public void invalidate(Session session) {
+        destroy(session);
+        permits.release();
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public int getOpenSessions() {
+        return openSessions.get();
+    }
+
+    public int getIdleSessions() {
+        return idleSessions.size();
+    }
+
+    public void verifyConnection() throws FTPException {
+        destroy(createSession());
+    }
+
+    public boolean isAvailable() {
+        return available.get();
+    }
+
+    /**
+     * Called, on the pool's background thread, every time the server comes back after an outage.
+     */
+    public void addRecoveryListener(Runnable listener) {
+        recoveryListeners.add(listener);
+    }
+
+    public void removeRecoveryListener(Runnable listener) {
+        recoveryListeners.remove(listener);
+    }
+
+    /**
+     * Opens a fresh session to tell a server that is down from an operation that failed
+     * on its own. A failed probe marks the server unavailable.
+     */
+    public boolean probe() {
+        if (!available.get()) {
+            return false;
+        }
+        try {
+            // Not kept: the extra session could push us over the server's per-user limit
+            destroy(createSession());
+            return true;
+        } catch (FTPLoginException e) {
+            // It answered; the operation failed for reasons of its own
+            return true;
+        } catch (FTPException e) {
+            return false;
+        }
+    }
+
+    private void markUnavailable(String reason) {
+        if (open && available.compareAndSet(true, false)) {
+            LogsManager.logWarn("FTP server {}:{} is unavailable ({}), reconnecting in the background", server, port, reason);
+            reconnectAttempts.set(0);
+            scheduleReconnect();
+        }
+    }
+
+    private void scheduleReconnect() {
+        long delay = Math.min(ConfigManager.FTP_RECONNECT_MAX_DELAY_MS,
+                ConfigManager.FTP_RECONNECT_BASE_DELAY_MS << Math.min(reconnectAttempts.get(), 20));
+        // Equal jitter: half the delay is fixed, half is random, so clients restarted together spread out
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        try {
+            evictor.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            LogsManager.logDebug("Reconnect not scheduled, the pool is closing: {}", e.getMessage());
+        }
+    }
+
+    private void reconnect() {
+        if (!open) {
+            return;
+        }
+        int attempt = reconnectAttempts.incrementAndGet();
+        Session session;
+        try {
+            session = createSession();
+        } catch (FTPLoginException e) {
+            // The server is back but refuses us: operations fail with this error instead of waiting on a reconnect
+            LogsManager.logError("FTP server {}:{} is back but rejected the login, not reconnecting: {}", server, port, e.getMessage(), e);
+            available.set(true);
+            return;
+        } catch (FTPException e) {
+            LogsManager.logDebug("Reconnect attempt {} failed: {}", attempt, e.getMessage());
+            scheduleReconnect();
+            return;
+        }
+        // Sessions left idle from before the outage are most likely dead
+        Session stale;
+        while ((stale = idleSessions.poll()) != null) {
+            destroy(stale);
+        }
+        idleSessions.offerFirst(session);
+        available.set(true);
+        LogsManager.logInfo("FTP server {}:{} is back after {} reconnect attempts", server, port, attempt);
+        for (Runnable listener : recoveryListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                LogsManager.logError("Error notifying FTP recovery: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private Session createSession() throws FTPException {
+        FTPClient client = new ZeroCopyFTPClient();
+        // Without timeouts a server that vanishes mid-reply would hold the session forever
+        client.setConnectTimeout(ConfigManager.FTP_CONNECT_TIMEOUT_MS);
+        client.setDefaultTimeout(ConfigManager.FTP_SOCKET_TIMEOUT_MS);
+        client.setDataTimeout(Duration.ofMillis(ConfigManager.FTP_SOCKET_TIMEOUT_MS));
+        if (ConfigManager.FTP_DATA_SOCKET_BUFFER_BYTES > 0) {
+            client.setSendDataSocketBufferSize(ConfigManager.FTP_DATA_SOCKET_BUFFER_BYTES);
+            client.setReceieveDataSocketBufferSize(ConfigManager.FTP_DATA_SOCKET_BUFFER_BYTES);
+        }
+        long start = System.nanoTime();
+        try {
+            client.connect(server, port);
+            int replyCode = client.getReplyCode();
+            if (!FTPReply.isPositiveCompletion(replyCode)) {
+                client.disconnect();
+                markUnavailable("reply " + replyCode);
+                throw new FTPException("FTP connection refused by the server: " + replyCode);
+            }
+            if (!client.login(user, password)) {
+                String reply = client.getReplyString();
+                quietlyDisconnect(client);
+                // Wrong credentials are not an outage: reconnecting would only be refused again
+                throw new FTPLoginException("The FTP server rejected the login for user " + user + ": " + reply);
+            }
+            client.enterLocalPassiveMode();
+            client.setFileType(FTPClient.BINARY_FILE_TYPE);
+            SyncMetrics.recordSince(SyncMetrics.Operation.CONNECT, start);
+            openSessions.incrementAndGet();
+            LogsManager.logDebug("Opened FTP session to {}:{} ({}/{})", server, port, openSessions.get(), maxSessions);
+            return new Session(client);
+        } catch (IOException e) {
+            quietlyDisconnect(client);
+            markUnavailable(e.getMessage());
+            throw new FTPException("Error connecting to the FTP server: " + e.getMessage(), e);
+        }
+    }
+
+    private boolean isHealthy(Session session) {
+        if (!session.client.isConnected()) {
+            return false;
+        }
+        if (System.currentTimeMillis() - session.lastUsed < validateAfterMillis) {
+            return true;
+        }
+        try {
+            return session.client.sendNoOp();
+        } catch (IOException e) {
+            LogsManager.logDebug("FTP session failed NOOP check: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void evictIdleSessions() {
+        long now = System.currentTimeMillis();
+        Iterator<Session> iterator = idleSessions.descendingIterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            // Always keep one warm session around
+            if (idleSessions.size() > 1 && now - session.lastUsed > idleTimeoutMillis && idleSessions.remove(session)) {
+                LogsManager.logDebug("Evicting idle FTP session");
+                destroy(session);
+            }
+        }
+    }
+
+    private void destroy(Session session) {
+        if (session.destroyed) {
+            return;
+        }
+        session.destroyed = true;
+        openSessions.decrementAndGet();
+        if (session.client.isConnected()) {
+            try {
+                session.client.logout();
+            } catch (IOException e) {
+                LogsManager.logDebug("Error logging out FTP session: {}", e.getMessage());
+            }
+        }
+        quietlyDisconnect(session.client);
+    }
+
+    private static void quietlyDisconnect(FTPClient client) {
+        if (client.isConnected()) {
+            try {
+                client.disconnect();
+            } catch (IOException e) {
+                LogsManager.logDebug("Error closing FTP connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    public static final class Session {
+        private final FTPClient client;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean destroyed;
+
+        private Session(FTPClient client) {
+            this.client = client;
+        }
+
+        public FTPClient getClient() {
+            return client;
+        }
+    }
+}
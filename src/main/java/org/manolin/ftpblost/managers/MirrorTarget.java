@@ -0,0 +1,509 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.manolin.ftpblost.exceptions.FTPException;
+import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.metrics.SyncMetrics;
+
+/**
+ * An extra FTP server that receives a copy of every change sent to the primary one, over
+ * its own session pool.
+ * <p>
+ * While the mirror keeps up, an upload is fed live from the bytes the primary upload
+ * produces, so a file is read, compressed and encrypted once whatever the number of
+ * targets. Once a mirror's live copies hold {@link ConfigManager#MIRROR_PIPE_BYTES} it has
+ * not sent yet, the copy that would go over is detached, so the mirror never slows the
+ * primary down; that upload goes to its backlog instead and is produced again from the
+ * local file later. Deletes,
+ * renames and directories always go through the backlog, which is replayed in order:
+ * uploads run in parallel, anything else waits for the uploads before it.
+ */
+public class MirrorTarget {
+
+    /**
+     * A change to replay on the mirror.
+     */
+    @FunctionalInterface
+    public interface Operation {
+        void applyTo(FTPManager target) throws FTPException;
+    }
+
+    private static final byte[] END = new byte[0];
+    private static final byte[] ABORT = new byte[0];
+
+    private final String name;
+    private final FTPManager target;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<Entry> backlog = new ArrayDeque<>();
+    private final Map<String, Entry> queuedUploads = new HashMap<>();
+    private final Set<Entry> inFlight = new HashSet<>();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private int runningUploads;
+    private boolean running;
+    private volatile boolean outOfSync;
+    private Thread drainer;
+    private int connectAttempts;
+
+    public MirrorTarget(String name, FTPManager target) {
+        this.name = name;
+        this.target = target;
+    }
+
+    /**
+     * Builds a mirror from {@code user:password@host[:port]}.
+     */
+    public static MirrorTarget fromSpec(String spec) {
+        int at = spec.lastIndexOf('@');
+        int colon = spec.indexOf(':');
+        if (at < 0 || colon < 0 || colon > at) {
+            throw new IllegalArgumentException("FTP mirror must look like user:password@host:port, got: " + spec);
+        }
+        String hostAndPort = spec.substring(at + 1);
+        int portSeparator = hostAndPort.lastIndexOf(':');
+        String host = portSeparator < 0 ? hostAndPort : hostAndPort.substring(0, portSeparator);
+        int port = portSeparator < 0 ? 21 : Integer.parseInt(hostAndPort.substring(portSeparator + 1));
+        String name = host + ":" + port;
+        return new MirrorTarget(name, new FTPManager(host, port, spec.substring(0, colon), spec.substring(colon + 1, at),
+                ConfigManager.FTP_MAX_SESSIONS, name));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public FTPManager getTarget() {
+        return target;
+    }
+
+    /**
+     * Starts replaying the backlog, connecting to the mirror in the background.
+     */
+    public void start() {
+        lock.lock();
+        try {
+            running = true;
+            if (drainer == null) {
+                target.addRecoveryListener(this::signal);
+                SyncMetrics.registerGauge(SyncMetrics.forTarget(SyncMetrics.MIRROR_LAG_MS, name), this::getLagMillis);
+                SyncMetrics.registerGauge(SyncMetrics.forTarget(SyncMetrics.MIRROR_BACKLOG, name), this::getBacklogSize);
+                SyncMetrics.registerGauge(SyncMetrics.forTarget(SyncMetrics.MIRROR_OUT_OF_SYNC, name), () -> outOfSync ? 1 : 0);
+                drainer = new Thread(this::drain, "mirror-" + name);
+                drainer.setDaemon(true);
+                drainer.start();
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pauses the mirror and closes its sessions. The backlog is kept for the next {@link #start}.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            running = false;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            target.disconnect();
+        } catch (FTPException e) {
+            LogsManager.logError("Error disconnecting from mirror {}: {}", name, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Waits until the backlog is replayed and nothing is in flight, for at most
+     * {@code timeoutMillis}. Returns whether the mirror caught up.
+     */
+    public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lockInterruptibly();
+        try {
+            while (!backlog.isEmpty() || !inFlight.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                changed.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a change, without ever blocking the caller. When the backlog is full the change
+     * is dropped and the mirror is marked out of sync until the next reconciliation.
+     */
+    public void submit(String path, boolean upload, Operation operation) {
+        lock.lock();
+        try {
+            if (backlog.size() >= ConfigManager.MIRROR_BACKLOG_CAPACITY && !(upload && queuedUploads.containsKey(path))) {
+                if (!outOfSync) {
+                    outOfSync = true;
+                    LogsManager.logWarn("Backlog of mirror {} is full, it is out of sync until the next reconciliation", name);
+                }
+                return;
+            }
+            enqueue(path, upload, operation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a change, waiting while the backlog is full.
+     */
+    public void put(String path, boolean upload, Operation operation) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (backlog.size() >= ConfigManager.MIRROR_BACKLOG_CAPACITY) {
+                changed.await();
+            }
+            enqueue(path, upload, operation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a reconciliation that is about to queue everything the mirror misses.
+     */
+    public void markReconciled() {
+        outOfSync = false;
+    }
+
+    public boolean isOutOfSync() {
+        return outOfSync;
+    }
+
+    /**
+     * Age of the oldest change the mirror has not applied yet, 0 when it is up to date.
+     */
+    public long getLagMillis() {
+        lock.lock();
+        try {
+            long oldest = Long.MAX_VALUE;
+            Entry head = backlog.peekFirst();
+            if (head != null) {
+                oldest = head.enqueuedAt;
+            }
+            for (Entry entry : inFlight) {
+                oldest = Math.min(oldest, entry.enqueuedAt);
+            }
+            return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBacklogSize() {
+        lock.lock();
+        try {
+            return backlog.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a live copy of an upload the primary is about to send, or returns null and
+     * queues the upload when the mirror is behind. {@code replay} produces the content
+     * again if the live copy has to be abandoned.
+     */
+    LiveUpload attach(String path, FTPManager.StreamWriter replay) {
+        LiveUpload upload;
+        lock.lock();
+        try {
+            if (!running || !backlog.isEmpty() || !target.isServerAvailable()) {
+                submit(path, true, t -> t.uploadStream(path, replay));
+                return null;
+            }
+            upload = new LiveUpload(new Entry(path, true, t -> t.uploadStream(path, replay)));
+            inFlight.add(upload.entry);
+            runningUploads++;
+        } finally {
+            lock.unlock();
+        }
+        Thread.ofVirtual().name("mirror-" + name + "-live").start(upload::run);
+        return upload;
+    }
+
+    /**
+     * Wraps the primary's data stream so every buffer written to it is also handed to the
+     * live copies. Buffers are copied once and shared by all targets.
+     */
+    static OutputStream replicate(OutputStream primary, List<LiveUpload> copies) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                byte[] buffer = Arrays.copyOfRange(b, off, off + len);
+                for (LiveUpload copy : copies) {
+                    copy.offer(buffer);
+                }
+                primary.write(buffer);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                primary.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                primary.close();
+            }
+        };
+    }
+
+    private void enqueue(String path, boolean upload, Operation operation) {
+        if (upload) {
+            Entry queued = queuedUploads.get(path);
+            if (queued != null) {
+                // Not started yet: the newer content replaces it in place
+                queued.operation = operation;
+                return;
+            }
+            Entry entry = new Entry(path, true, operation);
+            queuedUploads.put(path, entry);
+            backlog.addLast(entry);
+        } else {
+            // Uploads queued before a delete or rename must not absorb the ones that come after it
+            queuedUploads.clear();
+            backlog.addLast(new Entry(path, false, operation));
+        }
+        changed.signalAll();
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Entry entry = take();
+                if (entry.upload) {
+                    Thread.ofVirtual().name("mirror-" + name + "-upload").start(() -> apply(entry));
+                } else {
+                    apply(entry);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Entry take() throws InterruptedException {
+        while (true) {
+            boolean connect;
+            lock.lockInterruptibly();
+            try {
+                connect = running && !target.isConnected();
+                Entry head = backlog.peekFirst();
+                if (!connect && running && head != null && target.isServerAvailable()
+                        && (head.upload ? runningUploads < target.getMaxSessions() : runningUploads == 0)) {
+                    backlog.pollFirst();
+                    queuedUploads.remove(head.path, head);
+                    inFlight.add(head);
+                    if (head.upload) {
+                        runningUploads++;
+                    }
+                    changed.signalAll();
+                    return head;
+                }
+                if (!connect) {
+                    // Woken by new work, finished uploads and server recovery; the timeout covers the rest
+                    changed.await(1, TimeUnit.SECONDS);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (connect) {
+                connect();
+            }
+        }
+    }
+
+    private void connect() throws InterruptedException {
+        try {
+            target.connect();
+            connectAttempts = 0;
+        } catch (FTPException e) {
+            long delay = Math.min(ConfigManager.FTP_RECONNECT_MAX_DELAY_MS,
+                    ConfigManager.FTP_RECONNECT_BASE_DELAY_MS << Math.min(connectAttempts++, 20));
+            if (connectAttempts == 1) {
+                LogsManager.logWarn("Mirror {} is unreachable, changes are kept in its backlog: {}", name, e.getMessage());
+            }
+            Thread.sleep(delay);
+        }
+    }
+
+    private void apply(Entry entry) {
+        boolean retry = false;
+        try {
+            entry.operation.applyTo(target);
+        } catch (FTPException | RuntimeException e) {
+            // Only a mirror that went away gets the change again; a change it refuses would be refused forever
+            retry = !target.probeServer();
+            if (!retry) {
+                LogsManager.logError("Mirror {} could not apply the change to {}: {}", name, entry.path, e.getMessage(), e);
+                SyncMetrics.FAILURES.increment();
+            }
+        } finally {
+            finish(entry, retry);
+        }
+    }
+
+    private void finish(Entry entry, boolean retry) {
+        lock.lock();
+        try {
+            inFlight.remove(entry);
+            if (entry.upload) {
+                runningUploads--;
+            }
+            if (retry) {
+                // Back at the front, ahead of the changes that were queued after it
+                backlog.addFirst(entry);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Entry {
+        private final String path;
+        private final boolean upload;
+        private final long enqueuedAt = System.currentTimeMillis();
+        private Operation operation;
+
+        private Entry(String path, boolean upload, Operation operation) {
+            this.path = path;
+            this.upload = upload;
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * A copy of an upload in progress on the primary, fed buffer by buffer from its stream.
+     */
+    final class LiveUpload {
+        private final Entry entry;
+        private final LinkedBlockingQueue<byte[]> buffers = new LinkedBlockingQueue<>();
+        private volatile boolean detached;
+        private volatile boolean abandoned;
+
+        private LiveUpload(Entry entry) {
+            this.entry = entry;
+        }
+
+        private synchronized void offer(byte[] buffer) {
+            if (detached) {
+                return;
+            }
+            if (liveBytes.addAndGet(buffer.length) > ConfigManager.MIRROR_PIPE_BYTES) {
+                liveBytes.addAndGet(-buffer.length);
+                LogsManager.logDebug("Mirror {} fell behind on {}, replaying it from its backlog", name, entry.path);
+                cancel();
+                return;
+            }
+            buffers.add(buffer);
+        }
+
+        /**
+         * The primary upload is complete.
+         */
+        synchronized void end() {
+            if (!detached) {
+                buffers.add(END);
+            }
+        }
+
+        /**
+         * The primary upload failed; the caller sends the file again, mirrors included.
+         */
+        void abandon() {
+            abandoned = true;
+            cancel();
+        }
+
+        private synchronized void cancel() {
+            discard();
+            buffers.add(ABORT);
+        }
+
+        /**
+         * Stops taking buffers and gives back the room the queued ones took.
+         */
+        private synchronized void discard() {
+            detached = true;
+            List<byte[]> dropped = new ArrayList<>();
+            buffers.drainTo(dropped);
+            for (byte[] buffer : dropped) {
+                liveBytes.addAndGet(-buffer.length);
+            }
+        }
+
+        private void run() {
+            boolean requeue = false;
+            try {
+                target.uploadStream(entry.path, out -> {
+                    try {
+                        byte[] buffer;
+                        while ((buffer = buffers.take()) != END) {
+                            if (buffer == ABORT) {
+                                throw new IOException("Live copy to mirror " + name + " abandoned");
+                            }
+                            liveBytes.addAndGet(-buffer.length);
+                            out.write(buffer);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while copying to mirror " + name);
+                    }
+                });
+            } catch (FTPException e) {
+                requeue = !abandoned;
+                if (!detached) {
+                    LogsManager.logWarn("Live copy of {} to mirror {} failed, queued for later: {}", entry.path, name, e.getMessage());
+                }
+            } finally {
+                discard();
+                // Everything in the backlog came after this upload, so it goes back in front
+                finish(entry, requeue);
+            }
+        }
+    }
+}
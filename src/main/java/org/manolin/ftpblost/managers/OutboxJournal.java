@@ -0,0 +1,255 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import org.manolin.ftpblost.logs.LogsManager;
+
+/**
+ * Durable outbox of sync operations for one watched root. An operation is appended before it
+ * is attempted and acknowledged once it has reached the server, so whatever is still pending
+ * after a crash or an outage can be replayed. Only the latest operation per path is kept:
+ * replaying a file that changed ten times during an outage costs a single upload.
+ * <p>
+ * Records are handed to the OS as they are written, which survives a crash of the process;
+ * the file is forced to disk in the background every {@link ConfigManager#OUTBOX_SYNC_INTERVAL_MS}.
+ */
+public class OutboxJournal {
+
+    public enum Operation { UPSERT, DELETE }
+
+    public record Pending(long sequence, Operation operation) {
+    }
+
+    private static final int MAGIC = 0x46424F58; // "FBOX"
+    private static final int VERSION = 1;
+    private static final byte OP_UPSERT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte OP_ACK = 3;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_OVERHEAD = 1 + 8 + 2;
+    private static final int MAX_PATH_BYTES = 0xFFFF;
+    private static final long COMPACT_MIN_RECORDS = 10_000;
+
+    private final Path journalFile;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "outbox-syncer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel channel;
+    private long sequence;
+    private long logRecords;
+    private boolean dirty;
+
+    private OutboxJournal(Path journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Loads (or creates) the outbox that belongs to {@code root} inside the state directory.
+     */
+    public static OutboxJournal open(Path root) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(root.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+        Path stateDirectory = Path.of(ConfigManager.STATE_DIRECTORY);
+        Files.createDirectories(stateDirectory);
+        OutboxJournal journal = new OutboxJournal(stateDirectory.resolve("outbox-" + Long.toHexString(crc.getValue()) + ".log"));
+        journal.load();
+        return journal;
+    }
+
+    /**
+     * Records an operation about to be attempted and returns its sequence number, which
+     * {@link #ack} needs once the operation is done.
+     */
+    public synchronized long append(String path, Operation operation) throws IOException {
+        long seq = ++sequence;
+        write(channel, operation == Operation.DELETE ? OP_DELETE : OP_UPSERT, seq, path);
+        pending.put(path, new Pending(seq, operation));
+        return seq;
+    }
+
+    /**
+     * Marks the operation as done. A newer operation on the same path stays pending.
+     */
+    public synchronized void ack(String path, long seq) {
+        Pending current = pending.get(path);
+        if (current == null || current.sequence() > seq) {
+            return;
+        }
+        try {
+            write(channel, OP_ACK, seq, path);
+            pending.remove(path);
+            if (logRecords > COMPACT_MIN_RECORDS && logRecords > 2L * pending.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            // Left pending: at worst it is replayed once more
+            LogsManager.logError("Error writing outbox {}: {}", journalFile, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Snapshot of the operations not acknowledged yet, one per path.
+     */
+    public Map<String, Pending> pending() {
+        return new HashMap<>(pending);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public synchronized void close() {
+        syncer.shutdownNow();
+        try {
+            if (channel != null) {
+                channel.force(false);
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException e) {
+            LogsManager.logError("Error closing outbox: {}", e.getMessage(), e);
+        }
+    }
+
+    private void write(FileChannel out, byte op, long seq, String path) throws IOException {
+        if (out == null) {
+            throw new IOException("Outbox is closed: " + journalFile);
+        }
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        if (pathBytes.length > MAX_PATH_BYTES) {
+            throw new IOException("Path too long for the outbox: " + path);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + pathBytes.length);
+        record.put(op).putLong(seq).putShort((short) pathBytes.length).put(pathBytes).flip();
+        while (record.hasRemaining()) {
+            out.write(record);
+        }
+        if (out == channel) {
+            logRecords++;
+            dirty = true;
+        }
+    }
+
+    private synchronized void sync() {
+        if (channel == null || !dirty) {
+            return;
+        }
+        try {
+            channel.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            LogsManager.logError("Error syncing outbox {}: {}", journalFile, e.getMessage(), e);
+        }
+    }
+
+    private void load() throws IOException {
+        if (Files.exists(journalFile)) {
+            try (FileChannel in = FileChannel.open(journalFile, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                if (buffer.remaining() >= HEADER_SIZE) {
+                    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                        throw new IOException("Unrecognized outbox format: " + journalFile);
+                    }
+                    replay(buffer);
+                }
+            }
+        }
+        // Rewriting with only the pending operations also drops a torn tail left by a crash
+        compact();
+        if (!pending.isEmpty()) {
+            LogsManager.logInfo("Outbox holds {} operations from a previous run", pending.size());
+        }
+        long interval = ConfigManager.OUTBOX_SYNC_INTERVAL_MS;
+        syncer.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replays records up to the first one that is torn or not a record at all; the compaction
+     * that follows drops everything from there.
+     */
+    private void replay(MappedByteBuffer buffer) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        while (buffer.remaining() >= RECORD_OVERHEAD) {
+            int offset = buffer.position();
+            byte op = buffer.get();
+            long seq = buffer.getLong();
+            int pathLength = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() < pathLength) {
+                break;
+            }
+            if (op != OP_UPSERT && op != OP_DELETE && op != OP_ACK) {
+                LogsManager.logWarn("Outbox {} has an unknown record at offset {}; dropping it from there", journalFile, offset);
+                break;
+            }
+            String path;
+            try {
+                path = decoder.decode(buffer.slice(buffer.position(), pathLength)).toString();
+            } catch (CharacterCodingException e) {
+                LogsManager.logWarn("Outbox {} has an unreadable path at offset {}; dropping it from there", journalFile, offset);
+                break;
+            }
+            buffer.position(buffer.position() + pathLength);
+            if (op == OP_ACK) {
+                Pending current = pending.get(path);
+                if (current != null && current.sequence() <= seq) {
+                    pending.remove(path);
+                }
+            } else {
+                pending.put(path, new Pending(seq, op == OP_DELETE ? Operation.DELETE : Operation.UPSERT));
+            }
+            sequence = Math.max(sequence, seq);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the pending operations. The current channel keeps taking
+     * records until the rewrite is in place, so a failed one leaves the outbox usable.
+     */
+    private void compact() throws IOException {
+        Path tempFile = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+        long records = 0;
+        try (FileChannel out = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+                Pending op = entry.getValue();
+                write(out, op.operation() == Operation.DELETE ? OP_DELETE : OP_UPSERT, op.sequence(), entry.getKey());
+                records++;
+            }
+            out.force(false);
+        }
+        Files.move(tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel previous = channel;
+        channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logRecords = records;
+        dirty = false;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.manolin.ftpblost.managers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+/**
+ * Client-side view of the remote namespace, shared by all sessions of an {@link FTPManager}.
+ * Directories that are known to exist let uploads go straight to STOR without CWD/MKD
+ * round trips. Entries come from successful MKD, STOR and MLSD results and are dropped
+ * again on deletes or when the server contradicts them. File entries are only a shortcut
+ * for existence checks, so the least recently used ones are evicted past a fixed count.
+ */
+public class RemoteDirectoryCache {
+
+    public record RemoteFileInfo(long size, long lastModified) {
+    }
+
+    private final Set<String> directories = ConcurrentHashMap.newKeySet();
+    // Access ordered, guarded by its own lock
+    private final Map<String, RemoteFileInfo> files;
+
+    public RemoteDirectoryCache() {
+        this(ConfigManager.REMOTE_FILE_CACHE_MAX_ENTRIES);
+    }
+
+    public RemoteDirectoryCache(int maxFiles) {
+        directories.add("");
+        files = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RemoteFileInfo> eldest) {
+                return size() > maxFiles;
+            }
+        };
+    }
+
+    public boolean isKnownDirectory(String path) {
+        return directories.contains(normalize(path));
+    }
+
+    public void addDirectory(String path) {
+        String dir = normalize(path);
+        // Every ancestor of an existing directory exists too
+        while (!dir.isEmpty() && directories.add(dir)) {
+            int slash = dir.lastIndexOf('/');
+            dir = slash < 0 ? "" : dir.substring(0, slash);
+        }
+    }
+
+    public void invalidateDirectory(String path) {
+        String dir = normalize(path);
+        if (dir.isEmpty()) {
+            directories.clear();
+            synchronized (files) {
+                files.clear();
+            }
+            directories.add("");
+            return;
+        }
+        String prefix = dir + "/";
+        directories.removeIf(known -> known.equals(dir) || known.startsWith(prefix));
+        synchronized (files) {
+            files.keySet().removeIf(known -> known.startsWith(prefix));
+        }
+    }
+
+    public RemoteFileInfo getFile(String path) {
+        synchronized (files) {
+            return files.get(normalize(path));
+        }
+    }
+
+    public void putFile(String path, RemoteFileInfo info) {
+        String file = normalize(path);
+        synchronized (files) {
+            files.put(file, info);
+        }
+        addParentDirectory(file);
+    }
+
+    /**
+     * Records that a file was just stored at {@code path}, which proves its directory exists.
+     * Its new size is not known here, so any entry for the file itself is dropped.
+     */
+    public void storedFile(String path) {
+        String file = normalize(path);
+        removeFile(file);
+        addParentDirectory(file);
+    }
+
+    public void removeFile(String path) {
+        synchronized (files) {
+            files.remove(normalize(path));
+        }
+    }
+
+    public void renamePath(String from, String to) {
+        String source = normalize(from);
+        RemoteFileInfo info;
+        synchronized (files) {
+            info = files.remove(source);
+        }
+        if (info != null) {
+            putFile(to, info);
+        }
+        if (directories.contains(source)) {
+            invalidateDirectory(source);
+            addDirectory(to);
+        }
+    }
+
+    /**
+     * Records an MLSD listing of {@code path}: the directory itself, its subdirectories and files.
+     */
+    public void recordListing(String path, FTPFile[] entries) {
+        String dir = normalize(path);
+        addDirectory(dir);
+        for (FTPFile entry : entries) {
+            String name = entry.getName();
+            if (name == null || name.equals(".") || name.equals("..")) {
+                continue;
+            }
+            String child = dir.isEmpty() ? name : dir + "/" + name;
+            if (entry.isDirectory()) {
+                directories.add(child);
+            } else {
+                long lastModified = entry.getTimestamp() != null ? entry.getTimestamp().getTimeInMillis() : 0;
+                synchronized (files) {
+                    files.put(child, new RemoteFileInfo(entry.getSize(), lastModified));
+                }
+            }
+        }
+    }
+
+    private void addParentDirectory(String file) {
+        int slash = file.lastIndexOf('/');
+        if (slash > 0) {
+            addDirectory(file.substring(0, slash));
+        }
+    }
+
+    static String normalize(String path) {
+        String normalized = path.replace('\\', '/');
+        int start = 0;
+        int end = normalized.length();
+        while (start < end && normalized.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && normalized.charAt(end - 1) == '/') {
+            end--;
+        }
+        return normalized.substring(start, end);
+    }
+}
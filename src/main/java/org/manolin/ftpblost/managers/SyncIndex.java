@@ -0,0 +1,278 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+import org.manolin.ftpblost.logs.LogsManager;
+
+/**
+ * On-disk record of what has been synchronized for one watched root. The file is an
+ * append-only log of put/remove records replayed into memory on load; writes are queued
+ * and flushed in batches, and the log is compacted when it grows well past the live set.
+ */
+public class SyncIndex {
+
+    public enum Status { PENDING, SYNCED, FAILED }
+
+    public static final int FLAG_ENCRYPTED = 1;
+    public static final int FLAG_GZIP = 2;
+    public static final int FLAG_DEFLATE = 4;
+    public static final int FLAG_BUNDLED = 8;
+
+    public record Entry(long size, long lastModified, long hash, int flags, Status status) {
+
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        public Entry withStatus(Status status) {
+            return new Entry(size, lastModified, hash, flags, status);
+        }
+    }
+
+    private static final int MAGIC = 0x46424958; // "FBIX"
+    private static final int VERSION = 1;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int PUT_BODY_SIZE = 8 + 8 + 8 + 4 + 1;
+    private static final int MAX_PATH_BYTES = 0xFFFF;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final Status[] STATUSES = Status.values();
+
+    private final Path indexFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "sync-index-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private DataOutputStream log;
+    private long logRecords;
+    private boolean logBroken;
+
+    private SyncIndex(Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Loads (or creates) the index that belongs to {@code root} inside the state directory.
+     */
+    public static SyncIndex open(Path root) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(root.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+        Path stateDirectory = Path.of(ConfigManager.STATE_DIRECTORY);
+        Files.createDirectories(stateDirectory);
+        SyncIndex index = new SyncIndex(stateDirectory.resolve("index-" + Long.toHexString(crc.getValue()) + ".log"));
+        index.load();
+        return index;
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public void put(String path, Entry entry) {
+        // Map update and log record are queued together so the log replays in the same order
+        synchronized (pendingWrites) {
+            entries.put(path, entry);
+            pendingWrites.add(new PendingWrite(path, entry));
+        }
+    }
+
+    public void remove(String path) {
+        synchronized (pendingWrites) {
+            if (entries.remove(path) != null) {
+                pendingWrites.add(new PendingWrite(path, null));
+            }
+        }
+    }
+
+    public void forEach(BiConsumer<String, Entry> action) {
+        entries.forEach(action);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public synchronized void flush() {
+        if (log == null || pendingWrites.isEmpty()) {
+            return;
+        }
+        try {
+            if (logBroken) {
+                rewrite();
+                return;
+            }
+            PendingWrite write;
+            while ((write = pendingWrites.peek()) != null) {
+                writeRecord(log, write.path, write.entry);
+                pendingWrites.poll();
+                logRecords++;
+            }
+            log.flush();
+        } catch (IOException e) {
+            // Records stay queued; the failed write may have left part of one in the log, so the next flush rewrites it
+            logBroken = true;
+            LogsManager.logError("Error writing sync index {}: {}", indexFile, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replaces a log a failed write left in an unknown state with a compacted one. The map
+     * already holds every queued change, so those records are covered by the rewrite.
+     */
+    private void rewrite() throws IOException {
+        int covered;
+        synchronized (pendingWrites) {
+            covered = pendingWrites.size();
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            // The stream is being replaced either way
+        }
+        compact();
+        for (int i = 0; i < covered; i++) {
+            pendingWrites.poll();
+        }
+        logBroken = false;
+    }
+
+    public synchronized void close() {
+        flusher.shutdownNow();
+        flush();
+        try {
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        } catch (IOException e) {
+            LogsManager.logError("Error closing sync index: {}", e.getMessage(), e);
+        }
+    }
+
+    private void load() throws IOException {
+        long start = System.currentTimeMillis();
+        long validLength = 0;
+        if (Files.exists(indexFile)) {
+            // The whole log is mapped and parsed in place, which keeps loading millions of entries fast
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() >= HEADER_SIZE) {
+                    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                        throw new IOException("Unrecognized sync index format: " + indexFile);
+                    }
+                    validLength = HEADER_SIZE;
+                    validLength = replay(buffer, validLength);
+                }
+            }
+        }
+
+        if (validLength == 0 || logRecords > ConfigManager.INDEX_COMPACT_MIN_RECORDS && logRecords > 2L * entries.size()) {
+            compact();
+        } else {
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+                // Drop a partial tail record left behind by a crash mid-write
+                channel.truncate(validLength);
+            }
+            log = openLog();
+        }
+        LogsManager.logInfo("Loaded sync index with {} entries in {} ms", entries.size(), System.currentTimeMillis() - start);
+        long interval = ConfigManager.INDEX_FLUSH_INTERVAL_MS;
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private long replay(MappedByteBuffer buffer, long validLength) {
+        byte[] pathBytes = new byte[MAX_PATH_BYTES];
+        while (buffer.remaining() >= 3) {
+            byte op = buffer.get();
+            if (op != OP_PUT && op != OP_REMOVE) {
+                LogsManager.logWarn("Sync index {} has an unknown record at offset {}; dropping the log from there", indexFile, validLength);
+                break;
+            }
+            int pathLength = buffer.getShort() & 0xFFFF;
+            int bodyLength = op == OP_PUT ? PUT_BODY_SIZE : 0;
+            if (buffer.remaining() < pathLength + bodyLength) {
+                break;
+            }
+            buffer.get(pathBytes, 0, pathLength);
+            String path = new String(pathBytes, 0, pathLength, StandardCharsets.UTF_8);
+            if (op == OP_PUT) {
+                long size = buffer.getLong();
+                long lastModified = buffer.getLong();
+                long hash = buffer.getLong();
+                int flags = buffer.getInt();
+                int status = buffer.get() & 0xFF;
+                if (status >= STATUSES.length) {
+                    LogsManager.logWarn("Sync index {} has an invalid status at offset {}; dropping the log from there", indexFile, validLength);
+                    break;
+                }
+                entries.put(path, new Entry(size, lastModified, hash, flags, STATUSES[status]));
+            } else {
+                entries.remove(path);
+            }
+            logRecords++;
+            validLength = buffer.position();
+        }
+        return validLength;
+    }
+
+    private void compact() throws IOException {
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logRecords = entries.size();
+        log = openLog();
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        OutputStream out = Files.newOutputStream(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+    }
+
+    private static void writeRecord(DataOutputStream out, String path, Entry entry) throws IOException {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        if (pathBytes.length > MAX_PATH_BYTES) {
+            throw new IOException("Path too long for the sync index: " + path);
+        }
+        out.writeByte(entry == null ? OP_REMOVE : OP_PUT);
+        out.writeShort(pathBytes.length);
+        out.write(pathBytes);
+        if (entry != null) {
+            out.writeLong(entry.size());
+            out.writeLong(entry.lastModified());
+            out.writeLong(entry.hash());
+            out.writeInt(entry.flags());
+            out.writeByte(entry.status().ordinal());
+        }
+    }
+
+    private record PendingWrite(String path, Entry entry) {
+    }
+}
@@ -0,0 +1,34 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Charges every write against one or more {@link BandwidthLimiter}s before passing it on.
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+
+    private final BandwidthLimiter[] limiters;
+
+    public ThrottledOutputStream(OutputStream out, BandwidthLimiter... limiters) {
+        super(out);
+        this.limiters = limiters;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        for (BandwidthLimiter limiter : limiters) {
+            limiter.acquire(1);
+        }
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (BandwidthLimiter limiter : limiters) {
+            limiter.acquire(len);
+        }
+        out.write(b, off, len);
+    }
+}
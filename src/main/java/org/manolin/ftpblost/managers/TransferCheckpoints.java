@@ -0,0 +1,83 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.zip.CRC32C;
+
+import org.manolin.ftpblost.logs.LogsManager;
+
+/**
+ * Small on-disk records of uploads in progress. A checkpoint ties a remote partial file
+ * to the exact local file (path, size, mtime) it came from, so a restarted process only
+ * resumes the partial upload when the local file has not changed in between.
+ */
+public class TransferCheckpoints {
+
+    public record Checkpoint(String localPath, long size, long lastModified) {
+
+        public boolean matches(String localPath, long size, long lastModified) {
+            return this.localPath.equals(localPath) && this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    private final Path directory;
+
+    public TransferCheckpoints(Path directory) {
+        this.directory = directory;
+    }
+
+    public Checkpoint load(String remotePath) {
+        Path file = fileFor(remotePath);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+            if (!remotePath.equals(properties.getProperty("remotePath"))) {
+                return null;
+            }
+            return new Checkpoint(properties.getProperty("localPath"),
+                    Long.parseLong(properties.getProperty("size")),
+                    Long.parseLong(properties.getProperty("lastModified")));
+        } catch (IOException | RuntimeException e) {
+            LogsManager.logWarn("Ignoring unreadable transfer checkpoint {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    public void save(String remotePath, Checkpoint checkpoint) {
+        Properties properties = new Properties();
+        properties.setProperty("remotePath", remotePath);
+        properties.setProperty("localPath", checkpoint.localPath());
+        properties.setProperty("size", Long.toString(checkpoint.size()));
+        properties.setProperty("lastModified", Long.toString(checkpoint.lastModified()));
+        try {
+            Files.createDirectories(directory);
+            try (OutputStream out = Files.newOutputStream(fileFor(remotePath))) {
+                properties.store(out, "FTPBlost upload checkpoint");
+            }
+        } catch (IOException e) {
+            LogsManager.logWarn("Could not write transfer checkpoint for {}: {}", remotePath, e.getMessage());
+        }
+    }
+
+    public void delete(String remotePath) {
+        try {
+            Files.deleteIfExists(fileFor(remotePath));
+        } catch (IOException e) {
+            LogsManager.logWarn("Could not delete transfer checkpoint for {}: {}", remotePath, e.getMessage());
+        }
+    }
+
+    private Path fileFor(String remotePath) {
+        CRC32C crc = new CRC32C();
+        crc.update(remotePath.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve("upload-" + Long.toHexString(crc.getValue()) + ".properties");
+    }
+}
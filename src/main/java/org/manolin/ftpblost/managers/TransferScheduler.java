@@ -0,0 +1,285 @@
+package org.manolin.ftpblost.managers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.manolin.ftpblost.logs.LogsManager;
+
+/**
+ * Runs transfers in front of the FTP sessions.
+ * <p>
+ * Queued transfers are split into priority classes, so a config change does not wait
+ * behind a multi-gigabyte upload. Within a class, transfers are grouped by directory and
+ * served round-robin, so one busy directory cannot starve the others. Every few dispatches
+ * the lowest waiting class goes first, so bulk transfers always make progress. The queue is
+ * bounded: once it is full, {@link #submit} blocks, which pushes back on whoever produces work.
+ * <p>
+ * In {@link ExecutionMode#POOL} mode a fixed set of platform threads runs the transfers. In
+ * {@link ExecutionMode#VIRTUAL} mode every transfer gets its own virtual thread, and a
+ * semaphore caps how many run at once, so threads blocked on the network cost nothing.
+ */
+public class TransferScheduler {
+
+    public enum Priority { HIGH, NORMAL, BULK }
+
+    public enum ExecutionMode { POOL, VIRTUAL }
+
+    private static final int LOW_PRIORITY_TURN = 8;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    private final List<LinkedHashMap<String, ArrayDeque<FutureTask<Boolean>>>> queues = new ArrayList<>();
+    private final Semaphore permits;
+    private int queued;
+    private int running;
+    private int capacity;
+    private long dispatched;
+    private boolean open = true;
+
+    /**
+     * @param concurrency worker threads in POOL mode, transfers running at once in VIRTUAL mode
+     */
+    public TransferScheduler(String name, ExecutionMode mode, int concurrency, int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < Priority.values().length; i++) {
+            queues.add(new LinkedHashMap<>());
+        }
+        if (mode == ExecutionMode.VIRTUAL) {
+            this.permits = new Semaphore(concurrency);
+            Thread.ofVirtual().name(name + "-dispatcher").start(() -> dispatchVirtual(name));
+        } else {
+            this.permits = null;
+            for (int i = 0; i < concurrency; i++) {
+                Thread worker = new Thread(this::runWorker, name + "-" + i);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Small files go first and large ones last; a change the watcher just reported moves up one class.
+     */
+    public static Priority classify(long size, boolean recent) {
+        Priority priority = size <= ConfigManager.TRANSFER_SMALL_FILE_BYTES ? Priority.HIGH
+                : size >= ConfigManager.TRANSFER_LARGE_FILE_BYTES ? Priority.BULK
+                : Priority.NORMAL;
+        return recent && priority != Priority.HIGH ? Priority.values()[priority.ordinal() - 1] : priority;
+    }
+
+    /**
+     * Queues a transfer, blocking while the queue is full.
+     */
+    public Future<Boolean> submit(String group, Priority priority, Callable<Boolean> task) throws InterruptedException {
+        FutureTask<Boolean> future = new FutureTask<>(task);
+        lock.lockInterruptibly();
+        try {
+            while (open && queued >= capacity) {
+                notFull.await();
+            }
+            if (!open) {
+                throw new RejectedExecutionException("Transfer scheduler is shut down");
+            }
+            queues.get(priority.ordinal()).computeIfAbsent(group, g -> new ArrayDeque<>()).add(future);
+            queued++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    /**
+     * Blocks until the queue has room, without queuing anything.
+     */
+    public void awaitCapacity() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (open && queued >= capacity) {
+                notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setCapacity(int capacity) {
+        lock.lock();
+        try {
+            this.capacity = Math.max(1, capacity);
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        lock.lock();
+        try {
+            return capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until nothing is queued or running, for at most {@code timeoutMillis}. Returns
+     * whether the scheduler went idle.
+     */
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lockInterruptibly();
+        try {
+            while (queued > 0 || running > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                idle.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers; transfers still queued are cancelled.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            open = false;
+            for (LinkedHashMap<String, ArrayDeque<FutureTask<Boolean>>> queue : queues) {
+                for (ArrayDeque<FutureTask<Boolean>> tasks : queue.values()) {
+                    tasks.forEach(task -> task.cancel(false));
+                }
+                queue.clear();
+            }
+            queued = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            idle.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runWorker() {
+        try {
+            FutureTask<Boolean> task;
+            while ((task = take()) != null) {
+                try {
+                    task.run();
+                } finally {
+                    finished();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LogsManager.logError("Transfer worker stopped unexpectedly: {}", e.getMessage(), e);
+        }
+    }
+
+    private void dispatchVirtual(String name) {
+        Thread.Builder builder = Thread.ofVirtual().name(name + "-", 0);
+        try {
+            while (true) {
+                // Take a permit first, so the next task is picked by priority only once it can start
+                permits.acquire();
+                FutureTask<Boolean> task = take();
+                if (task == null) {
+                    return;
+                }
+                builder.start(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        finished();
+                        permits.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private FutureTask<Boolean> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                if (!open) {
+                    return null;
+                }
+                if (queued > 0) {
+                    boolean lowFirst = ++dispatched % LOW_PRIORITY_TURN == 0;
+                    for (int i = 0; i < queues.size(); i++) {
+                        FutureTask<Boolean> task = poll(queues.get(lowFirst ? queues.size() - 1 - i : i));
+                        if (task != null) {
+                            queued--;
+                            running++;
+                            notFull.signal();
+                            return task;
+                        }
+                    }
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finished() {
+        lock.lock();
+        try {
+            if (--running == 0 && queued == 0) {
+                idle.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next task of the first group and moves that group to the back of the line.
+     */
+    private static FutureTask<Boolean> poll(LinkedHashMap<String, ArrayDeque<FutureTask<Boolean>>> queue) {
+        Iterator<Map.Entry<String, ArrayDeque<FutureTask<Boolean>>>> groups = queue.entrySet().iterator();
+        if (!groups.hasNext()) {
+            return null;
+        }
+        Map.Entry<String, ArrayDeque<FutureTask<Boolean>>> group = groups.next();
+        groups.remove();
+        FutureTask<Boolean> task = group.getValue().poll();
+        if (!group.getValue().isEmpty()) {
+            queue.put(group.getKey(), group.getValue());
+        }
+        return task;
+    }
+}
@@ -0,0 +1,136 @@
+package org.manolin.ftpblost.managers;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.SocketFactory;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPCmd;
+
+/**
+ * FTPClient whose upload data connections are backed by a {@link SocketChannel}, so a file
+ * can go from the page cache to the socket with {@link FileChannel#transferTo} (sendfile on
+ * Linux) instead of being copied through heap buffers. Control connections and downloads
+ * are opened as usual.
+ */
+public class ZeroCopyFTPClient extends FTPClient {
+
+    private static final SocketFactory CHANNEL_SOCKETS = new SocketFactory() {
+        @Override
+        public Socket createSocket() throws IOException {
+            return SocketChannel.open().socket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return connect(createSocket(), null, new InetSocketAddress(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return connect(createSocket(), null, new InetSocketAddress(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return connect(createSocket(), new InetSocketAddress(localHost, localPort), new InetSocketAddress(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port, InetAddress localHost, int localPort) throws IOException {
+            return connect(createSocket(), new InetSocketAddress(localHost, localPort), new InetSocketAddress(host, port));
+        }
+
+        private Socket connect(Socket socket, InetSocketAddress local, InetSocketAddress remote) throws IOException {
+            if (local != null) {
+                socket.bind(local);
+            }
+            socket.connect(remote);
+            return socket;
+        }
+    };
+
+    // Only needed where transferTo cannot reach the socket, so a handful is plenty
+    private static final BlockingQueue<ByteBuffer> BUFFERS = new ArrayBlockingQueue<>(Math.max(1, ConfigManager.FTP_MAX_SESSIONS));
+
+    /**
+     * Sends STOR, or APPE when {@code append}, and returns the data connection, or null when
+     * the server refused it. Closing the socket ends the upload; the caller then reads the
+     * reply with {@link #completePendingCommand()}. In passive mode the socket has a channel;
+     * active mode connections come from the server and have none.
+     */
+    public Socket openUploadSocket(String remotePath, boolean append) throws IOException {
+        SocketFactory previous = _socketFactory_;
+        _socketFactory_ = CHANNEL_SOCKETS;
+        try {
+            return _openDataConnection_(append ? FTPCmd.APPE : FTPCmd.STOR, remotePath);
+        } finally {
+            _socketFactory_ = previous;
+        }
+    }
+
+    /**
+     * Writes {@code file} from {@code position} to its end into {@code socket}, at most
+     * {@code chunkSize} bytes at a time. Every chunk is charged to {@code limiters} before it
+     * goes out and counted in {@code counter} once it has.
+     */
+    public static void send(FileChannel file, long position, SocketChannel socket, int chunkSize,
+                            LongAdder counter, BandwidthLimiter... limiters) throws IOException {
+        long end = file.size();
+        ByteBuffer buffer = null;
+        try {
+            while (position < end) {
+                int chunk = (int) Math.min(chunkSize, end - position);
+                for (BandwidthLimiter limiter : limiters) {
+                    limiter.acquire(chunk);
+                }
+                long done = 0;
+                while (done < chunk) {
+                    long sent = buffer == null ? file.transferTo(position + done, chunk - done, socket) : 0;
+                    if (sent <= 0) {
+                        // No progress from transferTo: copy through a direct buffer from here on
+                        if (buffer == null) {
+                            buffer = takeBuffer();
+                        }
+                        sent = copy(buffer, file, position + done, chunk - done, socket);
+                    }
+                    done += sent;
+                }
+                position += chunk;
+                counter.add(chunk);
+            }
+        } finally {
+            if (buffer != null) {
+                BUFFERS.offer(buffer);
+            }
+        }
+    }
+
+    private static int copy(ByteBuffer buffer, FileChannel file, long position, long length, SocketChannel socket) throws IOException {
+        buffer.clear().limit((int) Math.min(buffer.capacity(), length));
+        int read = file.read(buffer, position);
+        if (read < 0) {
+            throw new EOFException("File shrank while it was being uploaded");
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+        return read;
+    }
+
+    private static ByteBuffer takeBuffer() {
+        ByteBuffer buffer = BUFFERS.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(ConfigManager.ZERO_COPY_BUFFER_BYTES);
+    }
+}
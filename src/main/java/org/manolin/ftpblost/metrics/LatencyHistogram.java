@@ -0,0 +1,85 @@
+package org.manolin.ftpblost.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution with power-of-two microsecond buckets. Recording is a couple of
+ * striped-counter increments, with no locks or allocation; percentiles are reported as the
+ * upper bound of the bucket they fall in, so they are accurate to within a factor of two.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final int BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Long::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1_000);
+        // Bucket i holds values below 2^i microseconds
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        count.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    public long getTotalMicros() {
+        return totalMicros.sum();
+    }
+
+    public long percentileMicros(double quantile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) {
+                return Math.min(i == 0 ? 0 : 1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getMeanMicros() {
+        long total = count.sum();
+        return total == 0 ? 0 : totalMicros.sum() / total;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return percentileMicros(0.50);
+    }
+
+    @Override
+    public long getP90Micros() {
+        return percentileMicros(0.90);
+    }
+
+    @Override
+    public long getP99Micros() {
+        return percentileMicros(0.99);
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+}
@@ -0,0 +1,16 @@
+package org.manolin.ftpblost.metrics;
+
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    long getMeanMicros();
+
+    long getP50Micros();
+
+    long getP90Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+}
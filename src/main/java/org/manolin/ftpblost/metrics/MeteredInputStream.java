@@ -0,0 +1,37 @@
+package org.manolin.ftpblost.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adds every byte read to a counter.
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+    private final LongAdder counter;
+
+    public MeteredInputStream(InputStream in, LongAdder counter) {
+        super(in);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            counter.increment();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0) {
+            counter.add(read);
+        }
+        return read;
+    }
+}
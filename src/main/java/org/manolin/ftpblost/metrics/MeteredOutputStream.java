@@ -0,0 +1,31 @@
+package org.manolin.ftpblost.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adds every byte written to a counter.
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+    private final LongAdder counter;
+
+    public MeteredOutputStream(OutputStream out, LongAdder counter) {
+        super(out);
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        counter.increment();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        counter.add(len);
+    }
+}
@@ -0,0 +1,136 @@
+package org.manolin.ftpblost.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.managers.ConfigManager;
+
+/**
+ * Publishes {@link SyncMetrics} as JMX MBeans and, when a port is configured, as plain text
+ * on {@code http://127.0.0.1:<port>/metrics}.
+ */
+public final class MetricsExporter {
+
+    private static final String DOMAIN = "org.manolin.ftpblost";
+    private static ScheduledExecutorService sampler;
+    private static HttpServer httpServer;
+
+    private MetricsExporter() {
+    }
+
+    public static synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+        registerMBeans();
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(SyncMetrics::sampleRates, ConfigManager.METRICS_RATE_INTERVAL_MS,
+                ConfigManager.METRICS_RATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (ConfigManager.METRICS_HTTP_PORT > 0) {
+            startHttpServer(ConfigManager.METRICS_HTTP_PORT);
+        }
+    }
+
+    public static synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+    }
+
+    private static void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new SyncMetrics(), new ObjectName(DOMAIN + ":type=SyncMetrics"));
+            for (SyncMetrics.Operation operation : SyncMetrics.Operation.values()) {
+                server.registerMBean(SyncMetrics.latency(operation),
+                        new ObjectName(DOMAIN + ":type=Latency,name=" + operation.name()));
+            }
+        } catch (JMException e) {
+            LogsManager.logWarn("Could not register metrics MBeans: {}", e.getMessage());
+        }
+    }
+
+    private static void startHttpServer(int port) {
+        try {
+            // Loopback only: the endpoint has no authentication
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            httpServer.createContext("/metrics", MetricsExporter::handle);
+            httpServer.start();
+            LogsManager.logInfo("Metrics available on http://127.0.0.1:{}/metrics", port);
+        } catch (IOException e) {
+            LogsManager.logWarn("Could not start the metrics endpoint on port {}: {}", port, e.getMessage());
+        }
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Metrics in the Prometheus text exposition format.
+     */
+    public static String render() {
+        StringBuilder text = new StringBuilder();
+        counter(text, "events_received_total", SyncMetrics.EVENTS_RECEIVED.sum());
+        counter(text, "events_coalesced_total", SyncMetrics.EVENTS_COALESCED.sum());
+        counter(text, "files_uploaded_total", SyncMetrics.FILES_UPLOADED.sum());
+        counter(text, "uploaded_bytes_total", SyncMetrics.BYTES_UPLOADED.sum());
+        counter(text, "downloaded_bytes_total", SyncMetrics.BYTES_DOWNLOADED.sum());
+        counter(text, "retries_total", SyncMetrics.RETRIES.sum());
+        counter(text, "failures_total", SyncMetrics.FAILURES.sum());
+        SyncMetrics metrics = new SyncMetrics();
+        text.append(String.format(Locale.ROOT, "ftpblost_upload_bytes_per_second %.1f%n", metrics.getUploadBytesPerSecond()));
+        text.append(String.format(Locale.ROOT, "ftpblost_download_bytes_per_second %.1f%n", metrics.getDownloadBytesPerSecond()));
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(SyncMetrics.gauges()).entrySet()) {
+            text.append("ftpblost_").append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        for (SyncMetrics.Operation operation : SyncMetrics.Operation.values()) {
+            LatencyHistogram histogram = SyncMetrics.latency(operation);
+            String op = operation.name().toLowerCase(Locale.ROOT);
+            for (double quantile : new double[]{0.5, 0.9, 0.99, 1.0}) {
+                text.append("ftpblost_latency_micros{op=\"").append(op).append("\",quantile=\"").append(quantile)
+                        .append("\"} ").append(histogram.percentileMicros(quantile)).append('\n');
+            }
+            text.append("ftpblost_latency_micros_count{op=\"").append(op).append("\"} ").append(histogram.getCount()).append('\n');
+            text.append("ftpblost_latency_micros_sum{op=\"").append(op).append("\"} ").append(histogram.getTotalMicros()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, long value) {
+        text.append("ftpblost_").append(name).append(' ').append(value).append('\n');
+    }
+}
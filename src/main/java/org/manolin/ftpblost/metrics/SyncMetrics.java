@@ -0,0 +1,166 @@
+package org.manolin.ftpblost.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latency histograms for the sync pipeline. Hot paths only touch striped
+ * counters ({@link LongAdder}); gauges such as queue depth are read from their owners when
+ * the metrics are exported, and rates are derived from the counters by a periodic sampler.
+ */
+public final class SyncMetrics implements SyncMetricsMBean {
+
+    public enum Operation { CONNECT, MKD, STOR, DELE, RENAME, ENCRYPT }
+
+    public static final String QUEUE_DEPTH = "transfer_queue_depth";
+    public static final String ACTIVE_SESSIONS = "ftp_active_sessions";
+    public static final String MIRROR_LAG_MS = "mirror_lag_ms";
+    public static final String MIRROR_BACKLOG = "mirror_backlog";
+    public static final String MIRROR_OUT_OF_SYNC = "mirror_out_of_sync";
+
+    public static final LongAdder EVENTS_RECEIVED = new LongAdder();
+    public static final LongAdder EVENTS_COALESCED = new LongAdder();
+    public static final LongAdder FILES_UPLOADED = new LongAdder();
+    public static final LongAdder BYTES_UPLOADED = new LongAdder();
+    public static final LongAdder BYTES_DOWNLOADED = new LongAdder();
+    public static final LongAdder RETRIES = new LongAdder();
+    public static final LongAdder FAILURES = new LongAdder();
+
+    private static final LatencyHistogram[] LATENCIES = new LatencyHistogram[Operation.values().length];
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    private static long lastSampleNanos = System.nanoTime();
+    private static long lastBytesUploaded;
+    private static long lastBytesDownloaded;
+    private static volatile double uploadRate;
+    private static volatile double downloadRate;
+
+    static {
+        for (Operation operation : Operation.values()) {
+            LATENCIES[operation.ordinal()] = new LatencyHistogram();
+        }
+    }
+
+    public static LatencyHistogram latency(Operation operation) {
+        return LATENCIES[operation.ordinal()];
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, a value taken from {@link System#nanoTime()}.
+     */
+    public static void recordSince(Operation operation, long startNanos) {
+        LATENCIES[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public static void registerGauge(String name, LongSupplier gauge) {
+        GAUGES.put(name, gauge);
+    }
+
+    /**
+     * Name of a gauge kept once per FTP target, e.g. {@code mirror_lag_ms{target="host:21"}}.
+     */
+    public static String forTarget(String gauge, String target) {
+        return gauge + "{target=\"" + target + "\"}";
+    }
+
+    /**
+     * Name of a gauge kept once per watched root, e.g. {@code transfer_queue_depth{root="photos"}}.
+     */
+    public static String forRoot(String gauge, String root) {
+        return gauge + "{root=\"" + root + "\"}";
+    }
+
+    /**
+     * Removes the gauge, unless another one has been registered under its name since.
+     */
+    public static void unregisterGauge(String name, LongSupplier gauge) {
+        GAUGES.remove(name, gauge);
+    }
+
+    public static Map<String, LongSupplier> gauges() {
+        return GAUGES;
+    }
+
+    public static long gauge(String name) {
+        LongSupplier gauge = GAUGES.get(name);
+        return gauge != null ? gauge.getAsLong() : 0;
+    }
+
+    static synchronized void sampleRates() {
+        long now = System.nanoTime();
+        long uploaded = BYTES_UPLOADED.sum();
+        long downloaded = BYTES_DOWNLOADED.sum();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        if (seconds > 0) {
+            uploadRate = (uploaded - lastBytesUploaded) / seconds;
+            downloadRate = (downloaded - lastBytesDownloaded) / seconds;
+        }
+        lastSampleNanos = now;
+        lastBytesUploaded = uploaded;
+        lastBytesDownloaded = downloaded;
+    }
+
+    @Override
+    public long getEventsReceived() {
+        return EVENTS_RECEIVED.sum();
+    }
+
+    @Override
+    public long getEventsCoalesced() {
+        return EVENTS_COALESCED.sum();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        // Summed over every root, each of which keeps its own queue
+        long depth = 0;
+        for (Map.Entry<String, LongSupplier> gauge : GAUGES.entrySet()) {
+            if (gauge.getKey().equals(QUEUE_DEPTH) || gauge.getKey().startsWith(QUEUE_DEPTH + "{root=")) {
+                depth += gauge.getValue().getAsLong();
+            }
+        }
+        return depth;
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return gauge(ACTIVE_SESSIONS);
+    }
+
+    @Override
+    public long getFilesUploaded() {
+        return FILES_UPLOADED.sum();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return BYTES_UPLOADED.sum();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return BYTES_DOWNLOADED.sum();
+    }
+
+    @Override
+    public double getUploadBytesPerSecond() {
+        return uploadRate;
+    }
+
+    @Override
+    public double getDownloadBytesPerSecond() {
+        return downloadRate;
+    }
+
+    @Override
+    public long getRetries() {
+        return RETRIES.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return FAILURES.sum();
+    }
+}
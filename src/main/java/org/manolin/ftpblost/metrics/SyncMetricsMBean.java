@@ -0,0 +1,26 @@
+package org.manolin.ftpblost.metrics;
+
+public interface SyncMetricsMBean {
+
+    long getEventsReceived();
+
+    long getEventsCoalesced();
+
+    long getQueueDepth();
+
+    long getActiveSessions();
+
+    long getFilesUploaded();
+
+    long getBytesUploaded();
+
+    long getBytesDownloaded();
+
+    double getUploadBytesPerSecond();
+
+    double getDownloadBytesPerSecond();
+
+    long getRetries();
+
+    long getFailures();
+}
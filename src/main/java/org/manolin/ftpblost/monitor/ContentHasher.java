@@ -0,0 +1,80 @@
+package org.manolin.ftpblost.monitor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+import org.manolin.ftpblost.managers.ConfigManager;
+
+/**
+ * Streaming CRC32C of a file's content, the same checksum the upload path computes on
+ * the fly. CRC32C is hardware accelerated on current CPUs, so hashing runs at memory
+ * speed; large files are mapped window by window instead of being copied onto the heap.
+ * <p>
+ * A hash is only ever compared between files of the same size. Two different contents of
+ * equal size still share a 32-bit CRC about once in four billion; such an edit would be
+ * taken for a touch and not uploaded, which is accepted in exchange for not uploading every
+ * file whose mtime changed without its content.
+ */
+public final class ContentHasher {
+
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    // Hashing runs on short-lived virtual threads, so buffers are pooled rather than per thread
+    private static final BlockingQueue<ByteBuffer> BUFFERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final AtomicInteger DIRECT_BUFFERS = new AtomicInteger();
+
+    private ContentHasher() {
+    }
+
+    public static long hash(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= ConfigManager.HASH_MMAP_THRESHOLD_BYTES) {
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+                    crc.update(window);
+                }
+            } else {
+                ByteBuffer buffer = takeBuffer();
+                try {
+                    buffer.clear();
+                    while (channel.read(buffer) != -1) {
+                        buffer.flip();
+                        crc.update(buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    if (buffer.isDirect()) {
+                        BUFFERS.offer(buffer);
+                    }
+                }
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * A pooled direct buffer, of which at most one per core is ever allocated; past that, a
+     * heap buffer the caller simply drops.
+     */
+    private static ByteBuffer takeBuffer() {
+        ByteBuffer buffer = BUFFERS.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (DIRECT_BUFFERS.incrementAndGet() <= POOL_SIZE) {
+            return ByteBuffer.allocateDirect(ConfigManager.STREAM_BUFFER_SIZE);
+        }
+        DIRECT_BUFFERS.decrementAndGet();
+        return ByteBuffer.allocate(ConfigManager.STREAM_BUFFER_SIZE);
+    }
+}
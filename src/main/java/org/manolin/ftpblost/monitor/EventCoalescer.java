@@ -0,0 +1,128 @@
+package org.manolin.ftpblost.monitor;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.manolin.ftpblost.logs.LogsManager;
+import org.manolin.ftpblost.metrics.SyncMetrics;
+
+/**
+ * Collapses bursts of watch events per path into a single change. A change is released
+ * once the path has been quiet for the quiet period, or once the max delay since the
+ * first event of the burst has passed, whichever comes first.
+ */
+public class EventCoalescer {
+
+    public enum ChangeType { UPSERT, DELETE }
+
+    @FunctionalInterface
+    public interface ChangeHandler {
+        void onChange(Path path, ChangeType type);
+    }
+
+    private final long quietMillis;
+    private final long maxDelayMillis;
+    private final ChangeHandler handler;
+    private final ConcurrentHashMap<Path, PendingChange> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "event-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public EventCoalescer(long quietMillis, long maxDelayMillis, ChangeHandler handler) {
+        this.quietMillis = quietMillis;
+        this.maxDelayMillis = Math.max(quietMillis, maxDelayMillis);
+        this.handler = handler;
+    }
+
+    public void record(Path path, WatchEvent.Kind<?> kind) {
+        long now = System.currentTimeMillis();
+        SyncMetrics.EVENTS_RECEIVED.increment();
+        pending.compute(path, (p, change) -> {
+            if (change == null) {
+                change = new PendingChange(now, kind == StandardWatchEventKinds.ENTRY_CREATE);
+                change.type = kind == StandardWatchEventKinds.ENTRY_DELETE ? ChangeType.DELETE : ChangeType.UPSERT;
+                schedule(p, quietMillis);
+                return change;
+            }
+            change.lastSeen = now;
+            change.merged++;
+            SyncMetrics.EVENTS_COALESCED.increment();
+            if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                if (change.createdInBurst) {
+                    // Created and deleted within the same burst: nothing ever has to reach the server
+                    LogsManager.logDebug("Create/delete pair cancelled for {}", p);
+                    return null;
+                }
+                change.type = ChangeType.DELETE;
+            } else {
+                change.type = ChangeType.UPSERT;
+            }
+            return change;
+        });
+    }
+
+    /**
+     * Drops the change pending for {@code path}. Returns false if there was none, for
+     * example because it has already been handed on.
+     */
+    public boolean cancel(Path path) {
+        return pending.remove(path) != null;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void schedule(Path path, long delayMillis) {
+        timer.schedule(() -> flush(path), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(Path path) {
+        long now = System.currentTimeMillis();
+        PendingChange[] due = new PendingChange[1];
+        pending.computeIfPresent(path, (p, change) -> {
+            long dueAt = Math.min(change.lastSeen + quietMillis, change.firstSeen + maxDelayMillis);
+            if (now < dueAt) {
+                schedule(p, dueAt - now);
+                return change;
+            }
+            due[0] = change;
+            return null;
+        });
+        if (due[0] != null) {
+            if (due[0].merged > 0) {
+                LogsManager.logDebug("Coalesced {} events for {}", due[0].merged + 1, path);
+            }
+            try {
+                handler.onChange(path, due[0].type);
+            } catch (RuntimeException e) {
+                LogsManager.logError("Error dispatching change for {}: {}", path, e.getMessage(), e);
+            }
+        }
+    }
+
+    private static final class PendingChange {
+        private final long firstSeen;
+        private final boolean createdInBurst;
+        private long lastSeen;
+        private int merged;
+        private ChangeType type;
+
+        private PendingChange(long firstSeen, boolean createdInBurst) {
+            this.firstSeen = firstSeen;
+            this.lastSeen = firstSeen;
+            this.createdInBurst = createdInBurst;
+        }
+    }
+}
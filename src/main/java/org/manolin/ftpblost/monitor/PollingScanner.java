@@ -0,0 +1,350 @@
+package org.manolin.ftpblost.monitor;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.manolin.ftpblost.logs.LogsManager;
+
+/**
+ * Finds changes by scanning the tree periodically, for filesystems where the WatchService
+ * stays silent: NFS and SMB mounts, and some container bind mounts.
+ * <p>
+ * Each directory keeps a compact snapshot: its file names sorted, with sizes and mtimes in
+ * primitive arrays. Unchanged entries are compared in place, so a scan that finds nothing
+ * allocates little beyond what listing the directory takes. Directories are scanned in
+ * parallel, each on its own schedule. A directory where something changed is checked again
+ * after the minimum interval; a quiet one backs off step by step to the maximum.
+ */
+public class PollingScanner {
+
+    public enum ScanMode { WATCH, POLL, AUTO }
+
+    @FunctionalInterface
+    public interface ChangeListener {
+        void onChange(Path path, WatchEvent.Kind<?> kind);
+    }
+
+    // Filesystem types whose changes are not reported to a WatchService
+    private static final Set<String> POLLED_FILESYSTEMS = Set.of("nfs", "nfs4", "cifs", "smbfs", "smb3", "9p",
+            "fuse.sshfs", "fuse.grpcfuse", "fakeowner", "virtiofs", "vboxsf", "afs");
+    private static final String[] NO_NAMES = new String[0];
+    private static final long[] NO_VALUES = new long[0];
+    private static final ThreadLocal<boolean[]> SEEN = ThreadLocal.withInitial(() -> new boolean[1024]);
+
+    private final Path root;
+    private final ChangeListener listener;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final ForkJoinPool pool;
+    private final ConcurrentHashMap<Path, DirectoryState> directories = new ConcurrentHashMap<>();
+
+    public PollingScanner(Path root, int parallelism, long minIntervalMillis, long maxIntervalMillis, ChangeListener listener) {
+        this.root = root;
+        this.listener = listener;
+        this.minIntervalMillis = Math.max(1, minIntervalMillis);
+        this.maxIntervalMillis = Math.max(this.minIntervalMillis, maxIntervalMillis);
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    /**
+     * Whether {@code root} should be polled: always or never when the mode says so, and in
+     * AUTO mode when it lives on a filesystem known not to deliver watch events.
+     */
+    public static boolean shouldPoll(Path root, ScanMode mode) {
+        if (mode != ScanMode.AUTO) {
+            return mode == ScanMode.POLL;
+        }
+        try {
+            String type = Files.getFileStore(root).type().toLowerCase(Locale.ROOT);
+            if (POLLED_FILESYSTEMS.contains(type)) {
+                LogsManager.logInfo("{} is on a {} filesystem, polling it for changes", root, type);
+                return true;
+            }
+        } catch (IOException e) {
+            LogsManager.logWarn("Could not tell the filesystem type of {}, watching it: {}", root, e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Takes the first snapshot of the tree, reporting every regular file to {@code callback}
+     * instead of as a change. Returns the number of directories found.
+     */
+    public int baseline(TreeWalker.FileCallback callback) {
+        DirectoryState state = new DirectoryState(root, minIntervalMillis);
+        directories.put(root, state);
+        pool.invoke(new ScanTask(state, callback));
+        return directories.size();
+    }
+
+    /**
+     * Scans the directories that are due and returns how long to wait, in milliseconds,
+     * until the next one is.
+     */
+    public long scanDue() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long nextDue = now + maxIntervalMillis;
+        List<ScanTask> due = new ArrayList<>();
+        for (DirectoryState state : directories.values()) {
+            if (state.nextScan <= now) {
+                due.add(new ScanTask(state, null));
+            } else {
+                nextDue = Math.min(nextDue, state.nextScan);
+            }
+        }
+        if (!due.isEmpty()) {
+            long start = System.nanoTime();
+            try {
+                pool.submit(() -> ForkJoinTask.invokeAll(due)).get();
+            } catch (ExecutionException e) {
+                LogsManager.logError("Polling scan failed: {}", e.getCause().getMessage(), e.getCause());
+            }
+            LogsManager.logDebug("Polled {} of {} directories in {} ms", due.size(), directories.size(), System.nanoTime() - start / 1_000_000);
+            nextDue = Math.min(nextDue, System.currentTimeMillis() + minIntervalMillis);
+        }
+        return Math.max(10, nextDue - System.currentTimeMillis());
+    }
+
+    public int getDirectoryCount() {
+        return directories.size();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Drops the snapshots of {@code dir} and everything below it, reporting their files as deleted.
+     */
+    private void removeTree(Path dir) {
+        directories.entrySet().removeIf(entry -> {
+            if (!entry.getKey().startsWith(dir)) {
+                return false;
+            }
+            DirectoryState state = entry.getValue();
+            synchronized (state) {
+                state.removed = true;
+                for (String name : state.names) {
+                    listener.onChange(state.dir.resolve(name), StandardWatchEventKinds.ENTRY_DELETE);
+                }
+            }
+            return true;
+        });
+    }
+
+    private final class ScanTask extends RecursiveAction {
+        private final DirectoryState state;
+        private final TreeWalker.FileCallback baselineCallback;
+
+        private ScanTask(DirectoryState state, TreeWalker.FileCallback baselineCallback) {
+            this.state = state;
+            this.baselineCallback = baselineCallback;
+        }
+
+        @Override
+        protected void compute() {
+            List<Path> newDirectories = new ArrayList<>();
+            List<Path> goneDirectories = new ArrayList<>();
+            int changes;
+            synchronized (state) {
+                if (state.removed) {
+                    return;
+                }
+                changes = scan(state, baselineCallback, newDirectories, goneDirectories);
+            }
+            long now = System.currentTimeMillis();
+            state.interval = changes > 0 ? minIntervalMillis : Math.min(maxIntervalMillis, state.interval * 2);
+            state.nextScan = now + state.interval;
+
+            for (Path dir : goneDirectories) {
+                removeTree(dir);
+            }
+            // New directories are scanned right away, their files are all new
+            List<ScanTask> subTasks = new ArrayList<>(newDirectories.size());
+            for (Path dir : newDirectories) {
+                DirectoryState child = new DirectoryState(dir, minIntervalMillis);
+                if (directories.putIfAbsent(dir, child) == null) {
+                    subTasks.add(new ScanTask(child, baselineCallback));
+                }
+            }
+            invokeAll(subTasks);
+        }
+    }
+
+    /**
+     * Lists one directory and compares it with its snapshot. Returns the number of changes.
+     */
+    private int scan(DirectoryState state, TreeWalker.FileCallback baselineCallback,
+                     List<Path> newDirectories, List<Path> goneDirectories) {
+        String[] names = state.names;
+        boolean[] seen = SEEN.get();
+        if (seen.length < names.length) {
+            seen = new boolean[Math.max(names.length, seen.length * 2)];
+            SEEN.set(seen);
+        }
+        Arrays.fill(seen, 0, names.length, false);
+        List<String> addedNames = null;
+        List<long[]> addedValues = null;
+        List<String> subdirectories = new ArrayList<>(state.subdirectories.length);
+        int changes = 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(state.dir)) {
+            for (Path child : stream) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue;
+                }
+                String name = child.getFileName().toString();
+                if (attrs.isDirectory()) {
+                    subdirectories.add(name);
+                    continue;
+                }
+                if (!attrs.isRegularFile()) {
+                    continue;
+                }
+                long size = attrs.size();
+                long lastModified = attrs.lastModifiedTime().toMillis();
+                int i = Arrays.binarySearch(names, name);
+                if (i >= 0) {
+                    seen[i] = true;
+                    if (state.sizes[i] != size || state.mtimes[i] != lastModified) {
+                        state.sizes[i] = size;
+                        state.mtimes[i] = lastModified;
+                        changes++;
+                        listener.onChange(child, StandardWatchEventKinds.ENTRY_MODIFY);
+                    }
+                    continue;
+                }
+                if (addedNames == null) {
+                    addedNames = new ArrayList<>();
+                    addedValues = new ArrayList<>();
+                }
+                addedNames.add(name);
+                addedValues.add(new long[] {size, lastModified});
+                changes++;
+                if (baselineCallback != null) {
+                    baselineCallback.onFile(child, attrs);
+                } else {
+                    listener.onChange(child, StandardWatchEventKinds.ENTRY_CREATE);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Gone since it was last scanned; the parent's scan reports its files
+            return 0;
+        } catch (IOException e) {
+            LogsManager.logWarn("Could not read directory {}: {}", state.dir, e.getMessage());
+            return 0;
+        }
+
+        int kept = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (seen[i]) {
+                kept++;
+            } else {
+                changes++;
+                listener.onChange(state.dir.resolve(names[i]), StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+        if (addedNames != null || kept != names.length) {
+            rebuild(state, seen, kept, addedNames, addedValues);
+        }
+
+        Collections.sort(subdirectories);
+        String[] known = state.subdirectories;
+        if (!subdirectories.equals(Arrays.asList(known))) {
+            for (String name : subdirectories) {
+                if (Arrays.binarySearch(known, name) < 0) {
+                    newDirectories.add(state.dir.resolve(name));
+                }
+            }
+            for (String name : known) {
+                if (Collections.binarySearch(subdirectories, name) < 0) {
+                    goneDirectories.add(state.dir.resolve(name));
+                }
+            }
+            state.subdirectories = subdirectories.toArray(NO_NAMES);
+            changes++;
+        }
+        return changes;
+    }
+
+    /**
+     * Replaces the snapshot arrays with the kept entries plus the added ones, sorted by name.
+     */
+    private static void rebuild(DirectoryState state, boolean[] seen, int kept, List<String> addedNames, List<long[]> addedValues) {
+        int added = addedNames != null ? addedNames.size() : 0;
+        Integer[] order = new Integer[added];
+        for (int i = 0; i < added; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> addedNames.get(a).compareTo(addedNames.get(b)));
+
+        int total = kept + added;
+        String[] names = total == 0 ? NO_NAMES : new String[total];
+        long[] sizes = total == 0 ? NO_VALUES : new long[total];
+        long[] mtimes = total == 0 ? NO_VALUES : new long[total];
+        int out = 0;
+        int next = 0;
+        for (int i = 0; i < state.names.length; i++) {
+            if (!seen[i]) {
+                continue;
+            }
+            // Merge the sorted additions in front of the next kept entry
+            while (next < added && addedNames.get(order[next]).compareTo(state.names[i]) < 0) {
+                long[] values = addedValues.get(order[next]);
+                names[out] = addedNames.get(order[next++]);
+                sizes[out] = values[0];
+                mtimes[out++] = values[1];
+            }
+            names[out] = state.names[i];
+            sizes[out] = state.sizes[i];
+            mtimes[out++] = state.mtimes[i];
+        }
+        while (next < added) {
+            long[] values = addedValues.get(order[next]);
+            names[out] = addedNames.get(order[next++]);
+            sizes[out] = values[0];
+            mtimes[out++] = values[1];
+        }
+        state.names = names;
+        state.sizes = sizes;
+        state.mtimes = mtimes;
+    }
+
+    private static final class DirectoryState {
+        private final Path dir;
+        private String[] names = NO_NAMES;
+        private long[] sizes = NO_VALUES;
+        private long[] mtimes = NO_VALUES;
+        private String[] subdirectories = NO_NAMES;
+        private volatile long interval;
+        private volatile long nextScan;
+        private boolean removed;
+
+        private DirectoryState(Path dir, long interval) {
+            this.dir = dir;
+            this.interval = interval;
+            this.nextScan = System.currentTimeMillis() + interval;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.manolin.ftpblost.monitor;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Pairs the delete and create events a rename produces, so the move can be replayed on the
+ * server as a rename instead of a delete plus a full upload. Directories are paired by file
+ * key (the inode survives a rename); files by size and mtime, which a rename keeps too, with
+ * the name as tie-breaker. Removals wait a short window for their other half and are handed
+ * back once it passes. Creations of files and directories are remembered for the same window,
+ * in case the removal is reported second.
+ */
+public class RenameDetector {
+
+    /**
+     * A file or directory that disappeared. Directories carry their file key, files the size
+     * and mtime last recorded for them.
+     */
+    public record Removal(Path path, Object directoryKey, long size, long lastModified) {
+
+        public boolean isDirectory() {
+            return directoryKey != null;
+        }
+    }
+
+    private record Signature(long size, long lastModified) {
+    }
+
+    private final long windowMillis;
+    private final Consumer<Removal> onUnpaired;
+    private final Map<Path, Removal> removals = new HashMap<>();
+    private final Map<Object, Path> removedDirectories = new HashMap<>();
+    private final Map<Signature, List<Path>> removedFiles = new HashMap<>();
+    private final Map<Signature, List<Path>> createdFiles = new HashMap<>();
+    private final Map<Object, Path> createdDirectories = new HashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rename-detector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param onUnpaired receives every removal no creation claimed within the window
+     */
+    public RenameDetector(long windowMillis, Consumer<Removal> onUnpaired) {
+        this.windowMillis = windowMillis;
+        this.onUnpaired = onUnpaired;
+    }
+
+    /**
+     * Holds a removal until a matching creation claims it or the window passes. If a file or
+     * directory created moments ago already matches, nothing is held and its path is returned
+     * instead.
+     */
+    public Path hold(Removal removal) {
+        synchronized (this) {
+            if (removal.isDirectory()) {
+                Path created = createdDirectories.remove(removal.directoryKey());
+                if (created != null) {
+                    return created;
+                }
+                removedDirectories.put(removal.directoryKey(), removal.path());
+            } else {
+                Signature signature = new Signature(removal.size(), removal.lastModified());
+                Path created = claim(createdFiles, signature, removal.path());
+                if (created != null) {
+                    return created;
+                }
+                removedFiles.computeIfAbsent(signature, s -> new ArrayList<>(1)).add(removal.path());
+            }
+            removals.put(removal.path(), removal);
+        }
+        timer.schedule(() -> expire(removal), windowMillis, TimeUnit.MILLISECONDS);
+        return null;
+    }
+
+    /**
+     * Claims the held file removal that a new file of this size and mtime most likely came from.
+     */
+    public synchronized Removal matchFile(Path created, long size, long lastModified) {
+        Path removed = claim(removedFiles, new Signature(size, lastModified), created);
+        return removed != null ? removals.remove(removed) : null;
+    }
+
+    /**
+     * Claims the held directory removal with this file key.
+     */
+    public synchronized Removal matchDirectory(Object fileKey) {
+        Path removed = fileKey != null ? removedDirectories.remove(fileKey) : null;
+        return removed != null ? removals.remove(removed) : null;
+    }
+
+    /**
+     * Remembers a new file no removal claimed, for a removal that may still be on its way.
+     */
+    public void rememberCreation(Path path, long size, long lastModified) {
+        Signature signature = new Signature(size, lastModified);
+        synchronized (this) {
+            createdFiles.computeIfAbsent(signature, s -> new ArrayList<>(1)).add(path);
+        }
+        timer.schedule(() -> forget(createdFiles, signature, path), windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Remembers a new directory no removal claimed, keyed by its file key.
+     */
+    public void rememberDirectoryCreation(Path dir, Object fileKey) {
+        if (fileKey == null) {
+            return;
+        }
+        synchronized (this) {
+            createdDirectories.put(fileKey, dir);
+        }
+        timer.schedule(() -> forgetDirectory(fileKey, dir), windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void expire(Removal removal) {
+        synchronized (this) {
+            if (removals.get(removal.path()) != removal) {
+                return;
+            }
+            removals.remove(removal.path());
+            if (removal.isDirectory()) {
+                removedDirectories.remove(removal.directoryKey(), removal.path());
+            } else {
+                forget(removedFiles, new Signature(removal.size(), removal.lastModified()), removal.path());
+            }
+        }
+        onUnpaired.accept(removal);
+    }
+
+    private synchronized void forgetDirectory(Object fileKey, Path dir) {
+        createdDirectories.remove(fileKey, dir);
+    }
+
+    private synchronized void forget(Map<Signature, List<Path>> index, Signature signature, Path path) {
+        List<Path> paths = index.get(signature);
+        if (paths != null && paths.remove(path) && paths.isEmpty()) {
+            index.remove(signature);
+        }
+    }
+
+    /**
+     * Takes the single candidate with this signature, or among several the single one with
+     * the same file name. Anything more ambiguous is not treated as a rename.
+     */
+    private Path claim(Map<Signature, List<Path>> index, Signature signature, Path other) {
+        List<Path> candidates = index.get(signature);
+        if (candidates == null) {
+            return null;
+        }
+        Path found = null;
+        if (candidates.size() == 1) {
+            found = candidates.get(0);
+        } else {
+            for (Path candidate : candidates) {
+                if (Objects.equals(candidate.getFileName(), other.getFileName())) {
+                    if (found != null) {
+                        return null;
+                    }
+                    found = candidate;
+                }
+            }
+        }
+        if (found != null) {
+            forget(index, signature, found);
+        }
+        return found;
+    }
+}
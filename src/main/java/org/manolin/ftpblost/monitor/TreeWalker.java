@@ -0,0 +1,93 @@
+package org.manolin.ftpblost.monitor;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.manolin.ftpblost.logs.LogsManager;
+
+/**
+ * Fork/join walk of a local tree: every directory is listed by its own task, so
+ * siblings are listed in parallel. Symbolic links are not followed.
+ */
+public class TreeWalker {
+
+    @FunctionalInterface
+    public interface FileCallback {
+        void onFile(Path file, BasicFileAttributes attrs);
+    }
+
+    @FunctionalInterface
+    public interface DirectoryCallback {
+        /**
+         * Called before a directory is listed; returning false skips it.
+         */
+        boolean onDirectory(Path dir) throws IOException;
+    }
+
+    private final ForkJoinPool pool;
+
+    public TreeWalker(int parallelism) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    public void walk(Path root, DirectoryCallback directoryCallback, FileCallback fileCallback) {
+        pool.invoke(new WalkTask(root, directoryCallback, fileCallback));
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static final class WalkTask extends RecursiveAction {
+        private final Path dir;
+        private final DirectoryCallback directoryCallback;
+        private final FileCallback fileCallback;
+
+        private WalkTask(Path dir, DirectoryCallback directoryCallback, FileCallback fileCallback) {
+            this.dir = dir;
+            this.directoryCallback = directoryCallback;
+            this.fileCallback = fileCallback;
+        }
+
+        @Override
+        protected void compute() {
+            List<WalkTask> subTasks = new ArrayList<>();
+            try {
+                if (!directoryCallback.onDirectory(dir)) {
+                    return;
+                }
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path child : stream) {
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (IOException e) {
+                            continue;
+                        }
+                        if (attrs.isDirectory()) {
+                            WalkTask task = new WalkTask(child, directoryCallback, fileCallback);
+                            task.fork();
+                            subTasks.add(task);
+                        } else if (attrs.isRegularFile()) {
+                            fileCallback.onFile(child, attrs);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The directory may have vanished while we were walking it
+                LogsManager.logWarn("Could not read directory {}: {}", dir, e.getMessage());
+            }
+            for (WalkTask task : subTasks) {
+                task.join();
+            }
+        }
+    }
+}
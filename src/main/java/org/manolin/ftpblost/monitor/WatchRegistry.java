@@ -0,0 +1,124 @@
+package org.manolin.ftpblost.monitor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.manolin.ftpblost.logs.LogsManager;
+
+/**
+ * Keeps one {@link WatchKey} per directory of the watched tree and maps keys back to
+ * the directory they belong to. Trees are registered with a fork/join walk so large
+ * trees are listed and registered on several cores at once. Rescans get a walker of
+ * their own, so a throttled rescan never holds up registering a new directory.
+ */
+public class WatchRegistry {
+
+    private final WatchService watchService;
+    private final TreeWalker treeWalker;
+    private final TreeWalker rescanWalker;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();
+    private final Map<Path, Object> fileKeys = new ConcurrentHashMap<>();
+
+    public WatchRegistry(WatchService watchService, int parallelism, int rescanParallelism) {
+        this.watchService = watchService;
+        this.treeWalker = new TreeWalker(parallelism);
+        this.rescanWalker = new TreeWalker(rescanParallelism);
+    }
+
+    /**
+     * Registers {@code root} and every directory below it, reporting each regular file found
+     * to {@code callback}. Returns the number of directories registered.
+     */
+    public int registerTree(Path root, TreeWalker.FileCallback callback) {
+        return registerTree(treeWalker, root, callback);
+    }
+
+    /**
+     * Same as {@link #registerTree}, on the rescan walker. Directories already registered
+     * keep their key; ones whose creation was missed get registered.
+     */
+    public int rescanTree(Path root, TreeWalker.FileCallback callback) {
+        return registerTree(rescanWalker, root, callback);
+    }
+
+    private int registerTree(TreeWalker walker, Path root, TreeWalker.FileCallback callback) {
+        AtomicInteger registered = new AtomicInteger();
+        walker.walk(root, dir -> {
+            register(dir);
+            registered.incrementAndGet();
+            return true;
+        }, callback);
+        return registered.get();
+    }
+
+    public Path resolve(WatchKey key) {
+        return keys.get(key);
+    }
+
+    public void unregister(WatchKey key) {
+        Path dir = keys.remove(key);
+        if (dir != null) {
+            directories.remove(dir, key);
+            fileKeys.remove(dir);
+            LogsManager.logDebug("Stopped watching directory: {}", dir);
+        }
+    }
+
+    /**
+     * Cancels the keys of {@code dir} and of every directory below it. Returns the file key
+     * {@code dir} had when it was registered, or null if it was not a watched directory.
+     */
+    public Object unregisterTree(Path dir) {
+        if (!directories.containsKey(dir)) {
+            return null;
+        }
+        Object fileKey = fileKeys.get(dir);
+        directories.entrySet().removeIf(entry -> {
+            if (entry.getKey().startsWith(dir)) {
+                entry.getValue().cancel();
+                keys.remove(entry.getValue());
+                fileKeys.remove(entry.getKey());
+                return true;
+            }
+            return false;
+        });
+        return fileKey;
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public void shutdown() {
+        treeWalker.shutdown();
+        rescanWalker.shutdown();
+    }
+
+    private void register(Path dir) throws IOException {
+        WatchKey key = dir.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        keys.put(key, dir);
+        directories.put(dir, key);
+        // Kept so a directory that disappears can be recognized when it shows up under another name
+        Object fileKey = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+        if (fileKey != null) {
+            fileKeys.put(dir, fileKey);
+        }
+    }
+}